@@ -21,12 +21,26 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import be.nabu.eai.api.NamingConvention;
+import be.nabu.eai.module.services.insight.InsightCache.InsightResult;
+import be.nabu.eai.module.services.insight.aggregate.Aggregators;
+import be.nabu.eai.module.services.insight.aggregate.InsightAggregation;
 import be.nabu.eai.module.services.crud.CRUDArtifactManager;
 import be.nabu.eai.module.services.crud.CRUDFilter;
 import be.nabu.eai.module.services.crud.CRUDService;
@@ -35,13 +49,11 @@ import be.nabu.eai.module.web.application.WebApplication;
 import be.nabu.eai.module.web.application.WebFragment;
 import be.nabu.eai.module.web.application.api.RESTFragment;
 import be.nabu.eai.repository.api.Repository;
+import be.nabu.eai.repository.api.StartableArtifact;
+import be.nabu.eai.repository.api.StoppableArtifact;
 import be.nabu.eai.repository.artifacts.jaxb.JAXBArtifact;
 import be.nabu.eai.repository.util.Filter;
 import be.nabu.libs.authentication.api.Permission;
-import be.nabu.libs.events.api.EventSubscription;
-import be.nabu.libs.http.api.HTTPRequest;
-import be.nabu.libs.http.api.HTTPResponse;
-import be.nabu.libs.http.server.HTTPServerUtils;
 import be.nabu.libs.property.ValueUtils;
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.resources.api.ResourceContainer;
@@ -78,11 +90,44 @@ import be.nabu.libs.types.structure.Structure;
 import nabu.services.jdbc.Services;
 import nabu.services.jdbc.Services.JDBCSelectResult;
 
-public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implements DefinedService, WebFragment, RESTFragment {
+public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implements DefinedService, WebFragment, RESTFragment, StartableArtifact, StoppableArtifact {
 
-	private DefinedStructure result;
+	// the code of the exception when a query takes too long
+	public static final String TIMEOUT = "INSIGHT-TIMEOUT";
+	// the codes of the exception when a query is not admitted because the insight or the connection is too busy
+	public static final String REJECTED = "INSIGHT-REJECTED", OVERLOADED = "INSIGHT-OVERLOADED";
+	// the code of the exception when an approximate aggregate needs more rows than we allow in memory
+	public static final String TOO_LARGE = "INSIGHT-TOO-LARGE";
+	private static final int DEFAULT_SKETCH_ROW_LIMIT = 1000000;
+	private static final int DEFAULT_SKETCH_GROUP_LIMIT = 10000;
+	static final String PARTIAL_COUNT = "PartialCount";
+	
+	private enum StructureType {
+		// the actual result
+		RESULT,
+		// partial aggregates per distinct value of the approximately aggregated fields
+		SKETCH,
+		// aggregates that can be merged
+		PARTIAL
+	}
+	
+	private DefinedStructure result, sketchResult, partialResult, materializedResult, materializedState;
 	private Structure foreign;
 	private Structure input, output;
+	private volatile InsightResultCache cache;
+	private volatile InsightMaterializer materializer;
+	private volatile InsightRowCounter rowCounter;
+	private volatile InsightBuckets buckets;
+	private volatile Map<String, byte[]> compressed;
+	private volatile InsightPlan plan;
+	private volatile InsightPermissionCache permissionCache;
+	private volatile InsightLive live;
+	private volatile InsightBulkhead bulkhead;
+	private volatile InsightReplicas replicas;
+	private volatile InsightRollup rollup;
+	private volatile InsightColumnar columnar;
+	private ConcurrentMap<String, CompletableFuture<InsightResult>> inFlight = new ConcurrentHashMap<String, CompletableFuture<InsightResult>>();
+	private AtomicLong coalesced = new AtomicLong(), executions = new AtomicLong();
 	
 	public InsightArtifact(String id, ResourceContainer<?> directory, Repository repository) {
 		super(id, directory, repository, "insight.xml", InsightConfiguration.class);
@@ -123,6 +168,8 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 					input.add(new SimpleElementImpl<Integer>("limit", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					input.add(new SimpleElementImpl<Long>("offset", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Long.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					input.add(new SimpleElementImpl<String>("orderBy", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0), new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+					input.add(new SimpleElementImpl<String>("cursor", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					input.add(new SimpleElementImpl<Boolean>("totalRowCount", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					if (getConfig().getFilters() != null) {
 						Structure filters = new Structure();
 						filters.setName("filter");
@@ -174,6 +221,10 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 					DefinedType resolve = BeanResolver.getInstance().resolve(Page.class);
 					output.add(new ComplexElementImpl("results", getResult(), output, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0), new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
 					output.add(new ComplexElementImpl("page", (ComplexType) resolve, output, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					// whether the total row count in the page is an estimate rather than an exact count
+					output.add(new SimpleElementImpl<Boolean>("totalRowCountEstimated", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class), output, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					// pass this along in the next request to get the next page
+					output.add(new SimpleElementImpl<String>("cursor", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), output, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 					this.output = output;
 				}
 			}
@@ -207,58 +258,881 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 			public Service getDefinition() {
 				return InsightArtifact.this;
 			}
-			@SuppressWarnings("unchecked")
 			@Override
 			public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
-				String connectionId = input == null ? null : (String) input.get("connectionId");
+				String connectionId = getConnectionId(input);
 				String transactionId = input == null ? null : (String) input.get("transactionId");
 				
-				// if we have configured a connection id, use that
-				if (connectionId == null && getConfig().getConnection() != null) {
-					connectionId = getConfig().getConnection().getId();
+				// if you are running in a transaction, you might see uncommitted data so we don't cache or share that
+				String key = transactionId == null ? getCacheKey(connectionId, input, true) : null;
+				InsightResultCache cache = key == null ? null : getCache();
+				InsightResult result = cache == null ? null : cache.get(key);
+				if (result == null) {
+					result = key == null ? select(executionContext, connectionId, transactionId, input) : selectShared(executionContext, connectionId, input, key, cache);
 				}
 				
-				List<Filter> filters = new ArrayList<Filter>();
-				if (getConfig().getFilters() != null) {
-					CRUDService.transformFilters(getConfig().getFilters(), input, filters);
+				return toOutput(result, input);
+			}
+		};
+	}
+	
+	private ComplexContent toOutput(InsightResult result, ComplexContent input) {
+		ComplexContent output = getServiceInterface().getOutputDefinition().newInstance();
+		// the list in a cached result is read-only
+		output.set("results", result.getResults() == null ? null : new ArrayList<Object>(result.getResults()));
+		output.set("cursor", result.getCursor());
+		if (result.getTotalRowCount() != null) {
+			// when paging with a cursor, the offset is meaningless
+			Long offset = input == null || input.get("cursor") != null ? null : (Long) input.get("offset");
+			output.set("page", Page.build(result.getTotalRowCount(), offset, input == null ? null : (Integer) input.get("limit"), true));
+			if (result.isEstimated()) {
+				output.set("totalRowCountEstimated", true);
+			}
+		}
+		return output;
+	}
+	
+	String getConnectionId(ComplexContent input) {
+		String connectionId = input == null ? null : (String) input.get("connectionId");
+		// if we have configured a connection id, use that
+		if (connectionId == null && getConfig().getConnection() != null) {
+			connectionId = getConfig().getConnection().getId();
+		}
+		return connectionId;
+	}
+	
+	/**
+	 * The hash of the output for this input if we still have a cached result for it, this does not run any queries.
+	 * As long as the result is cached, it is considered unchanged.
+	 */
+	Long getCachedHash(ComplexContent input) {
+		if (input != null && input.get("transactionId") != null) {
+			return null;
+		}
+		InsightResultCache cache = getCache();
+		if (cache == null) {
+			return null;
+		}
+		String key = getCacheKey(getConnectionId(input), input, true);
+		Long hash = cache.getHash(key);
+		if (hash == null) {
+			InsightResult result = cache.peek(key);
+			if (result == null) {
+				return null;
+			}
+			hash = InsightETag.hash(toOutput(result, input));
+			cache.putHash(key, result.getCreated(), hash);
+		}
+		return hash;
+	}
+	
+	/**
+	 * Something that runs against the database on behalf of this insight, it gets the connection it was routed to.
+	 */
+	interface Query<T> {
+		public T run(String connectionId) throws ServiceException;
+	}
+	
+	private InsightResult select(ExecutionContext executionContext, String connectionId, String transactionId, ComplexContent input) throws ServiceException {
+		return run(connectionId, transactionId, new Query<InsightResult>() {
+			@Override
+			public InsightResult run(String connectionId) throws ServiceException {
+				return selectDirectly(executionContext, connectionId, transactionId, input);
+			}
+		});
+	}
+	
+	/**
+	 * A query first has to be admitted by the bulkhead of the insight and then by the one of the connection.
+	 * Queries that don't go through the insight itself (like a fused dashboard query) use this as well so they get the same routing, admission and timeout.
+	 */
+	<T> T run(String connectionId, String transactionId, Query<T> query) throws ServiceException {
+		// only the queries on the primary connection are moved, if you explicitly ask for another connection or run in a transaction you get what you asked for
+		InsightReplicas replicas = getReplicas();
+		if (replicas != null && transactionId == null && connectionId != null && connectionId.equals(getConfig().getConnection().getId())) {
+			connectionId = replicas.route(connectionId);
+		}
+		int cost = getCost();
+		InsightBulkhead bulkhead = getBulkhead();
+		InsightBulkhead connectionBulkhead = getConnectionBulkhead(connectionId);
+		int weight = bulkhead == null ? 0 : admit(bulkhead, cost, REJECTED, "Too many concurrent requests for insight: " + getId());
+		try {
+			int connectionWeight = connectionBulkhead == null ? 0 : admit(connectionBulkhead, cost, OVERLOADED, "Too many concurrent insight requests for connection: " + connectionId);
+			try {
+				return runWithTimeout(connectionId, query);
+			}
+			finally {
+				if (connectionBulkhead != null) {
+					connectionBulkhead.release(connectionWeight);
 				}
-				
-				List<String> groupBy = new ArrayList<String>();
-				for (InsightField field : getConfig().getFields()) {
-					if ("group by".equals(field.getAggregate()) || field.getAggregate() == null) {
-						groupBy.add(field.getAlias() == null ? field.getKey() : field.getAlias());
-					}
+			}
+		}
+		finally {
+			if (bulkhead != null) {
+				bulkhead.release(weight);
+			}
+		}
+	}
+	
+	private int admit(InsightBulkhead bulkhead, int cost, String code, String message) throws ServiceException {
+		try {
+			int weight = bulkhead.acquire(cost, getConfig().getQueueTimeout() == null ? 30000 : getConfig().getQueueTimeout());
+			if (weight < 0) {
+				throw new ServiceException(code, message);
+			}
+			return weight;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException(e);
+		}
+	}
+	
+	/**
+	 * Queries that run on an additional connection next to an admitted query (partitions, buckets, row counts) need room in the bulkheads as well.
+	 * We don't wait for that room: the admitted query already holds permits so waiting could deadlock, if there is no room right now the caller runs the query in sequence instead.
+	 * Returns what to run to release the permits afterwards, or null if there is no room.
+	 */
+	Runnable admitConcurrent(String connectionId) {
+		int cost = getCost();
+		InsightBulkhead bulkhead = getBulkhead();
+		InsightBulkhead connectionBulkhead = getConnectionBulkhead(connectionId);
+		int weight = bulkhead == null ? 0 : bulkhead.tryAcquire(cost);
+		if (weight < 0) {
+			return null;
+		}
+		int connectionWeight = connectionBulkhead == null ? 0 : connectionBulkhead.tryAcquire(cost);
+		if (connectionWeight < 0) {
+			if (bulkhead != null) {
+				bulkhead.release(weight);
+			}
+			return null;
+		}
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (connectionBulkhead != null) {
+					connectionBulkhead.release(connectionWeight);
 				}
-				
-				JDBCSelectResult selectFiltered = Services.selectFiltered(
-					connectionId, 
-					transactionId, 
-					getResult().getId(), 
-					input == null ? null : (Long) input.get("offset"), 
-					input == null ? null : (Integer) input.get("limit"), 
-					input == null ? null : (List<String>) input.get("orderBy"), 
-					input == null ? null : (Boolean) input.get("totalRowCount"),
-					false,
-					false, 
-					filters, 
-					null,
-					executionContext,
-					groupBy,
-					null,
-					null,
-					null,
-					null
-				);
-				
-				ComplexContent output = getServiceInterface().getOutputDefinition().newInstance();
-				output.set("results", selectFiltered.getResults());
-				if (selectFiltered.getTotalRowCount() != null) {
-					output.set("page", Page.build(selectFiltered.getTotalRowCount(), input == null ? null : (Long) input.get("offset"), input == null ? null : (Integer) input.get("limit"), true));
+				if (bulkhead != null) {
+					bulkhead.release(weight);
 				}
-				return output;
 			}
 		};
 	}
+	
+	private int getCost() {
+		return getConfig().getCost() == null ? 1 : getConfig().getCost();
+	}
+	
+	InsightReplicas getReplicas() {
+		if (replicas == null && getConfig().getConnection() != null && !getConfig().getReplicas().isEmpty()) {
+			synchronized(this) {
+				if (replicas == null) {
+					replicas = new InsightReplicas(this);
+					replicas.start();
+				}
+			}
+		}
+		return replicas;
+	}
+	
+	InsightBulkhead getBulkhead() {
+		if (bulkhead == null && getConfig().getMaxConcurrency() != null && getConfig().getMaxConcurrency() > 0) {
+			synchronized(this) {
+				if (bulkhead == null) {
+					bulkhead = new InsightBulkhead(getConfig().getMaxConcurrency(), getMaxQueue());
+				}
+			}
+		}
+		return bulkhead;
+	}
+	
+	private InsightBulkhead getConnectionBulkhead(String connectionId) {
+		if (connectionId == null || getConfig().getConnectionConcurrency() == null || getConfig().getConnectionConcurrency() <= 0) {
+			return null;
+		}
+		return InsightBulkhead.getConnection(connectionId, getConfig().getConnectionConcurrency(), getMaxQueue());
+	}
+	
+	private int getMaxQueue() {
+		return getConfig().getMaxQueue() == null ? 10 : getConfig().getMaxQueue();
+	}
+	
+	/**
+	 * With a timeout, the query runs on the calling thread (so it keeps the context of the service runtime) while a watchdog on the scheduler keeps track of the time.
+	 * If it takes too long, the watchdog interrupts the calling thread. Partitions that are still running are cancelled in turn, whether the statement itself stops depends on how the jdbc driver handles interrupts.
+	 */
+	private <T> T runWithTimeout(String connectionId, Query<T> query) throws ServiceException {
+		Long timeout = getConfig().getQueryTimeout();
+		if (timeout == null || timeout <= 0) {
+			return query.run(connectionId);
+		}
+		Thread thread = Thread.currentThread();
+		// 0 = running, 1 = done, 2 = timed out
+		AtomicInteger state = new AtomicInteger();
+		ScheduledFuture<?> watchdog = InsightExecutors.getScheduler().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (state.compareAndSet(0, 2)) {
+					thread.interrupt();
+				}
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		try {
+			return query.run(connectionId);
+		}
+		catch (ServiceException | RuntimeException e) {
+			if (state.get() == 2) {
+				throw new ServiceException(TIMEOUT, "The insight " + getId() + " did not finish within " + timeout + "ms", e);
+			}
+			throw e;
+		}
+		finally {
+			watchdog.cancel(false);
+			// the interrupt was meant for the query, not for whatever the thread does next
+			if (!state.compareAndSet(0, 1)) {
+				Thread.interrupted();
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private InsightResult selectDirectly(ExecutionContext executionContext, String connectionId, String transactionId, ComplexContent input) throws ServiceException {
+		executions.incrementAndGet();
+		InsightQuery query = new InsightQuery();
+		query.setConnectionId(connectionId);
+		query.setTransactionId(transactionId);
+		if (input != null) {
+			query.setOffset((Long) input.get("offset"));
+			query.setLimit((Integer) input.get("limit"));
+			query.setOrderBy((List<String>) input.get("orderBy"));
+			query.setTotalRowCount((Boolean) input.get("totalRowCount"));
+		}
+		if (getConfig().getFilters() != null) {
+			CRUDService.transformFilters(getConfig().getFilters(), input, query.getFilters());
+		}
+		// a more detailed insight might already have the data, cursors are only handed out for limited and ordered queries so those still go to the database
+		InsightRollup rollup = transactionId == null && (input == null || input.get("cursor") == null) && (query.getLimit() == null || query.getOrderBy() == null || query.getOrderBy().isEmpty()) ? getRollup() : null;
+		if (rollup != null) {
+			InsightResult rolled = rollup.select(executionContext, connectionId, input, query);
+			if (rolled != null) {
+				return rolled;
+			}
+		}
+		// we count separately from the actual data query
+		CompletableFuture<InsightResult> rowCount = null;
+		if (Boolean.TRUE.equals(query.getTotalRowCount()) && transactionId == null && getRowCounter() != null) {
+			query.setTotalRowCount(false);
+			InsightQuery countQuery = new InsightQuery();
+			countQuery.setConnectionId(connectionId);
+			// the count runs at the same time as the data query
+			countQuery.setFilters(InsightQuery.copy(query.getFilters()));
+			countQuery.setLimit(1);
+			countQuery.setTotalRowCount(true);
+			// the query may have been routed to any of the replicas, they all count the same rows so they share the key of the primary
+			InsightReplicas replicas = getReplicas();
+			String countConnectionId = replicas != null && replicas.isReplica(connectionId) ? getConfig().getConnection().getId() : connectionId;
+			rowCount = getRowCounter().count(executionContext, countQuery, getCacheKey(countConnectionId, input, false));
+		}
+		InsightCursor cursor = InsightCursor.prepare(this, query, input == null ? null : (String) input.get("cursor"));
+		InsightResult result = select(executionContext, query);
+		if (cursor != null) {
+			result.setCursor(cursor.next(result.getResults()));
+		}
+		if (rowCount != null) {
+			InsightRowCounter.join(rowCount, result);
+		}
+		return result;
+	}
+	
+	InsightResult select(ExecutionContext executionContext, InsightQuery query) throws ServiceException {
+		// the in-memory copy can answer most queries without going to the database
+		InsightColumnar columnar = this.columnar;
+		if (columnar != null && query.getTransactionId() == null && isPrimary(query.getConnectionId())) {
+			InsightResult result = columnar.select(query);
+			if (result != null) {
+				return result;
+			}
+		}
+		
+		// if we can answer it from the materialized table, do that
+		List<Filter> materializedFilters = getMaterializedFilters(query.getConnectionId(), query.getFilters());
+		if (materializedFilters != null) {
+			JDBCSelectResult selectFiltered = Services.selectFiltered(
+				query.getConnectionId(), 
+				query.getTransactionId(), 
+				getMaterializedResult().getId(), 
+				query.getOffset(), 
+				query.getLimit(), 
+				query.getOrderBy(), 
+				query.getTotalRowCount(),
+				false,
+				false, 
+				materializedFilters, 
+				null,
+				executionContext,
+				null,
+				null,
+				null,
+				null,
+				null
+			);
+			return new InsightResult(toResults(selectFiltered.getResults(), getMaterializedResult()), selectFiltered.getTotalRowCount());
+		}
+		
+		// historical buckets can be cached indefinitely
+		if (query.getTransactionId() == null && getBuckets() != null) {
+			InsightResult bucketed = getBuckets().select(executionContext, query);
+			if (bucketed != null) {
+				return bucketed;
+			}
+		}
+		
+		// large ranges can be split up and run in parallel
+		List<InsightQuery> partitions = query.getTransactionId() == null ? InsightPartitioner.split(this, query) : null;
+		if (partitions != null) {
+			return toResult(InsightPartitioner.aggregate(this, executionContext, partitions), query);
+		}
+		
+		if (hasApproximateAggregates()) {
+			return toResult(aggregate(executionContext, query), query);
+		}
+		
+		JDBCSelectResult selectFiltered = Services.selectFiltered(
+			query.getConnectionId(), 
+			query.getTransactionId(), 
+			getResult().getId(), 
+			query.getOffset(), 
+			query.getLimit(), 
+			query.getOrderBy(), 
+			query.getTotalRowCount(),
+			false,
+			false, 
+			query.getFilters(), 
+			null,
+			executionContext,
+			getGroupBy(),
+			null,
+			null,
+			null,
+			null
+		);
+		return new InsightResult(selectFiltered.getResults(), selectFiltered.getTotalRowCount());
+	}
+	
+	/**
+	 * Calculate the aggregates for the query in a form that can be merged with other aggregations.
+	 * The database always calculates partial aggregates. If we have approximate aggregates, it also groups by the values they are calculated over and counts how often each value occurs.
+	 * The sketches are fed from those counts so we never hold the ungrouped rows, the amount of distinct values is still capped to protect the server.
+	 */
+	InsightAggregation aggregate(ExecutionContext executionContext, InsightQuery query) throws ServiceException {
+		boolean sketched = hasApproximateAggregates();
+		int rowLimit = getConfig().getSketchRowLimit() == null ? DEFAULT_SKETCH_ROW_LIMIT : getConfig().getSketchRowLimit();
+		JDBCSelectResult selectFiltered = Services.selectFiltered(
+			query.getConnectionId(), 
+			query.getTransactionId(), 
+			sketched ? getSketchResult().getId() : getPartialResult().getId(), 
+			null, 
+			// one more than we allow so we know when we went over
+			sketched ? rowLimit + 1 : null, 
+			null, 
+			false,
+			false,
+			false, 
+			query.getFilters(), 
+			null,
+			executionContext,
+			sketched ? getPlan().getSketchGroupBy() : getGroupBy(),
+			null,
+			null,
+			null,
+			null
+		);
+		if (sketched && selectFiltered.getResults() != null && selectFiltered.getResults().size() > rowLimit) {
+			throw new ServiceException(TOO_LARGE, "The approximate aggregates of insight " + getId() + " need more than " + rowLimit + " distinct values, narrow down the filters or raise the sketch row limit");
+		}
+		InsightAggregation aggregation = newAggregation();
+		aggregation.addPartials(selectFiltered.getResults(), getPartialCountFields());
+		checkSketchGroups(aggregation);
+		return aggregation;
+	}
+	
+	/**
+	 * The row limit caps the values, this caps the groups: each group has its own sketches so many groups can add up even with few values per group.
+	 * It is checked for every aggregation we fetch and again when they are merged (partitions, buckets) because the groups of the parts add up.
+	 */
+	void checkSketchGroups(InsightAggregation aggregation) throws ServiceException {
+		int groupLimit = getConfig().getSketchGroupLimit() == null ? DEFAULT_SKETCH_GROUP_LIMIT : getConfig().getSketchGroupLimit();
+		if (hasApproximateAggregates() && aggregation.size() > groupLimit) {
+			throw new ServiceException(TOO_LARGE, "The approximate aggregates of insight " + getId() + " need more than " + groupLimit + " groups, narrow down the filters or raise the sketch group limit");
+		}
+	}
+	
+	// the paging is applied to the aggregated result
+	InsightResult toResult(InsightAggregation aggregation, InsightQuery query) {
+		return toResult(aggregation.getResults(getResult()), query);
+	}
+	
+	InsightResult toResult(List<ComplexContent> results, InsightQuery query) {
+		InsightAggregation.sort(results, query.getOrderBy());
+		return new InsightResult(InsightAggregation.page(results, query.getOffset(), query.getLimit()), Boolean.TRUE.equals(query.getTotalRowCount()) ? (long) results.size() : null);
+	}
+	
+	// for the partial aggregates, averages and approximate aggregates have an additional count field
+	List<String> getPartialCountFields() {
+		List<String> countFields = new ArrayList<String>();
+		for (InsightField field : getConfig().getFields()) {
+			if (field.getKey() != null && !isGroupBy(field)) {
+				countFields.add("avg".equals(field.getAggregate()) || Aggregators.isApproximate(field.getAggregate()) ? getFieldName(field) + PARTIAL_COUNT : null);
+			}
+		}
+		return countFields;
+	}
+	
+	InsightAggregation newAggregation() {
+		List<String> groupFields = new ArrayList<String>();
+		List<String> valueFields = new ArrayList<String>();
+		List<String> aggregates = new ArrayList<String>();
+		for (InsightField field : getConfig().getFields()) {
+			if (field.getKey() == null) {
+				continue;
+			}
+			if (isGroupBy(field)) {
+				groupFields.add(getFieldName(field));
+			}
+			else {
+				valueFields.add(getFieldName(field));
+				aggregates.add(field.getAggregate());
+			}
+		}
+		return new InsightAggregation(groupFields, valueFields, aggregates);
+	}
+	
+	List<String> getGroupBy() {
+		return getPlan().getGroupBy();
+	}
+	
+	InsightPlan getPlan() {
+		if (plan == null) {
+			synchronized(this) {
+				if (plan == null) {
+					// the security context can be an imported field which is only resolved against the result, it must exist before we compile
+					getResult();
+					plan = InsightPlan.compile(this);
+				}
+			}
+		}
+		return plan;
+	}
+	
+	public String getPermissionAction() {
+		return getPlan().getPermissionAction();
+	}
+	
+	// the rows of the materialized table that match the filters, null if the table can't answer them
+	List<?> selectMaterialized(ExecutionContext executionContext, String connectionId, List<Filter> filters) throws ServiceException {
+		List<Filter> materializedFilters = getMaterializedFilters(connectionId, filters);
+		if (materializedFilters == null) {
+			return null;
+		}
+		JDBCSelectResult selectFiltered = Services.selectFiltered(
+			connectionId, 
+			null, 
+			getMaterializedResult().getId(), 
+			null, 
+			null, 
+			null, 
+			false,
+			false,
+			false, 
+			materializedFilters, 
+			null,
+			executionContext,
+			null,
+			null,
+			null,
+			null,
+			null
+		);
+		return toResults(selectFiltered.getResults(), getMaterializedResult());
+	}
+	
+	// the materialized table only contains the grouped fields so we can only filter on those, null if the table can't answer them
+	// the filters of the query may be shared with other threads so we return renamed copies rather than changing them
+	private List<Filter> getMaterializedFilters(String connectionId, List<Filter> filters) {
+		InsightMaterializer materializer = this.materializer;
+		if (materializer == null || materializer.getLastRefresh() == null || getMaterializedResult() == null) {
+			return null;
+		}
+		// the table is only maintained in the configured connection (and replicated to its replicas)
+		if (!isPrimary(connectionId)) {
+			return null;
+		}
+		Map<String, String> names = new HashMap<String, String>();
+		for (InsightField field : getConfig().getFields()) {
+			if (field.getKey() != null && isGroupBy(field)) {
+				names.put(field.getKey(), getFieldName(field));
+			}
+		}
+		for (Filter filter : filters) {
+			if (!names.containsKey(filter.getKey())) {
+				return null;
+			}
+		}
+		// the columns in the materialized table are named after the fields in the result
+		List<Filter> copies = InsightQuery.copy(filters);
+		for (Filter filter : copies) {
+			filter.setKey(names.get(filter.getKey()));
+		}
+		return copies;
+	}
+	
+	// whether the connection is the configured one or one of its replicas
+	private boolean isPrimary(String connectionId) {
+		InsightReplicas replicas = this.replicas;
+		return connectionId != null && getConfig().getConnection() != null && (connectionId.equals(getConfig().getConnection().getId()) || (replicas != null && replicas.isReplica(connectionId)));
+	}
+	
+	// copy the records to instances of our result type
+	private List<ComplexContent> toResults(List<?> records, ComplexType type) {
+		List<ComplexContent> results = new ArrayList<ComplexContent>();
+		if (records != null) {
+			for (Object record : records) {
+				ComplexContent content = (ComplexContent) record;
+				ComplexContent result = getResult().newInstance();
+				for (Element<?> child : TypeUtils.getAllChildren(type)) {
+					result.set(child.getName(), content.get(child.getName()));
+				}
+				results.add(result);
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Concurrent executions with the same input wait on a single query rather than each running their own.
+	 * With a shared cache this extends to the other servers in the cluster.
+	 */
+	private InsightResult selectShared(ExecutionContext executionContext, String connectionId, ComplexContent input, String key, InsightResultCache cache) throws ServiceException {
+		CompletableFuture<InsightResult> future = new CompletableFuture<InsightResult>();
+		CompletableFuture<InsightResult> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			// the query we wait for may first have to be admitted by the bulkheads, after that it gets as long as any other query
+			long wait = (getConfig().getQueueTimeout() == null ? 30000 : getConfig().getQueueTimeout()) + getSharedWait();
+			try {
+				return running.get(wait, TimeUnit.MILLISECONDS);
+			}
+			catch (TimeoutException e) {
+				throw new ServiceException(TIMEOUT, "The shared query for insight " + getId() + " did not finish within " + wait + "ms", e);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ServiceException(e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof ServiceException) {
+					throw (ServiceException) e.getCause();
+				}
+				throw new ServiceException(e.getCause());
+			}
+		}
+		InsightSharedCache shared = cache instanceof InsightSharedCache ? (InsightSharedCache) cache : null;
+		boolean leased = false;
+		try {
+			// another server may already be calculating it
+			InsightResult result = shared == null ? null : shared.acquire(key, getSharedWait());
+			if (result != null) {
+				future.complete(result);
+				return result;
+			}
+			leased = shared != null;
+			result = select(executionContext, connectionId, null, input);
+			// cache it before we stop sharing, otherwise a new request might slip through the gap and run the query again
+			if (cache != null) {
+				cache.put(key, result);
+			}
+			future.complete(result);
+			return result;
+		}
+		catch (ServiceException | RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		finally {
+			if (leased) {
+				shared.release(key);
+			}
+			inFlight.remove(key, future);
+		}
+	}
+	
+	// we wait for another server as long as we would for our own query
+	private long getSharedWait() {
+		Long timeout = getConfig().getQueryTimeout();
+		if (timeout != null && timeout > 0) {
+			return timeout;
+		}
+		return getConfig().getQueueTimeout() == null ? 30000 : getConfig().getQueueTimeout();
+	}
+	
+	public InsightStatistics getStatistics() {
+		InsightStatistics statistics = new InsightStatistics();
+		statistics.setExecutions(executions.get());
+		statistics.setCoalesced(coalesced.get());
+		InsightResultCache cache = this.cache;
+		if (cache != null) {
+			statistics.setCacheHits(cache.getHits());
+			statistics.setCacheMisses(cache.getMisses());
+		}
+		// the size of a shared cache is not known locally
+		if (cache instanceof InsightCache) {
+			statistics.setCacheEvictions(((InsightCache) cache).getEvictions());
+			statistics.setCacheSize(((InsightCache) cache).size());
+		}
+		InsightBuckets buckets = this.buckets;
+		if (buckets != null) {
+			statistics.setBucketHits(buckets.getHits());
+			statistics.setBucketMisses(buckets.getMisses());
+		}
+		InsightColumnar columnar = this.columnar;
+		if (columnar != null) {
+			statistics.setColumnarHits(columnar.getHits());
+			statistics.setColumnarMisses(columnar.getMisses());
+			statistics.setColumnarRows(columnar.getSize());
+		}
+		InsightRollup rollup = this.rollup;
+		if (rollup != null) {
+			statistics.setRollupHits(rollup.getHits());
+			statistics.setRollupMisses(rollup.getMisses());
+		}
+		InsightPermissionCache permissionCache = this.permissionCache;
+		if (permissionCache != null) {
+			statistics.setPermissionHits(permissionCache.getHits());
+			statistics.setPermissionMisses(permissionCache.getMisses());
+		}
+		InsightBulkhead bulkhead = this.bulkhead;
+		if (bulkhead != null) {
+			statistics.setQueueDepth(bulkhead.getQueueDepth());
+			statistics.setInUse(bulkhead.getInUse());
+			statistics.setRejected(bulkhead.getRejected());
+		}
+		InsightBulkhead connectionBulkhead = getConnectionBulkhead(getConnectionId(null));
+		if (connectionBulkhead != null) {
+			statistics.setConnectionQueueDepth(connectionBulkhead.getQueueDepth());
+			statistics.setConnectionInUse(connectionBulkhead.getInUse());
+			statistics.setConnectionRejected(connectionBulkhead.getRejected());
+		}
+		return statistics;
+	}
+	
+	// compressed responses by etag and encoding, the etag identifies the content so this never goes stale
+	byte[] getCompressed(String key) {
+		Map<String, byte[]> compressed = getCompressedCache();
+		if (compressed != null) {
+			synchronized(compressed) {
+				return compressed.get(key);
+			}
+		}
+		return null;
+	}
+	
+	void putCompressed(String key, byte[] bytes) {
+		Map<String, byte[]> compressed = getCompressedCache();
+		if (compressed != null) {
+			synchronized(compressed) {
+				compressed.put(key, bytes);
+			}
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	private Map<String, byte[]> getCompressedCache() {
+		if (compressed == null && getConfig().getCompressionCacheSize() != null && getConfig().getCompressionCacheSize() > 0) {
+			synchronized(this) {
+				if (compressed == null) {
+					int maxEntries = getConfig().getCompressionCacheSize();
+					compressed = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+						@Override
+						protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+							return size() > maxEntries;
+						}
+					};
+				}
+			}
+		}
+		return compressed;
+	}
+	
+	InsightLive getLive() {
+		if (live == null && getConfig().isLive()) {
+			synchronized(this) {
+				if (live == null) {
+					live = new InsightLive(this);
+				}
+			}
+		}
+		return live;
+	}
+	
+	InsightPermissionCache getPermissionCache() {
+		if (permissionCache == null && getConfig().getPermissionCacheTimeout() != null && getConfig().getPermissionCacheTimeout() > 0) {
+			synchronized(this) {
+				if (permissionCache == null) {
+					permissionCache = new InsightPermissionCache(getConfig().getPermissionCacheTimeout(), getConfig().getPermissionCacheSize() == null ? 1000 : getConfig().getPermissionCacheSize());
+				}
+			}
+		}
+		return permissionCache;
+	}
+	
+	/**
+	 * Forget the outcome of earlier role and permission checks, for example because the roles of a user have changed.
+	 */
+	public void invalidatePermissions() {
+		InsightPermissionCache permissionCache = this.permissionCache;
+		if (permissionCache != null) {
+			permissionCache.invalidate();
+		}
+	}
+	
+	InsightRollup getRollup() {
+		if (rollup == null && getConfig().isRollup()) {
+			synchronized(this) {
+				if (rollup == null) {
+					rollup = new InsightRollup(this);
+				}
+			}
+		}
+		return rollup;
+	}
+	
+	InsightResultCache getCache() {
+		if (cache == null && getConfig().getCacheTimeout() != null && getConfig().getCacheTimeout() > 0) {
+			synchronized(this) {
+				if (cache == null) {
+					// a shared cache replaces the local one, otherwise invalidations would not reach the local copies on the other servers
+					if (getConfig().getCacheProvider() != null) {
+						cache = new InsightSharedCache(this, getConfig().getCacheProvider(), getConfig().getCacheTimeout());
+					}
+					else {
+						cache = new InsightCache(getConfig().getCacheTimeout(), getConfig().getCacheSize() == null ? 100 : getConfig().getCacheSize());
+					}
+				}
+			}
+		}
+		return cache;
+	}
+	
+	/**
+	 * Drop all the cached results for this insight, for example because you know the underlying data has changed.
+	 * A materialized insight is fully rebuilt on the next refresh.
+	 */
+	public void invalidate() {
+		InsightMaterializer materializer = this.materializer;
+		if (materializer != null) {
+			materializer.reset();
+		}
+		InsightColumnar columnar = this.columnar;
+		if (columnar != null) {
+			columnar.reset();
+		}
+		invalidateResults();
+	}
+	
+	void invalidateResults() {
+		InsightResultCache cache = this.cache;
+		if (cache != null) {
+			cache.invalidate();
+		}
+		Map<String, byte[]> compressed = this.compressed;
+		if (compressed != null) {
+			synchronized(compressed) {
+				compressed.clear();
+			}
+		}
+		InsightRowCounter rowCounter = this.rowCounter;
+		if (rowCounter != null) {
+			rowCounter.invalidate();
+		}
+		InsightBuckets buckets = this.buckets;
+		if (buckets != null) {
+			buckets.invalidate();
+		}
+	}
+	
+	private InsightBuckets getBuckets() {
+		if (buckets == null && getConfig().getBucketField() != null) {
+			synchronized(this) {
+				if (buckets == null) {
+					buckets = new InsightBuckets(this);
+				}
+			}
+		}
+		return buckets;
+	}
+	
+	// only if we configured a separate row count strategy
+	private InsightRowCounter getRowCounter() {
+		if (rowCounter == null && (getConfig().isParallelRowCount() || (getConfig().getRowCountTimeout() != null && getConfig().getRowCountTimeout() > 0))) {
+			synchronized(this) {
+				if (rowCounter == null) {
+					rowCounter = new InsightRowCounter(this);
+				}
+			}
+		}
+		return rowCounter;
+	}
+	
+	// the key contains everything that can influence the result, the security context is part of the filters
+	// without the paging it identifies the entire (unpaged) result set
+	String getCacheKey(String connectionId, ComplexContent input, boolean includePaging) {
+		StringBuilder builder = new StringBuilder();
+		appendKey(builder, "connectionId", connectionId);
+		if (input != null) {
+			if (includePaging) {
+				appendKey(builder, "limit", input.get("limit"));
+				appendKey(builder, "offset", input.get("offset"));
+				appendKey(builder, "orderBy", input.get("orderBy"));
+				appendKey(builder, "cursor", input.get("cursor"));
+				appendKey(builder, "totalRowCount", input.get("totalRowCount"));
+			}
+			InsightPlan plan = getPlan();
+			for (int i = 0; i < plan.getParameterNames().size(); i++) {
+				appendKey(builder, plan.getParameterNames().get(i), input.get(plan.getParameterPaths().get(i)));
+			}
+		}
+		return builder.toString();
+	}
+	
+	@SuppressWarnings("rawtypes")
+	static void appendKey(StringBuilder builder, String name, Object value) {
+		builder.append(name).append('=');
+		if (value instanceof Iterable) {
+			builder.append('[');
+			for (Object single : (Iterable) value) {
+				appendValue(builder, single);
+			}
+			builder.append(']');
+		}
+		else {
+			appendValue(builder, value);
+		}
+		builder.append(';');
+	}
+	
+	private static void appendValue(StringBuilder builder, Object value) {
+		if (value == null) {
+			builder.append('-');
+		}
+		else {
+			// dates have a lossy toString()
+			String string = value instanceof Date ? Long.toString(((Date) value).getTime()) : value.toString();
+			// prefix the length so no value can bleed into the next
+			builder.append(string.length()).append(':').append(string);
+		}
+	}
 
 	@Override
 	public Set<String> getReferences() {
@@ -269,47 +1143,129 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 		if (result == null) {
 			synchronized(this) {
 				if (result == null) {
-					DefinedStructure result = new DefinedStructure();
-					result.setSuperType(getConfig().getCoreType());
-					// we default restrict all fields! but we want the extension for further lookups
-					String restrict = null;
-					for (Element<?> child : TypeUtils.getAllChildren((ComplexType) getConfig().getCoreType())) {
-						if (restrict == null) {
-							restrict = "";
-						}
-						else {
-							restrict += ",";
+					this.result = newResult(getId() + ".results", StructureType.RESULT);
+				}
+			}
+		}
+		return result;
+	}
+	
+	// when we calculate approximate aggregates in the JVM, we select the distinct values they are calculated over along with their counts
+	DefinedStructure getSketchResult() {
+		if (sketchResult == null && hasApproximateAggregates()) {
+			synchronized(this) {
+				if (sketchResult == null) {
+					this.sketchResult = newResult(getId() + ".sketch", StructureType.SKETCH);
+				}
+			}
+		}
+		return sketchResult;
+	}
+	
+	// partial aggregates can be merged in the JVM, for averages we need both the sum and the count
+	DefinedStructure getPartialResult() {
+		if (partialResult == null) {
+			synchronized(this) {
+				if (partialResult == null) {
+					this.partialResult = newResult(getId() + ".partial", StructureType.PARTIAL);
+				}
+			}
+		}
+		return partialResult;
+	}
+	
+	// some aggregates can not be calculated by the database
+	boolean hasApproximateAggregates() {
+		for (InsightField field : getConfig().getFields()) {
+			if (Aggregators.isApproximate(field.getAggregate())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private DefinedStructure newResult(String id, StructureType structureType) {
+		DefinedStructure result = newExtension(getConfig().getCoreType(), id);
+		buildStructure(result, this, structureType);
+		return result;
+	}
+	
+	// an extension of the core type that hides all the original fields, the fields you want have to be added explicitly
+	static DefinedStructure newExtension(DefinedType coreType, String id) {
+		DefinedStructure result = new DefinedStructure();
+		result.setSuperType(coreType);
+		// we default restrict all fields! but we want the extension for further lookups
+		String restrict = null;
+		for (Element<?> child : TypeUtils.getAllChildren((ComplexType) coreType)) {
+			if (restrict == null) {
+				restrict = "";
+			}
+			else {
+				restrict += ",";
+			}
+			restrict += child.getName();
+		}
+		result.setProperty(new ValueImpl<String>(RestrictProperty.getInstance(), restrict));
+		result.setId(id);
+		result.setName(coreType == null ? "result" : coreType.getName());
+		String collectionName = coreType == null ? null : ValueUtils.getValue(CollectionNameProperty.getInstance(), coreType.getProperties());
+		if (collectionName != null) {
+			result.setProperty(new ValueImpl<String>(CollectionNameProperty.getInstance(), collectionName));
+		}
+		return result;
+	}
+	
+	// the summary table for materialized insights, it contains a column for every field in the result
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	DefinedStructure getMaterializedResult() {
+		if (materializedResult == null && getConfig().isMaterialized()) {
+			synchronized(this) {
+				if (materializedResult == null) {
+					DefinedStructure materializedResult = new DefinedStructure();
+					// only the fields we actually added, not the restricted ones from the core type
+					for (Element<?> child : getResult()) {
+						if (child.getType() instanceof SimpleType) {
+							materializedResult.add(new SimpleElementImpl(child.getName(), (SimpleType<?>) child.getType(), materializedResult, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 						}
-						restrict += child.getName();
-					}
-					result.setProperty(new ValueImpl<String>(RestrictProperty.getInstance(), restrict));
-					
-					buildStructure(result, this);
-					String id = getId() + ".results";
-					result.setId(id);
-					result.setName(getConfig().getCoreType() == null ? "result" : getConfig().getCoreType().getName());
-					String collectionName = getConfig().getCoreType() == null ? null : ValueUtils.getValue(CollectionNameProperty.getInstance(), getConfig().getCoreType().getProperties());
-					if (collectionName != null) {
-						result.setProperty(new ValueImpl<String>(CollectionNameProperty.getInstance(), collectionName));
 					}
-					this.result = result;
+					materializedResult.setId(getId() + ".materialized");
+					materializedResult.setName("materialized");
+					materializedResult.setProperty(new ValueImpl<String>(CollectionNameProperty.getInstance(), InsightMaterializer.getTableName(this)));
+					this.materializedResult = materializedResult;
 				}
 			}
 		}
-		return result;
+		return materializedResult;
+	}
+	
+	// the state of the summary table, it is shared by all the servers that refresh it
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	DefinedStructure getMaterializedState() {
+		if (materializedState == null && getConfig().isMaterialized()) {
+			synchronized(this) {
+				if (materializedState == null) {
+					DefinedStructure materializedState = new DefinedStructure();
+					materializedState.add(new SimpleElementImpl<String>("insight", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), materializedState));
+					// the watermark has the same type as the field in the core type
+					Element<?> watermark = getConfig().getWatermarkField() == null ? null : ((ComplexType) getConfig().getCoreType()).get(getConfig().getWatermarkField());
+					SimpleType<?> watermarkType = watermark != null && watermark.getType() instanceof SimpleType ? (SimpleType<?>) watermark.getType() : SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class);
+					materializedState.add(new SimpleElementImpl("watermark", watermarkType, materializedState, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					materializedState.add(new SimpleElementImpl<String>("definition", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), materializedState, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					materializedState.setId(getId() + ".materializedState");
+					materializedState.setName("materializedState");
+					materializedState.setProperty(new ValueImpl<String>(CollectionNameProperty.getInstance(), InsightMaterializer.getStateTableName(this)));
+					this.materializedState = materializedState;
+				}
+			}
+		}
+		return materializedState;
 	}
 	
-	private void buildStructure(Structure structure, InsightArtifact artifact) {
+	private void buildStructure(Structure structure, InsightArtifact artifact, StructureType structureType) {
 		Structure placeholder = artifact.getForeign();
 		
 		for (InsightField field : artifact.getConfig().getFields()) {
-			String alias = field.getAlias();
-			if (alias == null) {
-				alias = field.getKey();
-			}
-			else {
-				alias = NamingConvention.LOWER_CAMEL_CASE.apply(NamingConvention.UNDERSCORE.apply(alias));
-			}
+			String alias = getFieldName(field);
 			
 			String aggregate = field.getAggregate();
 			
@@ -321,14 +1277,31 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 			}
 					
 			if (element != null) {
-				Element<?> clone = clone(element, structure, field.getAggregate());
+				boolean approximate = Aggregators.isApproximate(aggregate);
+				boolean partial = structureType == StructureType.PARTIAL || structureType == StructureType.SKETCH;
+				// for partial results we calculate the sum and the count separately so we can merge them
+				// for sketches we group by the values of approximate aggregates and count how often they occur
+				if (partial && ("avg".equals(aggregate) || (approximate && structureType == StructureType.SKETCH))) {
+					if ("avg".equals(aggregate)) {
+						aggregate = "sum";
+					}
+					Element<?> count = clone(element, structure, "count");
+					count.setProperty(new ValueImpl<String>(NameProperty.getInstance(), alias + PARTIAL_COUNT));
+					if (!isForeign) {
+						count.setProperty(new ValueImpl<String>(ForeignNameProperty.getInstance(), field.getKey() + "@" + getConfig().getCoreType().getId()));
+					}
+					count.setProperty(new ValueImpl<String>(CalculationProperty.getInstance(), "count"));
+					structure.add(count);
+				}
+				// the sketch needs the original values
+				Element<?> clone = clone(element, structure, approximate && structureType == StructureType.SKETCH ? null : aggregate);
 				clone.setProperty(new ValueImpl<String>(NameProperty.getInstance(), alias));
 				// if you set an alias, we need the original field for aggregation
 				if (!alias.equals(field.getKey()) && !isForeign) {
 					clone.setProperty(new ValueImpl<String>(ForeignNameProperty.getInstance(), field.getKey() + "@" + getConfig().getCoreType().getId()));
 				}
-				// if we have an aggregate that is not a group by, add it
-				if (aggregate != null && !"group by".equals(aggregate)) {
+				// if we have an aggregate that is not a group by, add it (unless the database can't calculate it)
+				if (aggregate != null && !"group by".equals(aggregate) && !approximate) {
 					clone.setProperty(new ValueImpl<String>(CalculationProperty.getInstance(), aggregate));
 				}
 				structure.add(clone);
@@ -336,17 +1309,33 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 		}
 	}
 	
+	// the name of the field in the result
+	static String getFieldName(InsightField field) {
+		if (field.getAlias() == null) {
+			return field.getKey();
+		}
+		return NamingConvention.LOWER_CAMEL_CASE.apply(NamingConvention.UNDERSCORE.apply(field.getAlias()));
+	}
+	
+	static boolean isGroupBy(InsightField field) {
+		return field.getAggregate() == null || "group by".equals(field.getAggregate());
+	}
+	
 	private Element<?> clone(Element<?> element, Structure structure, String aggregate) {
 		// a count always transform into a number, the rest inherit the type of the original
-		if ("count".equals(aggregate)) {
+		if ("count".equals(aggregate) || "approx_count_distinct".equals(aggregate)) {
 			return new SimpleElementImpl<Long>(element.getName(), SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Long.class), structure, element.getProperties());
 		}
+		// percentiles are interpolated over numeric values
+		else if (Aggregators.isApproximate(aggregate)) {
+			return new SimpleElementImpl<Double>(element.getName(), SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Double.class), structure, element.getProperties());
+		}
 		else {
 			return TypeBaseUtils.clone(element, structure);
 		}
 	}
 
-	private Map<String, EventSubscription<?, ?>> subscriptions = new HashMap<String, EventSubscription<?, ?>>();
+	private Map<String, InsightListener> listeners = new HashMap<String, InsightListener>();
 	
 	@Override
 	public String getPath() {
@@ -364,7 +1353,7 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 		return path;
 	}
 	
-	private String getName() {
+	String getName() {
 		String name = getConfig().getName();
 		// we base the name off the id rather than the core type, you can have multiple insights per type
 		if (name == null || name.trim().isEmpty()) {
@@ -398,7 +1387,7 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 
 	@Override
 	public List<String> getProduces() {
-		return Arrays.asList("application/json", "application/xml");
+		return Arrays.asList("application/json", "application/xml", InsightColumnarBinding.CONTENT_TYPE, InsightCSVBinding.CONTENT_TYPE);
 	}
 
 	// there is no input, it is a GET service
@@ -432,6 +1421,8 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 		parameters.add(new SimpleElementImpl<Integer>("limit", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 		parameters.add(new SimpleElementImpl<Long>("offset", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Long.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 		parameters.add(new SimpleElementImpl<String>("orderBy", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0), new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+		parameters.add(new SimpleElementImpl<String>("cursor", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+		parameters.add(new SimpleElementImpl<Boolean>("totalRowCount", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Boolean.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
 		if (getConfig().getFilters() != null) {
 			Element<?> parent = getSecurityContext();
 			List<String> alreadyDefined = new ArrayList<String>();
@@ -484,7 +1475,7 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 			}
 			@Override
 			public String getAction() {
-				return "insight." + getName();
+				return getPermissionAction();
 			}
 		});
 		return permissions;
@@ -508,7 +1499,7 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 	@Override
 	public void start(WebApplication application, String path) throws IOException {
 		String key = getKey(application, path);
-		if (subscriptions.containsKey(key)) {
+		if (listeners.containsKey(key)) {
 			stop(application, path);
 		}
 		String restPath = application.getServerPath();
@@ -518,29 +1509,21 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 			}
 			restPath += path.replaceFirst("^[/]+", "");
 		}
-		String parentPath = restPath;
-		if (getConfig().getBasePath() != null) {
-			if (!restPath.endsWith("/")) {
-				restPath += "/";
-			}
-			restPath += getConfig().getBasePath().replaceFirst("^[/]+", "");
-		}
-		synchronized(subscriptions) {
-			InsightListener listener = new InsightListener(application, this, parentPath, getPath(), Charset.forName("UTF-8"));
-			EventSubscription<HTTPRequest, HTTPResponse> subscription = application.getDispatcher().subscribe(HTTPRequest.class, listener);
-			subscription.filter(HTTPServerUtils.limitToPath(restPath));
-			subscriptions.put(key, subscription);
+		synchronized(listeners) {
+			// all the insights in the application share a single router
+			InsightListener listener = new InsightListener(application, this, restPath, getPath(), Charset.forName("UTF-8"));
+			InsightRouter.register(application, listener);
+			listeners.put(key, listener);
 		}		
 	}
 
 	@Override
 	public void stop(WebApplication artifact, String path) {
 		String key = getKey(artifact, path);
-		if (subscriptions.containsKey(key)) {
-			synchronized(subscriptions) {
-				if (subscriptions.containsKey(key)) {
-					subscriptions.get(key).unsubscribe();
-					subscriptions.remove(key);
+		if (listeners.containsKey(key)) {
+			synchronized(listeners) {
+				if (listeners.containsKey(key)) {
+					InsightRouter.unregister(artifact, listeners.remove(key));
 				}
 			}
 		}
@@ -548,7 +1531,55 @@ public class InsightArtifact extends JAXBArtifact<InsightConfiguration> implemen
 
 	@Override
 	public boolean isStarted(WebApplication artifact, String path) {
-		return subscriptions.containsKey(getKey(artifact, path));
+		return listeners.containsKey(getKey(artifact, path));
+	}
+
+	@Override
+	public void start() throws IOException {
+		if (getConfig().isColumnar()) {
+			synchronized(this) {
+				if (columnar == null) {
+					columnar = new InsightColumnar(this);
+				}
+			}
+			columnar.start();
+		}
+		if (getConfig().isMaterialized()) {
+			synchronized(this) {
+				if (materializer == null) {
+					materializer = new InsightMaterializer(this);
+				}
+			}
+			materializer.start();
+		}
+	}
+
+	@Override
+	public void stop() throws IOException {
+		InsightMaterializer materializer = this.materializer;
+		if (materializer != null) {
+			materializer.stop();
+		}
+		InsightColumnar columnar = this.columnar;
+		if (columnar != null) {
+			columnar.stop();
+		}
+		InsightLive live = this.live;
+		if (live != null) {
+			live.stop();
+		}
+		InsightReplicas replicas = this.replicas;
+		if (replicas != null) {
+			replicas.stop();
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		InsightMaterializer materializer = this.materializer;
+		InsightColumnar columnar = this.columnar;
+		return (!getConfig().isMaterialized() || (materializer != null && materializer.isStarted()))
+			&& (!getConfig().isColumnar() || (columnar != null && columnar.isStarted()));
 	}
 
 	@Override
@@ -32,6 +32,7 @@ import be.nabu.eai.developer.impl.CustomTooltip;
 import be.nabu.eai.developer.managers.base.BaseArtifactGUIInstance;
 import be.nabu.eai.developer.managers.base.BaseJAXBGUIManager;
 import be.nabu.eai.developer.managers.util.SimpleProperty;
+import be.nabu.eai.module.services.insight.aggregate.Aggregators;
 import be.nabu.eai.module.services.crud.CRUDArtifact;
 import be.nabu.eai.module.services.crud.CRUDArtifactGUIManager;
 import be.nabu.eai.module.services.crud.CRUDArtifactGUIManager.Redrawer;
@@ -333,6 +334,8 @@ public class InsightArtifactGUIManager extends BaseJAXBGUIManager<InsightConfigu
 			// especially postgres has a number of additional aggregates that can be nice to use but definitely not portable
 			// STDEV (mssql), stddev (postgres, oracle) is also rather widely available, stddev in postgres is an alias for STDDEV_SAMP which also exists in h2
 			aggregate.getItems().addAll("avg", "count", "group by", "max", "min", "sum");
+			// these are calculated in the JVM
+			aggregate.getItems().addAll(Aggregators.getApproximate());
 			aggregate.getSelectionModel().select(field.getAggregate() == null ? "group by" : field.getAggregate());
 			row.getChildren().add(aggregate);
 			
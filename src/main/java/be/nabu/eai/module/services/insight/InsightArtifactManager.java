@@ -45,15 +45,30 @@ public class InsightArtifactManager extends JAXBArtifactManager<InsightConfigura
 	@Override
 	public List<Entry> addChildren(ModifiableEntry parent, InsightArtifact artifact) throws IOException {
 		List<Entry> entries = new ArrayList<Entry>();
+		addChild(parent, artifact, artifact.getResult(), "results", entries);
+		if (artifact.getConfig().getPartitionField() != null || artifact.getConfig().getBucketField() != null) {
+			addChild(parent, artifact, artifact.getPartialResult(), "partial", entries);
+		}
+		if (artifact.getSketchResult() != null) {
+			addChild(parent, artifact, artifact.getSketchResult(), "sketch", entries);
+		}
+		if (artifact.getMaterializedResult() != null) {
+			addChild(parent, artifact, artifact.getMaterializedResult(), "materialized", entries);
+			addChild(parent, artifact, artifact.getMaterializedState(), "materializedState", entries);
+		}
+		return entries;
+	}
+	
+	// the types are registered in the repository so the jdbc services can resolve them
+	private void addChild(ModifiableEntry parent, InsightArtifact artifact, DefinedStructure structure, String name, List<Entry> entries) {
 		EAINode node = new EAINode();
 		node.setArtifactClass(DefinedStructure.class);
-		node.setArtifact(artifact.getResult());
+		node.setArtifact(structure);
 		node.setLeaf(true);
-		Entry childEntry = new MemoryEntry(artifact.getId(), parent.getRepository(), parent, node, artifact.getResult().getId(), "results");
+		Entry childEntry = new MemoryEntry(artifact.getId(), parent.getRepository(), parent, node, structure.getId(), name);
 		node.setEntry(childEntry);
 		parent.addChildren(childEntry);
 		entries.add(childEntry);
-		return entries;
 	}
 	
 	@Override
@@ -0,0 +1,268 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import be.nabu.eai.module.web.application.WebApplication;
+import be.nabu.eai.module.web.application.WebApplicationUtils;
+import be.nabu.libs.authentication.api.Device;
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.http.HTTPCodes;
+import be.nabu.libs.http.HTTPException;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.libs.resources.URIUtils;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.json.JSONBinding;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.mime.api.ContentPart;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.PlainMimeContentPart;
+
+/**
+ * Runs multiple insight requests that arrive in a single POST, for example: {"requests": [{"id": "orders", "uri": "/api/orders?limit=10"}, ...]}
+ * The token and device are resolved once, the insights run in parallel and the response contains the status and the result of every request under its id.
+ * Every request still goes through the role, rate limit and permission checks of its insight, one failing request does not fail the batch.
+ */
+public class InsightBatch {
+	
+	// the last segment of the path, relative to where the insights are mounted
+	public static final String PATH = "batch";
+	// a single batch should not be able to monopolize the workers
+	private static final int MAX_REQUESTS = 50;
+	// how many requests of a single batch run at the same time, including the one on the calling thread
+	private static final int MAX_PARALLEL = Integer.parseInt(System.getProperty("insight.batchParallelism", "4"));
+	
+	private static volatile Structure requestType;
+	
+	private WebApplication application;
+	private InsightRouter router;
+	private Charset charset;
+
+	public InsightBatch(WebApplication application, InsightRouter router, Charset charset) {
+		this.application = application;
+		this.router = router;
+		this.charset = charset;
+	}
+	
+	public HTTPResponse handle(HTTPRequest request) {
+		Token token = null;
+		Device device = null;
+		List<FutureTask<ComplexContent>> futures = new ArrayList<FutureTask<ComplexContent>>();
+		try {
+			WebApplicationUtils.checkOffline(application, request);
+			token = WebApplicationUtils.getToken(application, request);
+			device = WebApplicationUtils.getDevice(application, request, token);
+			
+			if (!(request.getContent() instanceof ContentPart) || ((ContentPart) request.getContent()).getReadable() == null) {
+				throw new HTTPException(400, "A batch request needs a body");
+			}
+			ComplexContent batch = new JSONBinding(getRequestType(), charset).unmarshal(IOUtils.toInputStream(((ContentPart) request.getContent()).getReadable()), new Window[0]);
+			List<?> requests = batch == null ? null : (List<?>) batch.get("requests");
+			if (requests == null || requests.isEmpty()) {
+				throw new HTTPException(400, "A batch request needs at least one request");
+			}
+			if (requests.size() > MAX_REQUESTS) {
+				throw new HTTPException(400, "A batch can contain at most " + MAX_REQUESTS + " requests");
+			}
+			
+			// either a future or an exception
+			Map<String, Object> results = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < requests.size(); i++) {
+				ComplexContent single = (ComplexContent) requests.get(i);
+				String id = single == null || single.get("id") == null ? Integer.toString(i) : (String) single.get("id");
+				if (results.containsKey(id)) {
+					throw new HTTPException(400, "Duplicate request id in batch: " + id);
+				}
+				String uri = single == null ? null : (String) single.get("uri");
+				if (uri == null) {
+					results.put(id, new HTTPException(400, "No uri for request: " + id));
+					continue;
+				}
+				URI parsed;
+				try {
+					parsed = new URI(uri);
+				}
+				catch (URISyntaxException e) {
+					results.put(id, new HTTPException(400, "Invalid uri for request: " + id));
+					continue;
+				}
+				Map<String, String> pathParameters = new HashMap<String, String>();
+				InsightListener listener = router.route(URIUtils.normalize(parsed.getPath()), pathParameters);
+				if (listener == null) {
+					results.put(id, new HTTPException(404, "No insight found for request: " + id));
+					continue;
+				}
+				Token resolvedToken = token;
+				Device resolvedDevice = device;
+				FutureTask<ComplexContent> future = new FutureTask<ComplexContent>(new Callable<ComplexContent>() {
+					@Override
+					public ComplexContent call() throws Exception {
+						return listener.execute(request, parsed, pathParameters, resolvedToken, resolvedDevice);
+					}
+				});
+				futures.add(future);
+				results.put(id, future);
+			}
+			
+			// a limited amount of lanes each take the next request until there are none left, the calling thread is one of them
+			Queue<FutureTask<ComplexContent>> pending = new ConcurrentLinkedQueue<FutureTask<ComplexContent>>(futures);
+			Runnable lane = new Runnable() {
+				@Override
+				public void run() {
+					FutureTask<ComplexContent> next;
+					while ((next = pending.poll()) != null) {
+						next.run();
+					}
+				}
+			};
+			for (int i = 1; i < Math.min(MAX_PARALLEL, futures.size()); i++) {
+				try {
+					InsightExecutors.getWorkers().execute(lane);
+				}
+				catch (RejectedExecutionException e) {
+					break;
+				}
+			}
+			lane.run();
+			
+			ByteBuffer buffer = IOUtils.newByteBuffer();
+			OutputStream stream = IOUtils.toOutputStream(buffer);
+			Writer writer = new OutputStreamWriter(stream, charset);
+			writer.write("{");
+			boolean first = true;
+			for (Map.Entry<String, Object> entry : results.entrySet()) {
+				if (first) {
+					first = false;
+				}
+				else {
+					writer.write(",");
+				}
+				InsightBinding.writeJSONString(writer, entry.getKey());
+				writer.write(":");
+				Object result = entry.getValue();
+				if (result instanceof Future) {
+					try {
+						result = ((Future<?>) result).get();
+					}
+					catch (ExecutionException e) {
+						result = e.getCause() instanceof HTTPException ? e.getCause() : new HTTPException(500, "Could not execute service", "Could not execute batch request: " + entry.getKey(), e.getCause(), token);
+					}
+				}
+				if (result instanceof HTTPException) {
+					writer.write("{\"status\":" + ((HTTPException) result).getCode() + ",\"message\":");
+					InsightBinding.writeJSONString(writer, ((HTTPException) result).getMessage());
+					writer.write("}");
+				}
+				else {
+					writer.write("{\"status\":200");
+					if (result != null) {
+						writer.write(",\"body\":");
+						// the binding writes to the underlying stream
+						writer.flush();
+						new JSONBinding(((ComplexContent) result).getType(), charset).marshal(stream, (ComplexContent) result);
+					}
+					writer.write("}");
+				}
+			}
+			writer.write("}");
+			writer.flush();
+			
+			List<Header> headers = new ArrayList<Header>();
+			headers.add(new MimeHeader("Content-Type", "application/json; charset=" + charset.name()));
+			headers.add(new MimeHeader("Content-Length", "" + buffer.remainingData()));
+			// every user gets a different answer
+			headers.add(new MimeHeader("Cache-Control", "no-store"));
+			return new DefaultHTTPResponse(request, 200, HTTPCodes.getMessage(200), new PlainMimeContentPart(null,
+				buffer,
+				headers.toArray(new Header[headers.size()])
+			));
+		}
+		catch (HTTPException e) {
+			if (e.getToken() == null) {
+				e.setToken(token);
+			}
+			if (e.getDevice() == null) {
+				e.setDevice(device);
+			}
+			throw e;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HTTPException(500, "Could not execute batch", "Could not execute batch", e, token);
+		}
+		catch (Exception e) {
+			HTTPException httpException = new HTTPException(500, "Could not execute batch", "Could not execute batch", e, token);
+			httpException.setDevice(device);
+			throw httpException;
+		}
+		finally {
+			// does nothing for the requests that are done
+			for (FutureTask<ComplexContent> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Structure getRequestType() {
+		if (requestType == null) {
+			synchronized(InsightBatch.class) {
+				if (requestType == null) {
+					Structure single = new Structure();
+					single.setName("request");
+					single.add(new SimpleElementImpl<String>("id", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), single, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					single.add(new SimpleElementImpl<String>("uri", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), single, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					Structure batch = new Structure();
+					batch.setName("batch");
+					batch.add(new ComplexElementImpl("requests", single, batch, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0), new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+					requestType = batch;
+				}
+			}
+		}
+		return requestType;
+	}
+}
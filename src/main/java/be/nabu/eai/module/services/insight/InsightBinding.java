@@ -0,0 +1,102 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.Marshallable;
+import be.nabu.libs.types.binding.api.MarshallableBinding;
+
+/**
+ * Base for the tabular output formats of an insight, the results of an insight are always flat so they map well onto columns.
+ */
+abstract public class InsightBinding implements MarshallableBinding {
+
+	private ComplexType resultType;
+	private Charset charset;
+
+	public InsightBinding(ComplexType resultType, Charset charset) {
+		this.resultType = resultType;
+		this.charset = charset;
+	}
+	
+	abstract public String getContentType();
+	
+	// the columns in the order they are defined in
+	protected List<Element<?>> getColumns() {
+		List<Element<?>> columns = new ArrayList<Element<?>>();
+		for (Element<?> child : TypeUtils.getAllChildren(resultType)) {
+			columns.add(child);
+		}
+		return columns;
+	}
+	
+	@SuppressWarnings("unchecked")
+	protected List<ComplexContent> getResults(ComplexContent output) {
+		List<ComplexContent> results = (List<ComplexContent>) output.get("results");
+		return results == null ? new ArrayList<ComplexContent>() : results;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected static String format(Element<?> element, Object value) {
+		if (value == null) {
+			return null;
+		}
+		else if (element.getType() instanceof Marshallable) {
+			return ((Marshallable) element.getType()).marshal(value);
+		}
+		else if (value instanceof Date) {
+			return Long.toString(((Date) value).getTime());
+		}
+		return value.toString();
+	}
+	
+	protected static void writeJSONString(Writer writer, String value) throws IOException {
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char character = value.charAt(i);
+			switch (character) {
+				case '"': writer.write("\\\""); break;
+				case '\\': writer.write("\\\\"); break;
+				case '\n': writer.write("\\n"); break;
+				case '\r': writer.write("\\r"); break;
+				case '\t': writer.write("\\t"); break;
+				default:
+					if (character < 0x20) {
+						writer.write(String.format("\\u%04x", (int) character));
+					}
+					else {
+						writer.write(character);
+					}
+			}
+		}
+		writer.write('"');
+	}
+	
+	public Charset getCharset() {
+		return charset;
+	}
+}
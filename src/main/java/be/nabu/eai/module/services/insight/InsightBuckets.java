@@ -0,0 +1,216 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.eai.module.services.insight.InsightCache.InsightResult;
+import be.nabu.eai.module.services.insight.aggregate.InsightAggregation;
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * Splits a query with a lower bound on the bucket field into calendar buckets (e.g. per day or month).
+ * Buckets that lie entirely in the past don't change anymore, their (mergeable) aggregates are cached without expiry and only the open buckets are queried again.
+ * The cache is size bounded and dropped when the insight is invalidated.
+ */
+public class InsightBuckets {
+	
+	// more than this and we don't bother
+	private static final int MAX_BUCKETS = 1000;
+	
+	private InsightArtifact artifact;
+	private Map<String, InsightAggregation> closed;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	
+	@SuppressWarnings("serial")
+	public InsightBuckets(InsightArtifact artifact) {
+		this.artifact = artifact;
+		int maxEntries = artifact.getConfig().getBucketCacheSize() == null ? 1000 : artifact.getConfig().getBucketCacheSize();
+		this.closed = new LinkedHashMap<String, InsightAggregation>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, InsightAggregation> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	/**
+	 * Returns null if the query can not be bucketed.
+	 */
+	InsightResult select(ExecutionContext executionContext, InsightQuery query) throws ServiceException {
+		String field = artifact.getConfig().getBucketField();
+		Filter lower = null, upper = null;
+		for (int i = 0; i < query.getFilters().size(); i++) {
+			Filter filter = query.getFilters().get(i);
+			if (field.equals(filter.getKey()) && InsightPartitioner.isStandalone(query.getFilters(), i) && filter.getValues() != null && filter.getValues().size() == 1 && filter.getValues().get(0) instanceof Date) {
+				if (">".equals(filter.getOperator()) || ">=".equals(filter.getOperator())) {
+					lower = filter;
+				}
+				else if ("<".equals(filter.getOperator()) || "<=".equals(filter.getOperator())) {
+					upper = filter;
+				}
+			}
+		}
+		if (lower == null) {
+			return null;
+		}
+		List<Filter> others = new ArrayList<Filter>(query.getFilters());
+		others.remove(lower);
+		others.remove(upper);
+		
+		long now = System.currentTimeMillis();
+		// data can still arrive a while after the fact
+		long closedBefore = now - (artifact.getConfig().getBucketGracePeriod() == null ? 0 : artifact.getConfig().getBucketGracePeriod());
+		long from = ((Date) lower.getValues().get(0)).getTime();
+		long to = upper == null ? now : ((Date) upper.getValues().get(0)).getTime();
+		
+		// the key for everything except the bucket boundaries
+		StringBuilder builder = new StringBuilder();
+		InsightArtifact.appendKey(builder, "connectionId", query.getConnectionId());
+		for (Filter filter : others) {
+			// the flags change the meaning of the filter so they are part of the key
+			InsightArtifact.appendKey(builder, filter.getKey() + " " + filter.getOperator() + (filter.isOr() ? " or" : "") + (filter.isCaseInsensitive() ? " ci" : ""), filter.getValues());
+		}
+		String baseKey = builder.toString();
+		
+		InsightAggregation aggregation = artifact.newAggregation();
+		List<InsightQuery> open = new ArrayList<InsightQuery>();
+		List<String> openKeys = new ArrayList<String>();
+		if (from > to) {
+			return null;
+		}
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(from);
+		truncate(calendar);
+		int amount = 0;
+		long start = from;
+		while (true) {
+			if (++amount > MAX_BUCKETS) {
+				return null;
+			}
+			next(calendar);
+			long end = calendar.getTimeInMillis();
+			boolean last = end >= to;
+			Filter startFilter = start == from ? InsightQuery.copy(lower) : InsightPartitioner.newFilter(lower, ">=", new Date(start));
+			Filter endFilter = last && upper != null ? InsightQuery.copy(upper) : InsightPartitioner.newFilter(upper == null ? lower : upper, "<", new Date(last ? to : end));
+			
+			builder = new StringBuilder(baseKey);
+			InsightArtifact.appendKey(builder, startFilter.getOperator(), start);
+			InsightArtifact.appendKey(builder, endFilter.getOperator(), last ? to : end);
+			String key = builder.toString();
+			
+			// a bucket without an upper bound is always open
+			boolean isClosed = upper != null || !last;
+			isClosed &= (last ? to : end) <= closedBefore;
+			InsightAggregation cached = null;
+			if (isClosed) {
+				synchronized(closed) {
+					cached = closed.get(key);
+				}
+			}
+			if (cached != null) {
+				hits.incrementAndGet();
+				aggregation.merge(cached);
+				artifact.checkSketchGroups(aggregation);
+			}
+			else {
+				misses.incrementAndGet();
+				InsightQuery bucket = new InsightQuery();
+				bucket.setConnectionId(query.getConnectionId());
+				bucket.getFilters().addAll(InsightQuery.copy(others));
+				bucket.getFilters().add(startFilter);
+				bucket.getFilters().add(endFilter);
+				open.add(bucket);
+				openKeys.add(isClosed ? key : null);
+			}
+			if (last) {
+				break;
+			}
+			start = end;
+		}
+		// we run the remaining buckets in parallel
+		if (!open.isEmpty()) {
+			List<InsightAggregation> aggregations = InsightPartitioner.aggregateAll(artifact, executionContext, open);
+			for (int i = 0; i < aggregations.size(); i++) {
+				if (openKeys.get(i) != null) {
+					synchronized(closed) {
+						closed.put(openKeys.get(i), aggregations.get(i));
+					}
+				}
+				aggregation.merge(aggregations.get(i));
+				artifact.checkSketchGroups(aggregation);
+			}
+		}
+		return artifact.toResult(aggregation, query);
+	}
+	
+	private void truncate(Calendar calendar) {
+		String interval = getInterval();
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		if (!"hour".equals(interval)) {
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+		}
+		if ("week".equals(interval)) {
+			calendar.set(Calendar.DAY_OF_WEEK, calendar.getFirstDayOfWeek());
+		}
+		else if ("month".equals(interval) || "year".equals(interval)) {
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+		}
+		if ("year".equals(interval)) {
+			calendar.set(Calendar.MONTH, Calendar.JANUARY);
+		}
+	}
+	
+	private void next(Calendar calendar) {
+		switch(getInterval()) {
+			case "hour": calendar.add(Calendar.HOUR_OF_DAY, 1); break;
+			case "week": calendar.add(Calendar.WEEK_OF_YEAR, 1); break;
+			case "month": calendar.add(Calendar.MONTH, 1); break;
+			case "year": calendar.add(Calendar.YEAR, 1); break;
+			default: calendar.add(Calendar.DATE, 1);
+		}
+	}
+	
+	private String getInterval() {
+		return artifact.getConfig().getBucketInterval() == null ? "day" : artifact.getConfig().getBucketInterval().toLowerCase();
+	}
+	
+	public void invalidate() {
+		synchronized(closed) {
+			closed.clear();
+		}
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+}
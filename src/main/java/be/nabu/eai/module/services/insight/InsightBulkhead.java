@@ -0,0 +1,118 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much of a resource can be in use at the same time, either by a single insight or by all the insights on a connection.
+ * Each query takes as many permits as its cost, so heavy insights take a larger share than cheap ones.
+ * Queries that can't run immediately wait in a bounded queue, once that is full (or the wait takes too long) they are rejected rather than piling up.
+ */
+public class InsightBulkhead {
+	
+	// the connection bulkheads are shared by all insights, they are sized by the first insight that uses them
+	private static Map<String, InsightBulkhead> connections = new HashMap<String, InsightBulkhead>();
+	
+	private int capacity, maxQueue;
+	private Semaphore permits;
+	private AtomicInteger waiting = new AtomicInteger();
+	private AtomicLong rejected = new AtomicLong();
+	
+	public InsightBulkhead(int capacity, int maxQueue) {
+		this.capacity = capacity;
+		this.maxQueue = maxQueue;
+		// fair so queries are admitted in the order they arrived and heavy ones don't starve
+		this.permits = new Semaphore(capacity, true);
+	}
+	
+	public static InsightBulkhead getConnection(String connectionId, int capacity, int maxQueue) {
+		synchronized(connections) {
+			InsightBulkhead bulkhead = connections.get(connectionId);
+			if (bulkhead == null) {
+				bulkhead = new InsightBulkhead(capacity, maxQueue);
+				connections.put(connectionId, bulkhead);
+			}
+			return bulkhead;
+		}
+	}
+	
+	/**
+	 * Returns the amount of permits taken (to be released afterwards) or -1 if the query is rejected.
+	 */
+	public int acquire(int cost, long timeout) throws InterruptedException {
+		// a query can never cost more than everything
+		int weight = Math.max(1, Math.min(cost, capacity));
+		// the untimed variant would barge in front of the queries that are already waiting
+		if (permits.tryAcquire(weight, 0, TimeUnit.MILLISECONDS)) {
+			return weight;
+		}
+		if (waiting.incrementAndGet() > maxQueue) {
+			waiting.decrementAndGet();
+			rejected.incrementAndGet();
+			return -1;
+		}
+		try {
+			if (permits.tryAcquire(weight, timeout, TimeUnit.MILLISECONDS)) {
+				return weight;
+			}
+			rejected.incrementAndGet();
+			return -1;
+		}
+		finally {
+			waiting.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Take the permits only if they are available right now (and no one is waiting for them), returns -1 otherwise.
+	 * This is not counted as a rejection, the caller has an alternative.
+	 */
+	public int tryAcquire(int cost) {
+		int weight = Math.max(1, Math.min(cost, capacity));
+		try {
+			return permits.tryAcquire(weight, 0, TimeUnit.MILLISECONDS) ? weight : -1;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return -1;
+		}
+	}
+	
+	public void release(int weight) {
+		permits.release(weight);
+	}
+	
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+	public int getInUse() {
+		return capacity - permits.availablePermits();
+	}
+	public long getRejected() {
+		return rejected.get();
+	}
+	public int getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Writes the results as csv (RFC 4180) with a header row, each row is written as soon as it is formatted.
+ * Paging information is not part of the csv, it is only useful for complete exports.
+ */
+public class InsightCSVBinding extends InsightBinding {
+
+	public static final String CONTENT_TYPE = "text/csv";
+	
+	public InsightCSVBinding(ComplexType resultType, Charset charset) {
+		super(resultType, charset);
+	}
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public void marshal(OutputStream output, ComplexContent content, Value<?>... values) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, getCharset()));
+		List<Element<?>> columns = getColumns();
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			writeField(writer, columns.get(i).getName());
+		}
+		writer.write("\r\n");
+		for (ComplexContent result : getResults(content)) {
+			for (int i = 0; i < columns.size(); i++) {
+				if (i > 0) {
+					writer.write(',');
+				}
+				writeField(writer, format(columns.get(i), result.get(columns.get(i).getName())));
+			}
+			writer.write("\r\n");
+		}
+		writer.flush();
+	}
+	
+	private static void writeField(Writer writer, String value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+			writer.write('"');
+			writer.write(value.replace("\"", "\"\""));
+			writer.write('"');
+		}
+		else {
+			writer.write(value);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A simple in-memory LRU cache for insight results.
+ * Entries expire after the configured timeout and the least recently used entries are evicted once we go over the maximum size.
+ * The cache keeps its own snapshot of a result and hands out copies with a read-only list of records, so whoever uses the result can not change what the next request gets.
+ * The records themselves are shared.
+ */
+public class InsightCache implements InsightResultCache {
+
+	private long timeout;
+	private int maxEntries;
+	private Map<String, InsightResult> entries;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	@SuppressWarnings("serial")
+	public InsightCache(long timeout, int maxEntries) {
+		this.timeout = timeout;
+		this.maxEntries = maxEntries;
+		// access order so we evict the least recently used
+		this.entries = new LinkedHashMap<String, InsightResult>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, InsightResult> eldest) {
+				if (size() > InsightCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public InsightResult get(String key) {
+		synchronized(entries) {
+			InsightResult result = entries.get(key);
+			// expired entries are left in place (see getExpired()), they are overwritten or pruned later on
+			if (result != null && result.getCreated() < System.currentTimeMillis() - timeout) {
+				result = null;
+			}
+			if (result == null) {
+				misses.incrementAndGet();
+			}
+			else {
+				hits.incrementAndGet();
+			}
+			return result == null ? null : result.copy();
+		}
+	}
+	
+	@Override
+	public InsightResult peek(String key) {
+		synchronized(entries) {
+			InsightResult result = entries.get(key);
+			return result == null || result.getCreated() < System.currentTimeMillis() - timeout ? null : result.copy();
+		}
+	}
+	
+	@Override
+	public Long getHash(String key) {
+		synchronized(entries) {
+			InsightResult result = entries.get(key);
+			return result == null || result.getCreated() < System.currentTimeMillis() - timeout ? null : result.getHash();
+		}
+	}
+	
+	@Override
+	public void putHash(String key, long created, long hash) {
+		synchronized(entries) {
+			InsightResult result = entries.get(key);
+			// only if it is still the same result
+			if (result != null && result.getCreated() == created) {
+				result.setHash(hash);
+			}
+		}
+	}
+
+	// get the entry even if it has expired (as long as it was not evicted yet), this does not count towards the statistics
+	public InsightResult getExpired(String key) {
+		synchronized(entries) {
+			InsightResult result = entries.get(key);
+			return result == null ? null : result.copy();
+		}
+	}
+
+	@Override
+	public void put(String key, InsightResult result) {
+		synchronized(entries) {
+			// rather drop expired entries than live ones
+			if (entries.size() >= maxEntries) {
+				prune();
+			}
+			InsightResult snapshot = result.copy();
+			snapshot.results = result.getResults() == null ? null : Collections.unmodifiableList(new ArrayList<Object>(result.getResults()));
+			entries.put(key, snapshot);
+		}
+	}
+
+	@Override
+	public void invalidate() {
+		synchronized(entries) {
+			entries.clear();
+		}
+	}
+
+	// remove all the expired entries, the rest is cleaned up lazily
+	private void prune() {
+		synchronized(entries) {
+			long expired = System.currentTimeMillis() - timeout;
+			// iterating does not update the access order, unlike get()
+			Iterator<InsightResult> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().getCreated() < expired) {
+					iterator.remove();
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+	public long getEvictions() {
+		return evictions.get();
+	}
+	public long getTimeout() {
+		return timeout;
+	}
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public static class InsightResult {
+		private List<?> results;
+		private Long totalRowCount;
+		// the cursor to the next page, if any
+		private String cursor;
+		// whether the total row count is an estimate
+		private boolean estimated;
+		private long created = System.currentTimeMillis();
+		// the hash of the output, calculated on demand
+		private volatile Long hash;
+
+		public InsightResult(List<?> results, Long totalRowCount) {
+			this.results = results;
+			this.totalRowCount = totalRowCount;
+		}
+		public List<?> getResults() {
+			return results;
+		}
+		public Long getTotalRowCount() {
+			return totalRowCount;
+		}
+		public void setTotalRowCount(Long totalRowCount) {
+			this.totalRowCount = totalRowCount;
+		}
+		public boolean isEstimated() {
+			return estimated;
+		}
+		public void setEstimated(boolean estimated) {
+			this.estimated = estimated;
+		}
+		public String getCursor() {
+			return cursor;
+		}
+		public void setCursor(String cursor) {
+			this.cursor = cursor;
+		}
+		public long getCreated() {
+			return created;
+		}
+		public void setCreated(long created) {
+			this.created = created;
+		}
+		public Long getHash() {
+			return hash;
+		}
+		public void setHash(Long hash) {
+			this.hash = hash;
+		}
+		// a copy that shares the records
+		public InsightResult copy() {
+			InsightResult copy = new InsightResult(results, totalRowCount);
+			copy.cursor = cursor;
+			copy.estimated = estimated;
+			copy.created = created;
+			copy.hash = hash;
+			return copy;
+		}
+	}
+}
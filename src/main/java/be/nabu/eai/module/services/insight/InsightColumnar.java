@@ -0,0 +1,1018 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.api.NamingConvention;
+import be.nabu.eai.module.services.crud.CRUDFilter;
+import be.nabu.eai.module.services.insight.InsightCache.InsightResult;
+import be.nabu.eai.module.services.insight.aggregate.GroupTable;
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.properties.PrimaryKeyProperty;
+
+/**
+ * Keeps a copy of the columns an insight needs in memory so queries can be answered without going to the database.
+ * 
+ * Numbers and dates are stored in primitive arrays, everything else is dictionary encoded.
+ * A query first narrows down a selection of row indexes one filter at a time, then groups and aggregates the selected rows.
+ * Large tables are split into chunks that are scanned in parallel on the fork/join pool, the partial aggregates are merged afterwards.
+ * 
+ * The first load (after every start) reads the entire table, after that the watermark field is used to only load the records that changed.
+ * Changed records replace their previous version based on the primary key, without a watermark field or a primary key we always do a full load.
+ * Deletes are only picked up by a full load which happens at least every hour.
+ */
+public class InsightColumnar {
+
+	private static final long FULL_LOAD_INTERVAL = 3600000;
+	// the amount of rows a single task scans
+	private static final int CHUNK_SIZE = 65536;
+	private static final int FETCH_SIZE = 10000;
+	
+	private static ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "insight-columnar");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private enum Kind {
+		LONG, DOUBLE, DATE, DICTIONARY
+	}
+	
+	private enum Aggregate {
+		SUM, COUNT, MIN, MAX, AVG
+	}
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private InsightArtifact artifact;
+	private ScheduledFuture<?> future;
+	private volatile Table table;
+	// the highest watermark we have loaded, if null we need a full load
+	private Object watermark;
+	private long lastFullLoad;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	
+	public InsightColumnar(InsightArtifact artifact) {
+		this.artifact = artifact;
+	}
+	
+	public synchronized void start() {
+		if (future == null) {
+			long interval = artifact.getConfig().getColumnarRefreshInterval() == null ? 60000 : artifact.getConfig().getColumnarRefreshInterval();
+			future = scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					}
+					catch (Exception e) {
+						logger.error("Could not load columnar copy of insight: " + artifact.getId(), e);
+					}
+				}
+			}, 0, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	public synchronized void stop() {
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+		// no need to keep it in memory
+		table = null;
+		watermark = null;
+	}
+	
+	public boolean isStarted() {
+		return future != null;
+	}
+	
+	// the next refresh will load the entire table
+	public synchronized void reset() {
+		watermark = null;
+	}
+	
+	public synchronized void refresh() throws SQLException {
+		InsightConfiguration config = artifact.getConfig();
+		if (config.getConnection() == null) {
+			throw new IllegalStateException("A columnar insight needs a configured connection: " + artifact.getId());
+		}
+		Table current = this.table;
+		boolean full = current == null || watermark == null || current.watermarkColumn < 0 || current.primaryKeys == null || lastFullLoad < System.currentTimeMillis() - FULL_LOAD_INTERVAL;
+		Table table = full ? newTable() : current;
+		
+		StringBuilder sql = new StringBuilder("select ");
+		for (int i = 0; i < table.columns.length; i++) {
+			sql.append(i == 0 ? "" : ", ").append("c.").append(NamingConvention.UNDERSCORE.apply(table.columns[i].key));
+		}
+		sql.append(" from ").append(InsightMaterializer.getCoreTableName(config)).append(" c");
+		if (!full) {
+			sql.append(" where c.").append(NamingConvention.UNDERSCORE.apply(table.columns[table.watermarkColumn].key)).append(" > ?");
+		}
+		
+		Object newWatermark = full ? null : watermark;
+		// for a full load we fill the (not yet visible) table directly, changes are buffered so we only block queries while applying them
+		List<Object[]> changes = full ? null : new ArrayList<Object[]>();
+		Connection connection = config.getConnection().getDataSource().getConnection();
+		try {
+			PreparedStatement statement = connection.prepareStatement(sql.toString());
+			try {
+				statement.setFetchSize(FETCH_SIZE);
+				if (!full) {
+					statement.setObject(1, watermark);
+				}
+				ResultSet result = statement.executeQuery();
+				while (result.next()) {
+					Object[] row = new Object[table.columns.length];
+					for (int i = 0; i < row.length; i++) {
+						row[i] = table.columns[i].read(result, i + 1);
+					}
+					// we keep the watermark as the database gives it to us so we can pass it back as is
+					if (table.watermarkColumn >= 0) {
+						newWatermark = max(newWatermark, result.getObject(table.watermarkColumn + 1));
+					}
+					if (full) {
+						table.upsert(row);
+					}
+					else {
+						changes.add(row);
+					}
+				}
+			}
+			finally {
+				statement.close();
+			}
+		}
+		finally {
+			connection.close();
+		}
+		if (full) {
+			this.table = table;
+			lastFullLoad = System.currentTimeMillis();
+			logger.debug("Loaded {} rows for columnar insight {}", table.size, artifact.getId());
+		}
+		else if (!changes.isEmpty()) {
+			table.lock.writeLock().lock();
+			try {
+				for (Object[] row : changes) {
+					table.upsert(row);
+				}
+			}
+			finally {
+				table.lock.writeLock().unlock();
+			}
+			logger.debug("Applied {} changed rows for columnar insight {}", changes.size(), artifact.getId());
+		}
+		boolean changed = full || !changes.isEmpty();
+		watermark = newWatermark;
+		// anything we cached is based on stale data
+		if (changed) {
+			artifact.invalidateResults();
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object max(Object current, Object value) {
+		if (value == null) {
+			return current;
+		}
+		return current == null || ((Comparable) value).compareTo(current) > 0 ? value : current;
+	}
+	
+	// the columns we need: the fields, the filters and what we need for the delta loads
+	private Table newTable() {
+		InsightConfiguration config = artifact.getConfig();
+		ComplexType coreType = (ComplexType) config.getCoreType();
+		Map<String, Column> columns = new LinkedHashMap<String, Column>();
+		for (InsightField field : config.getFields()) {
+			if (field.getKey() == null) {
+				continue;
+			}
+			if (coreType.get(field.getKey()) == null) {
+				throw new IllegalStateException("Columnar insights only support fields of the core type, '" + field.getKey() + "' is not available in: " + artifact.getId());
+			}
+			addColumn(columns, coreType.get(field.getKey()));
+		}
+		if (config.getFilters() != null) {
+			for (CRUDFilter filter : config.getFilters()) {
+				// filters on other fields are not supported, those queries go to the database
+				if (filter != null && filter.getKey() != null && coreType.get(filter.getKey()) != null) {
+					addColumn(columns, coreType.get(filter.getKey()));
+				}
+			}
+		}
+		String primaryKey = null;
+		for (Element<?> child : TypeUtils.getAllChildren(coreType)) {
+			if (Boolean.TRUE.equals(ValueUtils.getValue(PrimaryKeyProperty.getInstance(), child.getProperties()))) {
+				primaryKey = child.getName();
+				addColumn(columns, child);
+				break;
+			}
+		}
+		if (config.getWatermarkField() != null && coreType.get(config.getWatermarkField()) != null) {
+			addColumn(columns, coreType.get(config.getWatermarkField()));
+		}
+		List<String> keys = new ArrayList<String>(columns.keySet());
+		Table table = new Table(columns.values().toArray(new Column[columns.size()]));
+		table.primaryKeyColumn = primaryKey == null ? -1 : keys.indexOf(primaryKey);
+		table.primaryKeys = primaryKey == null ? null : new HashMap<Object, Integer>();
+		table.watermarkColumn = config.getWatermarkField() == null ? -1 : keys.indexOf(config.getWatermarkField());
+		return table;
+	}
+	
+	private static void addColumn(Map<String, Column> columns, Element<?> element) {
+		if (!columns.containsKey(element.getName()) && element.getType() instanceof SimpleType) {
+			columns.put(element.getName(), new Column(element.getName(), ((SimpleType<?>) element.getType()).getInstanceClass()));
+		}
+	}
+	
+	/**
+	 * Calculate the result from memory, returns null if the data is not loaded yet or the query uses something we don't support.
+	 * The paging is applied to the aggregated result.
+	 */
+	InsightResult select(InsightQuery query) {
+		Table table = this.table;
+		if (table == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		List<ComplexContent> results;
+		table.lock.readLock().lock();
+		try {
+			Scan scan = table.compile(artifact, query.getFilters());
+			if (scan == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			Partial partial = table.size <= CHUNK_SIZE ? scan.scan(0, table.size) : ForkJoinPool.commonPool().invoke(new ScanTask(scan, 0, table.size));
+			results = scan.toResults(partial, artifact.getResult());
+		}
+		finally {
+			table.lock.readLock().unlock();
+		}
+		hits.incrementAndGet();
+		return artifact.toResult(results, query);
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	public Integer getSize() {
+		Table table = this.table;
+		return table == null ? null : table.size;
+	}
+	
+	private static class Table {
+		private Column[] columns;
+		private int size;
+		private int primaryKeyColumn = -1, watermarkColumn = -1;
+		// the row index of every primary key
+		private Map<Object, Integer> primaryKeys;
+		private ReadWriteLock lock = new ReentrantReadWriteLock();
+		
+		private Table(Column[] columns) {
+			this.columns = columns;
+		}
+		
+		private void upsert(Object[] row) {
+			Integer index = null;
+			if (primaryKeys != null) {
+				index = primaryKeys.get(row[primaryKeyColumn]);
+				if (index == null) {
+					primaryKeys.put(row[primaryKeyColumn], size);
+				}
+			}
+			if (index == null) {
+				index = size;
+				for (Column column : columns) {
+					column.ensureCapacity(size + 1);
+				}
+				size++;
+			}
+			for (int i = 0; i < columns.length; i++) {
+				columns[i].set(index, row[i]);
+			}
+		}
+		
+		private int getColumn(String key) {
+			for (int i = 0; i < columns.length; i++) {
+				if (columns[i].key.equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		// null if we can't answer this query
+		private Scan compile(InsightArtifact artifact, List<Filter> filters) {
+			Scan scan = new Scan();
+			for (Filter filter : filters) {
+				int index = filter.getKey() == null || filter.isOr() || filter.isCaseInsensitive() ? -1 : getColumn(filter.getKey());
+				Predicate predicate = index < 0 ? null : Predicate.compile(columns[index], filter);
+				if (predicate == null) {
+					return null;
+				}
+				scan.predicates.add(predicate);
+			}
+			List<Column> groups = new ArrayList<Column>();
+			List<String> groupNames = new ArrayList<String>();
+			List<Column> values = new ArrayList<Column>();
+			List<String> valueNames = new ArrayList<String>();
+			List<Aggregate> aggregates = new ArrayList<Aggregate>();
+			for (InsightField field : artifact.getConfig().getFields()) {
+				if (field.getKey() == null) {
+					continue;
+				}
+				int index = getColumn(field.getKey());
+				if (index < 0) {
+					return null;
+				}
+				Column column = columns[index];
+				if (InsightArtifact.isGroupBy(field)) {
+					groups.add(column);
+					groupNames.add(InsightArtifact.getFieldName(field));
+				}
+				else {
+					Aggregate aggregate;
+					try {
+						aggregate = Aggregate.valueOf(field.getAggregate().toUpperCase());
+					}
+					catch (IllegalArgumentException e) {
+						return null;
+					}
+					// we can count anything but the other aggregates need numbers (or dates for min and max)
+					if (column.kind == Kind.DICTIONARY && aggregate != Aggregate.COUNT) {
+						return null;
+					}
+					if (column.kind == Kind.DATE && (aggregate == Aggregate.SUM || aggregate == Aggregate.AVG)) {
+						return null;
+					}
+					values.add(column);
+					valueNames.add(InsightArtifact.getFieldName(field));
+					aggregates.add(aggregate);
+				}
+			}
+			// the null flags of the group key are kept in a single long
+			if (groups.size() > 64) {
+				return null;
+			}
+			scan.groups = groups.toArray(new Column[groups.size()]);
+			scan.groupNames = groupNames.toArray(new String[groupNames.size()]);
+			scan.values = values.toArray(new Column[values.size()]);
+			scan.valueNames = valueNames.toArray(new String[valueNames.size()]);
+			scan.aggregates = aggregates.toArray(new Aggregate[aggregates.size()]);
+			return scan;
+		}
+	}
+	
+	private static class Column {
+		private String key;
+		private Class<?> instanceClass;
+		private Kind kind;
+		private long[] longs;
+		private double[] doubles;
+		private boolean[] nulls;
+		// for dictionary encoded columns, null is encoded as -1
+		private int[] codes;
+		private List<Object> dictionary;
+		private Map<Object, Integer> dictionaryCodes;
+		
+		private Column(String key, Class<?> instanceClass) {
+			this.key = key;
+			this.instanceClass = instanceClass;
+			if (Long.class.equals(instanceClass) || Integer.class.equals(instanceClass) || Short.class.equals(instanceClass) || Byte.class.equals(instanceClass)) {
+				kind = Kind.LONG;
+				longs = new long[1024];
+				nulls = new boolean[1024];
+			}
+			else if (Double.class.equals(instanceClass) || Float.class.equals(instanceClass) || BigDecimal.class.equals(instanceClass)) {
+				kind = Kind.DOUBLE;
+				doubles = new double[1024];
+				nulls = new boolean[1024];
+			}
+			else if (Date.class.isAssignableFrom(instanceClass)) {
+				kind = Kind.DATE;
+				longs = new long[1024];
+				nulls = new boolean[1024];
+			}
+			else {
+				kind = Kind.DICTIONARY;
+				codes = new int[1024];
+				dictionary = new ArrayList<Object>();
+				dictionaryCodes = new HashMap<Object, Integer>();
+			}
+		}
+		
+		private void ensureCapacity(int capacity) {
+			int length = kind == Kind.DICTIONARY ? codes.length : nulls.length;
+			if (capacity > length) {
+				int newLength = Math.max(capacity, length * 2);
+				if (longs != null) {
+					longs = Arrays.copyOf(longs, newLength);
+				}
+				if (doubles != null) {
+					doubles = Arrays.copyOf(doubles, newLength);
+				}
+				if (nulls != null) {
+					nulls = Arrays.copyOf(nulls, newLength);
+				}
+				if (codes != null) {
+					codes = Arrays.copyOf(codes, newLength);
+				}
+			}
+		}
+		
+		private Object read(ResultSet result, int index) throws SQLException {
+			switch(kind) {
+				case LONG:
+					long longValue = result.getLong(index);
+					return result.wasNull() ? null : longValue;
+				case DOUBLE:
+					double doubleValue = result.getDouble(index);
+					return result.wasNull() ? null : doubleValue;
+				case DATE:
+					Timestamp timestamp = result.getTimestamp(index);
+					return timestamp == null ? null : timestamp.getTime();
+				default:
+					return normalize(result.getObject(index));
+			}
+		}
+		
+		// values in the dictionary have the type of the field, whatever the database or the filter gives us
+		private Object normalize(Object value) {
+			if (value == null || instanceClass.isInstance(value)) {
+				return value;
+			}
+			if (String.class.equals(instanceClass)) {
+				return value.toString();
+			}
+			else if (UUID.class.equals(instanceClass)) {
+				return UUID.fromString(value.toString().replaceAll("^([0-9a-fA-F]{8})([0-9a-fA-F]{4})([0-9a-fA-F]{4})([0-9a-fA-F]{4})([0-9a-fA-F]{12})$", "$1-$2-$3-$4-$5"));
+			}
+			else if (Boolean.class.equals(instanceClass)) {
+				return value instanceof Number ? ((Number) value).intValue() != 0 : Boolean.parseBoolean(value.toString());
+			}
+			return value;
+		}
+		
+		private void set(int row, Object value) {
+			switch(kind) {
+				case LONG:
+				case DATE:
+					nulls[row] = value == null;
+					longs[row] = value == null ? 0 : (Long) value;
+				break;
+				case DOUBLE:
+					nulls[row] = value == null;
+					doubles[row] = value == null ? 0 : (Double) value;
+				break;
+				default:
+					codes[row] = value == null ? -1 : getCode(value);
+			}
+		}
+		
+		private int getCode(Object value) {
+			Integer code = dictionaryCodes.get(value);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.add(value);
+				dictionaryCodes.put(value, code);
+			}
+			return code;
+		}
+		
+		// the value as it is used in a group key
+		private long getKey(int row) {
+			switch(kind) {
+				case LONG:
+				case DATE:
+					return longs[row];
+				case DOUBLE:
+					return Double.doubleToLongBits(doubles[row]);
+				default:
+					return codes[row];
+			}
+		}
+		
+		private boolean isNull(int row) {
+			return kind == Kind.DICTIONARY ? codes[row] < 0 : nulls[row];
+		}
+		
+		// turn a value from a group key back into the type of the field
+		private Object decodeKey(long value) {
+			if (kind == Kind.DOUBLE) {
+				return decodeDouble(Double.longBitsToDouble(value));
+			}
+			else if (kind == Kind.DICTIONARY) {
+				return dictionary.get((int) value);
+			}
+			return decodeLong(value);
+		}
+		
+		private Object decodeLong(long value) {
+			if (kind == Kind.DATE) {
+				return new Date(value);
+			}
+			else if (Integer.class.equals(instanceClass)) {
+				return (int) value;
+			}
+			else if (Short.class.equals(instanceClass)) {
+				return (short) value;
+			}
+			else if (Byte.class.equals(instanceClass)) {
+				return (byte) value;
+			}
+			return value;
+		}
+		
+		private Object decodeDouble(double value) {
+			if (Float.class.equals(instanceClass)) {
+				return (float) value;
+			}
+			else if (BigDecimal.class.equals(instanceClass)) {
+				return BigDecimal.valueOf(value);
+			}
+			return value;
+		}
+	}
+	
+	/**
+	 * A filter on a single column, it narrows down the selected rows.
+	 * As in SQL, a null value never matches a comparison.
+	 */
+	private static class Predicate {
+		private Column column;
+		private String operator;
+		private long[] longs;
+		private double[] doubles;
+		private int[] codes;
+		
+		private static Predicate compile(Column column, Filter filter) {
+			Predicate predicate = new Predicate();
+			predicate.column = column;
+			predicate.operator = "!=".equals(filter.getOperator()) ? "<>" : filter.getOperator();
+			if ("is null".equals(predicate.operator) || "is not null".equals(predicate.operator)) {
+				return predicate;
+			}
+			List<Object> values = filter.getValues();
+			if (values == null || values.isEmpty() || !Arrays.asList("=", "<>", ">", ">=", "<", "<=").contains(predicate.operator)) {
+				return null;
+			}
+			// only equality checks can have multiple values
+			if (values.size() > 1 && !"=".equals(predicate.operator) && !"<>".equals(predicate.operator)) {
+				return null;
+			}
+			switch(column.kind) {
+				case LONG:
+				case DATE:
+					predicate.longs = new long[values.size()];
+					for (int i = 0; i < values.size(); i++) {
+						Long value = toLong(values.get(i));
+						if (value == null) {
+							return null;
+						}
+						predicate.longs[i] = value;
+					}
+				break;
+				case DOUBLE:
+					predicate.doubles = new double[values.size()];
+					for (int i = 0; i < values.size(); i++) {
+						Double value = toDouble(values.get(i));
+						if (value == null) {
+							return null;
+						}
+						predicate.doubles[i] = value;
+					}
+				break;
+				default:
+					// we don't know how the database would sort these
+					if (!"=".equals(predicate.operator) && !"<>".equals(predicate.operator)) {
+						return null;
+					}
+					List<Integer> codes = new ArrayList<Integer>();
+					for (Object value : values) {
+						if (value == null) {
+							return null;
+						}
+						Integer code = column.dictionaryCodes.get(column.normalize(value));
+						// a value we have never seen does not match anything
+						if (code != null) {
+							codes.add(code);
+						}
+					}
+					predicate.codes = new int[codes.size()];
+					for (int i = 0; i < codes.size(); i++) {
+						predicate.codes[i] = codes.get(i);
+					}
+			}
+			return predicate;
+		}
+		
+		private static Long toLong(Object value) {
+			if (value instanceof Date) {
+				return ((Date) value).getTime();
+			}
+			else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return ((Number) value).longValue();
+			}
+			else if (value instanceof Number && ((Number) value).doubleValue() == Math.rint(((Number) value).doubleValue())) {
+				return ((Number) value).longValue();
+			}
+			else if (value instanceof String && ((String) value).matches("^-?[0-9]+$")) {
+				return Long.parseLong((String) value);
+			}
+			return null;
+		}
+		
+		private static Double toDouble(Object value) {
+			if (value instanceof Number) {
+				return ((Number) value).doubleValue();
+			}
+			else if (value instanceof String) {
+				try {
+					return Double.parseDouble((String) value);
+				}
+				catch (NumberFormatException e) {
+					return null;
+				}
+			}
+			return null;
+		}
+		
+		// compacts the selection in place, returns the new amount of selected rows
+		private int filter(int[] selection, int amount) {
+			int selected = 0;
+			if ("is null".equals(operator) || "is not null".equals(operator)) {
+				boolean wanted = "is null".equals(operator);
+				for (int i = 0; i < amount; i++) {
+					if (column.isNull(selection[i]) == wanted) {
+						selection[selected++] = selection[i];
+					}
+				}
+				return selected;
+			}
+			boolean[] nulls = column.nulls;
+			if (column.kind == Kind.DICTIONARY) {
+				int[] columnCodes = column.codes;
+				boolean equals = "=".equals(operator);
+				for (int i = 0; i < amount; i++) {
+					int code = columnCodes[selection[i]];
+					if (code >= 0 && contains(codes, code) == equals) {
+						selection[selected++] = selection[i];
+					}
+				}
+			}
+			else if (column.kind == Kind.DOUBLE) {
+				double[] columnValues = column.doubles;
+				if (doubles.length > 1) {
+					boolean equals = "=".equals(operator);
+					for (int i = 0; i < amount; i++) {
+						int row = selection[i];
+						if (!nulls[row] && contains(doubles, columnValues[row]) == equals) {
+							selection[selected++] = row;
+						}
+					}
+				}
+				else {
+					double value = doubles[0];
+					for (int i = 0; i < amount; i++) {
+						int row = selection[i];
+						if (!nulls[row] && matches(Double.compare(columnValues[row], value))) {
+							selection[selected++] = row;
+						}
+					}
+				}
+			}
+			else {
+				long[] columnValues = column.longs;
+				if (longs.length > 1) {
+					boolean equals = "=".equals(operator);
+					for (int i = 0; i < amount; i++) {
+						int row = selection[i];
+						if (!nulls[row] && contains(longs, columnValues[row]) == equals) {
+							selection[selected++] = row;
+						}
+					}
+				}
+				else {
+					long value = longs[0];
+					for (int i = 0; i < amount; i++) {
+						int row = selection[i];
+						if (!nulls[row] && matches(Long.compare(columnValues[row], value))) {
+							selection[selected++] = row;
+						}
+					}
+				}
+			}
+			return selected;
+		}
+		
+		private boolean matches(int comparison) {
+			switch(operator) {
+				case "=": return comparison == 0;
+				case "<>": return comparison != 0;
+				case ">": return comparison > 0;
+				case ">=": return comparison >= 0;
+				case "<": return comparison < 0;
+				default: return comparison <= 0;
+			}
+		}
+		
+		private static boolean contains(int[] values, int value) {
+			for (int single : values) {
+				if (single == value) {
+					return true;
+				}
+			}
+			return false;
+		}
+		private static boolean contains(long[] values, long value) {
+			for (long single : values) {
+				if (single == value) {
+					return true;
+				}
+			}
+			return false;
+		}
+		private static boolean contains(double[] values, double value) {
+			for (double single : values) {
+				if (Double.compare(single, value) == 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	// what we need to calculate a query, it is only valid while we hold the read lock on the table
+	private static class Scan {
+		private List<Predicate> predicates = new ArrayList<Predicate>();
+		private Column[] groups;
+		private String[] groupNames;
+		private Column[] values;
+		private String[] valueNames;
+		private Aggregate[] aggregates;
+		
+		private Partial scan(int from, int to) {
+			int[] selection = new int[to - from];
+			for (int i = 0; i < selection.length; i++) {
+				selection[i] = from + i;
+			}
+			int amount = selection.length;
+			for (Predicate predicate : predicates) {
+				amount = predicate.filter(selection, amount);
+				if (amount == 0) {
+					break;
+				}
+			}
+			Partial partial = new Partial(this);
+			// the group values followed by the null flags, reused for every row
+			long[] probe = new long[groups.length + 1];
+			for (int i = 0; i < amount; i++) {
+				int row = selection[i];
+				long nulls = 0;
+				for (int j = 0; j < groups.length; j++) {
+					if (groups[j].isNull(row)) {
+						nulls |= 1L << j;
+						probe[j] = 0;
+					}
+					else {
+						probe[j] = groups[j].getKey(row);
+					}
+				}
+				probe[groups.length] = nulls;
+				partial.add(partial.getGroup(probe), row);
+			}
+			return partial;
+		}
+		
+		private List<ComplexContent> toResults(Partial partial, ComplexType type) {
+			// like the database, an aggregate without groups always returns a single row
+			if (groups.length == 0 && partial.groups.size() == 0) {
+				partial.getGroup(new long[1]);
+			}
+			List<ComplexContent> results = new ArrayList<ComplexContent>();
+			for (int group = 0; group < partial.groups.size(); group++) {
+				long nulls = partial.groups.get(group, groups.length);
+				ComplexContent result = type.newInstance();
+				for (int j = 0; j < groups.length; j++) {
+					result.set(groupNames[j], (nulls & (1L << j)) != 0 ? null : groups[j].decodeKey(partial.groups.get(group, j)));
+				}
+				for (int j = 0; j < values.length; j++) {
+					result.set(valueNames[j], partial.getResult(j, group));
+				}
+				results.add(result);
+			}
+			return results;
+		}
+	}
+	
+	@SuppressWarnings("serial")
+	private static class ScanTask extends RecursiveTask<Partial> {
+		private Scan scan;
+		private int from, to;
+		
+		private ScanTask(Scan scan, int from, int to) {
+			this.scan = scan;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected Partial compute() {
+			if (to - from <= CHUNK_SIZE) {
+				return scan.scan(from, to);
+			}
+			int middle = from + ((to - from) / 2);
+			ScanTask left = new ScanTask(scan, from, middle);
+			left.fork();
+			Partial right = new ScanTask(scan, middle, to).compute();
+			Partial partial = left.join();
+			partial.merge(right);
+			return partial;
+		}
+	}
+	
+	/**
+	 * The aggregates per group for a range of rows.
+	 * For each aggregated value we keep the amount of non null values and depending on the type either a long or a double accumulator (the sum, minimum or maximum).
+	 */
+	private static class Partial {
+		private Scan scan;
+		// the key of a group is the value of every group column followed by the null flags
+		private GroupTable groups;
+		private long[][] counts, longs;
+		private double[][] doubles;
+		
+		private Partial(Scan scan) {
+			this.scan = scan;
+			groups = new GroupTable(scan.groups.length + 1);
+			counts = new long[scan.values.length][];
+			longs = new long[scan.values.length][];
+			doubles = new double[scan.values.length][];
+			for (int i = 0; i < scan.values.length; i++) {
+				counts[i] = new long[16];
+				if (scan.values[i].kind == Kind.DOUBLE) {
+					doubles[i] = new double[16];
+				}
+				else {
+					longs[i] = new long[16];
+				}
+			}
+		}
+		
+		private int getGroup(long[] probe) {
+			int group = groups.add(probe);
+			grow(group + 1);
+			return group;
+		}
+		
+		private void grow(int capacity) {
+			for (int i = 0; i < counts.length; i++) {
+				if (capacity > counts[i].length) {
+					int length = Math.max(capacity, counts[i].length * 2);
+					counts[i] = Arrays.copyOf(counts[i], length);
+					if (longs[i] != null) {
+						longs[i] = Arrays.copyOf(longs[i], length);
+					}
+					if (doubles[i] != null) {
+						doubles[i] = Arrays.copyOf(doubles[i], length);
+					}
+				}
+			}
+		}
+		
+		private void add(int group, int row) {
+			for (int i = 0; i < scan.values.length; i++) {
+				Column column = scan.values[i];
+				if (column.isNull(row)) {
+					continue;
+				}
+				if (scan.aggregates[i] != Aggregate.COUNT) {
+					if (column.kind == Kind.DOUBLE) {
+						doubles[i][group] = accumulate(scan.aggregates[i], counts[i][group] == 0, doubles[i][group], column.doubles[row]);
+					}
+					else {
+						longs[i][group] = accumulate(scan.aggregates[i], counts[i][group] == 0, longs[i][group], column.longs[row]);
+					}
+				}
+				counts[i][group]++;
+			}
+		}
+		
+		private void merge(Partial other) {
+			long[] probe = new long[other.groups.getWidth()];
+			for (int otherGroup = 0; otherGroup < other.groups.size(); otherGroup++) {
+				for (int j = 0; j < probe.length; j++) {
+					probe[j] = other.groups.get(otherGroup, j);
+				}
+				int group = getGroup(probe);
+				for (int i = 0; i < scan.values.length; i++) {
+					if (other.counts[i][otherGroup] == 0) {
+						continue;
+					}
+					if (scan.aggregates[i] != Aggregate.COUNT) {
+						if (doubles[i] != null) {
+							doubles[i][group] = accumulate(scan.aggregates[i], counts[i][group] == 0, doubles[i][group], other.doubles[i][otherGroup]);
+						}
+						else {
+							longs[i][group] = accumulate(scan.aggregates[i], counts[i][group] == 0, longs[i][group], other.longs[i][otherGroup]);
+						}
+					}
+					counts[i][group] += other.counts[i][otherGroup];
+				}
+			}
+		}
+		
+		private static double accumulate(Aggregate aggregate, boolean first, double current, double value) {
+			if (first) {
+				return value;
+			}
+			switch(aggregate) {
+				case MIN: return Math.min(current, value);
+				case MAX: return Math.max(current, value);
+				// sum and avg
+				default: return current + value;
+			}
+		}
+		
+		private static long accumulate(Aggregate aggregate, boolean first, long current, long value) {
+			if (first) {
+				return value;
+			}
+			switch(aggregate) {
+				case MIN: return Math.min(current, value);
+				case MAX: return Math.max(current, value);
+				default: return current + value;
+			}
+		}
+		
+		private Object getResult(int index, int group) {
+			long count = counts[index][group];
+			Column column = scan.values[index];
+			switch(scan.aggregates[index]) {
+				case COUNT:
+					return count;
+				case AVG:
+					return count == 0 ? null : (column.kind == Kind.DOUBLE ? doubles[index][group] : longs[index][group]) / (double) count;
+				default:
+					if (count == 0) {
+						return null;
+					}
+					return column.kind == Kind.DOUBLE ? column.decodeDouble(doubles[index][group]) : column.decodeLong(longs[index][group]);
+			}
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Writes the results as one array per field instead of one object per row, the field names are only sent once:
+ * {"fields": ["a", "b"], "columns": [[a1, a2], [b1, b2]], "page": {...}, "cursor": "..."}
+ */
+public class InsightColumnarBinding extends InsightBinding {
+
+	public static final String CONTENT_TYPE = "application/vnd.nabu.insight.columnar+json";
+	
+	public InsightColumnarBinding(ComplexType resultType, Charset charset) {
+		super(resultType, charset);
+	}
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public void marshal(OutputStream output, ComplexContent content, Value<?>... values) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(output, getCharset()));
+		List<Element<?>> columns = getColumns();
+		List<ComplexContent> results = getResults(content);
+		writer.write("{\"fields\":[");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			writeJSONString(writer, columns.get(i).getName());
+		}
+		writer.write("],\"columns\":[");
+		for (int i = 0; i < columns.size(); i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			writer.write('[');
+			Element<?> column = columns.get(i);
+			for (int j = 0; j < results.size(); j++) {
+				if (j > 0) {
+					writer.write(',');
+				}
+				writeValue(writer, column, results.get(j).get(column.getName()));
+			}
+			writer.write(']');
+		}
+		writer.write(']');
+		for (Element<?> child : TypeUtils.getAllChildren(content.getType())) {
+			Object value = content.get(child.getName());
+			if (value != null && !child.getName().equals("results")) {
+				writer.write(',');
+				writeJSONString(writer, child.getName());
+				writer.write(':');
+				writeValue(writer, child, value);
+			}
+		}
+		writer.write('}');
+		writer.flush();
+	}
+	
+	private void writeValue(Writer writer, Element<?> element, Object value) throws IOException {
+		if (value == null) {
+			writer.write("null");
+		}
+		else if (value instanceof ComplexContent) {
+			ComplexContent content = (ComplexContent) value;
+			writer.write('{');
+			boolean first = true;
+			for (Element<?> child : TypeUtils.getAllChildren(content.getType())) {
+				Object childValue = content.get(child.getName());
+				if (childValue != null) {
+					if (first) {
+						first = false;
+					}
+					else {
+						writer.write(',');
+					}
+					writeJSONString(writer, child.getName());
+					writer.write(':');
+					writeValue(writer, child, childValue);
+				}
+			}
+			writer.write('}');
+		}
+		// numbers and booleans are not quoted, unless they can't be represented in json
+		else if (value instanceof Boolean || (value instanceof Number && !isNaN((Number) value))) {
+			writer.write(value.toString());
+		}
+		else {
+			writeJSONString(writer, format(element, value));
+		}
+	}
+	
+	private static boolean isNaN(Number number) {
+		if (number instanceof Double) {
+			return ((Double) number).isNaN() || ((Double) number).isInfinite();
+		}
+		else if (number instanceof Float) {
+			return ((Float) number).isNaN() || ((Float) number).isInfinite();
+		}
+		return false;
+	}
+}
@@ -25,6 +25,7 @@ import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
 
 import be.nabu.eai.module.services.crud.CRUDFilter;
 import be.nabu.eai.module.services.crud.CRUDConfiguration.ForeignNameField;
+import be.nabu.eai.repository.api.CacheProviderArtifact;
 import be.nabu.eai.repository.jaxb.ArtifactXMLAdapter;
 import be.nabu.libs.artifacts.api.DataSourceProviderArtifact;
 import be.nabu.libs.types.api.DefinedType;
@@ -34,6 +35,14 @@ public class InsightConfiguration {
 	// the data type we are wrapping around
 	private DefinedType coreType;
 	private DataSourceProviderArtifact connection;
+	// read replicas of the connection, queries are spread over them
+	private List<DataSourceProviderArtifact> replicas;
+	// the maximum replication lag (in ms) we accept from a replica
+	private Long maxReplicationLag;
+	// a query that returns the replication lag (in ms) of a replica
+	private String replicationLagQuery;
+	// answer queries from the cached or materialized results of more detailed insights on the same core type
+	private boolean rollup;
 	private List<InsightField> fields;
 	private List<ForeignNameField> foreignFields;
 	private List<CRUDFilter> filters;
@@ -44,6 +53,80 @@ public class InsightConfiguration {
 	// the field we want to use to check security context
 	private String securityContextField;
 	private boolean allowHeaderAsQueryParameter = true;
+	// how long (in ms) results can be cached, if not set there is no caching
+	private Long cacheTimeout;
+	// the maximum amount of distinct results we cache
+	private Integer cacheSize;
+	// how long (in seconds) browsers and proxies can reuse a response without checking back
+	private Long maxAge;
+	// how long (in ms) the outcome of role and permission checks can be reused for the same user
+	private Long permissionCacheTimeout;
+	// the maximum amount of permission decisions we keep
+	private Integer permissionCacheSize;
+	// how long (in ms) a query can run before it is cancelled
+	private Long queryTimeout;
+	// how many queries (weighted by cost) of this insight can run at the same time
+	private Integer maxConcurrency;
+	// how many queries (weighted by cost) of all insights can run at the same time on the connection
+	private Integer connectionConcurrency;
+	// how many queries can wait for their turn before we start rejecting them
+	private Integer maxQueue;
+	// how long (in ms) a query can wait for its turn
+	private Long queueTimeout;
+	// the relative cost of a query, heavy insights take more of the available concurrency
+	private Integer cost;
+	// allow clients to subscribe to updates as server-sent events
+	private boolean live;
+	// how often (in ms) the results are recalculated for live subscribers
+	private Long liveInterval;
+	// compress responses if the client supports it
+	private boolean compressResponse;
+	// the minimum size (in bytes) of a response before we compress it
+	private Integer compressionThreshold;
+	// the maximum amount of compressed responses we keep, so frequently requested results are not compressed again
+	private Integer compressionCacheSize;
+	// share the cached results with the other servers, for example through the cluster
+	private CacheProviderArtifact cacheProvider;
+	// materialized insights are precalculated in a summary table which is used to answer queries
+	private boolean materialized;
+	// the summary table, by default it is named after the insight
+	private String materializedTable;
+	// a field in the core type that increases with every modification (e.g. a modified timestamp), used to only refresh the groups that have changed
+	private String watermarkField;
+	// only refresh the groups that have changed, this requires that a record never moves to another group (the group by fields never change), otherwise its old group keeps its contribution
+	private boolean immutableGroups;
+	// how often (in ms) we refresh the materialized table
+	private Long refreshInterval;
+	// keep an in-memory columnar copy of the fields we need so queries don't go to the database
+	private boolean columnar;
+	// how often (in ms) we load the changes into the columnar copy, this uses the watermark field if available
+	private Long columnarRefreshInterval;
+	// stream the response with chunked encoding instead of buffering it to calculate the content length
+	private boolean streamResponse;
+	// how long (in ms) we wait for the client to read more of a streamed response before we give up on it
+	private Long streamTimeout;
+	// calculate the total row count in parallel with the data on a separate connection
+	private boolean parallelRowCount;
+	// how long (in ms) the total row count can be cached, independent of the results
+	private Long rowCountTimeout;
+	// when the cached row count has expired, return it as an estimate and recalculate it in the background
+	private boolean estimateRowCount;
+	// a date or numeric field in the core type, queries with a lower and upper bound on it are split into partitions that run in parallel
+	private String partitionField;
+	// the amount of partitions
+	private Integer partitions;
+	// a date field in the core type, queries with a lower bound on it are split into time buckets and closed buckets are cached
+	private String bucketField;
+	// the size of a bucket: hour, day (default), week, month or year
+	private String bucketInterval;
+	// how long (in ms) after its end a bucket can still receive data
+	private Long bucketGracePeriod;
+	// the maximum amount of closed buckets we cache
+	private Integer bucketCacheSize;
+	// the maximum amount of distinct values (per group) we load to calculate approximate aggregates, queries that need more fail
+	private Integer sketchRowLimit;
+	// the maximum amount of groups we calculate approximate aggregates for, each group has its own sketches
+	private Integer sketchGroupLimit;
 	
 	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
 	public DefinedType getCoreType() {
@@ -119,4 +202,257 @@ public class InsightConfiguration {
 	public void setAllowHeaderAsQueryParameter(boolean allowHeaderAsQueryParameter) {
 		this.allowHeaderAsQueryParameter = allowHeaderAsQueryParameter;
 	}
+	public Long getCacheTimeout() {
+		return cacheTimeout;
+	}
+	public void setCacheTimeout(Long cacheTimeout) {
+		this.cacheTimeout = cacheTimeout;
+	}
+	public Integer getCacheSize() {
+		return cacheSize;
+	}
+	public void setCacheSize(Integer cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+	public boolean isMaterialized() {
+		return materialized;
+	}
+	public void setMaterialized(boolean materialized) {
+		this.materialized = materialized;
+	}
+	public String getMaterializedTable() {
+		return materializedTable;
+	}
+	public void setMaterializedTable(String materializedTable) {
+		this.materializedTable = materializedTable;
+	}
+	public String getWatermarkField() {
+		return watermarkField;
+	}
+	public void setWatermarkField(String watermarkField) {
+		this.watermarkField = watermarkField;
+	}
+	public Long getRefreshInterval() {
+		return refreshInterval;
+	}
+	public void setRefreshInterval(Long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+	public boolean isStreamResponse() {
+		return streamResponse;
+	}
+	public void setStreamResponse(boolean streamResponse) {
+		this.streamResponse = streamResponse;
+	}
+	public boolean isParallelRowCount() {
+		return parallelRowCount;
+	}
+	public void setParallelRowCount(boolean parallelRowCount) {
+		this.parallelRowCount = parallelRowCount;
+	}
+	public Long getRowCountTimeout() {
+		return rowCountTimeout;
+	}
+	public void setRowCountTimeout(Long rowCountTimeout) {
+		this.rowCountTimeout = rowCountTimeout;
+	}
+	public boolean isEstimateRowCount() {
+		return estimateRowCount;
+	}
+	public void setEstimateRowCount(boolean estimateRowCount) {
+		this.estimateRowCount = estimateRowCount;
+	}
+	public String getPartitionField() {
+		return partitionField;
+	}
+	public void setPartitionField(String partitionField) {
+		this.partitionField = partitionField;
+	}
+	public Integer getPartitions() {
+		return partitions;
+	}
+	public void setPartitions(Integer partitions) {
+		this.partitions = partitions;
+	}
+	public String getBucketField() {
+		return bucketField;
+	}
+	public void setBucketField(String bucketField) {
+		this.bucketField = bucketField;
+	}
+	public String getBucketInterval() {
+		return bucketInterval;
+	}
+	public void setBucketInterval(String bucketInterval) {
+		this.bucketInterval = bucketInterval;
+	}
+	public Long getBucketGracePeriod() {
+		return bucketGracePeriod;
+	}
+	public void setBucketGracePeriod(Long bucketGracePeriod) {
+		this.bucketGracePeriod = bucketGracePeriod;
+	}
+	public Integer getBucketCacheSize() {
+		return bucketCacheSize;
+	}
+	public void setBucketCacheSize(Integer bucketCacheSize) {
+		this.bucketCacheSize = bucketCacheSize;
+	}
+	
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public CacheProviderArtifact getCacheProvider() {
+		return cacheProvider;
+	}
+	public void setCacheProvider(CacheProviderArtifact cacheProvider) {
+		this.cacheProvider = cacheProvider;
+	}
+	public Long getMaxAge() {
+		return maxAge;
+	}
+	public void setMaxAge(Long maxAge) {
+		this.maxAge = maxAge;
+	}
+	public boolean isCompressResponse() {
+		return compressResponse;
+	}
+	public void setCompressResponse(boolean compressResponse) {
+		this.compressResponse = compressResponse;
+	}
+	public Integer getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	public void setCompressionThreshold(Integer compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	public Integer getCompressionCacheSize() {
+		return compressionCacheSize;
+	}
+	public void setCompressionCacheSize(Integer compressionCacheSize) {
+		this.compressionCacheSize = compressionCacheSize;
+	}
+	public Long getPermissionCacheTimeout() {
+		return permissionCacheTimeout;
+	}
+	public void setPermissionCacheTimeout(Long permissionCacheTimeout) {
+		this.permissionCacheTimeout = permissionCacheTimeout;
+	}
+	public Integer getPermissionCacheSize() {
+		return permissionCacheSize;
+	}
+	public void setPermissionCacheSize(Integer permissionCacheSize) {
+		this.permissionCacheSize = permissionCacheSize;
+	}
+	public boolean isLive() {
+		return live;
+	}
+	public void setLive(boolean live) {
+		this.live = live;
+	}
+	public Long getLiveInterval() {
+		return liveInterval;
+	}
+	public void setLiveInterval(Long liveInterval) {
+		this.liveInterval = liveInterval;
+	}
+	public Long getQueryTimeout() {
+		return queryTimeout;
+	}
+	public void setQueryTimeout(Long queryTimeout) {
+		this.queryTimeout = queryTimeout;
+	}
+	public Integer getMaxConcurrency() {
+		return maxConcurrency;
+	}
+	public void setMaxConcurrency(Integer maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+	public Integer getConnectionConcurrency() {
+		return connectionConcurrency;
+	}
+	public void setConnectionConcurrency(Integer connectionConcurrency) {
+		this.connectionConcurrency = connectionConcurrency;
+	}
+	public Integer getMaxQueue() {
+		return maxQueue;
+	}
+	public void setMaxQueue(Integer maxQueue) {
+		this.maxQueue = maxQueue;
+	}
+	public Long getQueueTimeout() {
+		return queueTimeout;
+	}
+	public void setQueueTimeout(Long queueTimeout) {
+		this.queueTimeout = queueTimeout;
+	}
+	public Integer getCost() {
+		return cost;
+	}
+	public void setCost(Integer cost) {
+		this.cost = cost;
+	}
+	
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public List<DataSourceProviderArtifact> getReplicas() {
+		if (replicas == null) {
+			replicas = new ArrayList<DataSourceProviderArtifact>();
+		}
+		return replicas;
+	}
+	public void setReplicas(List<DataSourceProviderArtifact> replicas) {
+		this.replicas = replicas;
+	}
+	public Long getMaxReplicationLag() {
+		return maxReplicationLag;
+	}
+	public void setMaxReplicationLag(Long maxReplicationLag) {
+		this.maxReplicationLag = maxReplicationLag;
+	}
+	public String getReplicationLagQuery() {
+		return replicationLagQuery;
+	}
+	public void setReplicationLagQuery(String replicationLagQuery) {
+		this.replicationLagQuery = replicationLagQuery;
+	}
+	public boolean isRollup() {
+		return rollup;
+	}
+	public void setRollup(boolean rollup) {
+		this.rollup = rollup;
+	}
+	public boolean isColumnar() {
+		return columnar;
+	}
+	public void setColumnar(boolean columnar) {
+		this.columnar = columnar;
+	}
+	public Long getColumnarRefreshInterval() {
+		return columnarRefreshInterval;
+	}
+	public void setColumnarRefreshInterval(Long columnarRefreshInterval) {
+		this.columnarRefreshInterval = columnarRefreshInterval;
+	}
+	public Integer getSketchRowLimit() {
+		return sketchRowLimit;
+	}
+	public void setSketchRowLimit(Integer sketchRowLimit) {
+		this.sketchRowLimit = sketchRowLimit;
+	}
+	public Long getStreamTimeout() {
+		return streamTimeout;
+	}
+	public void setStreamTimeout(Long streamTimeout) {
+		this.streamTimeout = streamTimeout;
+	}
+	public boolean isImmutableGroups() {
+		return immutableGroups;
+	}
+	public void setImmutableGroups(boolean immutableGroups) {
+		this.immutableGroups = immutableGroups;
+	}
+	public Integer getSketchGroupLimit() {
+		return sketchGroupLimit;
+	}
+	public void setSketchGroupLimit(Integer sketchGroupLimit) {
+		this.sketchGroupLimit = sketchGroupLimit;
+	}
 }
@@ -0,0 +1,287 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.Marshallable;
+import be.nabu.libs.types.api.Unmarshallable;
+import be.nabu.libs.types.properties.MinOccursProperty;
+
+/**
+ * Keyset pagination over the ordered fields.
+ * 
+ * To get a deterministic order, all the group by fields that are not explicitly ordered on are added as tie breakers, together they identify a single record.
+ * The cursor remembers the values of the ordered fields in the last record, the next page filters on everything that comes after them in a tuple comparison.
+ * A tuple comparison like (a, b) > (x, y) is expanded to (a >= x) and (a > x or b > y) where every bracket is a group of "or" filters, so the cost no longer depends on how deep you are.
+ * 
+ * Nullable fields can't be compared (nulls sort differently per database and fail comparisons), the keyset stops at the first one.
+ * If that leaves a prefix of the ordered fields, the comparison on the last field of the prefix includes equality and the cursor also remembers how many records at the end of the page share the values of that prefix, those are skipped on the next page.
+ * In that case the cost depends on how many records share the same prefix, not on how deep you are. If even the leading field is nullable, the cursor falls back to a plain offset.
+ */
+public class InsightCursor {
+	
+	private static Charset UTF8 = Charset.forName("UTF-8");
+	
+	// the names of the ordered fields in the result, their element and whether they are descending
+	private String[] fields;
+	private Element<?>[] elements;
+	private boolean[] descending;
+	// the amount of leading fields that can be used in the keyset
+	private int keys;
+	private int limit;
+	// the values of the keyset we started from and how many records we skipped past them
+	private Object[] values;
+	private long skip;
+	
+	InsightCursor(String[] fields, Element<?>[] elements, boolean[] descending, int limit) {
+		this.fields = fields;
+		this.elements = elements;
+		this.descending = descending;
+		this.limit = limit;
+		while (keys < elements.length && isComparable(elements[keys])) {
+			keys++;
+		}
+	}
+	
+	static InsightCursor prepare(InsightArtifact artifact, InsightQuery query, String token) throws ServiceException {
+		if (query.getLimit() == null || query.getOrderBy() == null || query.getOrderBy().isEmpty()) {
+			if (token != null) {
+				throw new ServiceException("INSIGHT-CURSOR", "A cursor can only be used in combination with a limit and an order by");
+			}
+			return null;
+		}
+		Map<String, InsightField> groupBy = new LinkedHashMap<String, InsightField>();
+		for (InsightField field : artifact.getConfig().getFields()) {
+			if (field.getKey() != null && InsightArtifact.isGroupBy(field)) {
+				groupBy.put(InsightArtifact.getFieldName(field), field);
+			}
+		}
+		List<String> orderBy = new ArrayList<String>();
+		List<String> ordered = new ArrayList<String>();
+		List<Boolean> directions = new ArrayList<Boolean>();
+		for (String order : query.getOrderBy()) {
+			String name = order.trim().replaceAll("(?i)\\s+(asc|desc)$", "");
+			// we can't filter on aggregates
+			if (!groupBy.containsKey(name)) {
+				if (token != null) {
+					throw new ServiceException("INSIGHT-CURSOR", "A cursor can only be used when ordering on grouped fields, not: " + name);
+				}
+				return null;
+			}
+			ordered.add(name);
+			orderBy.add(order);
+			directions.add(order.trim().toLowerCase().endsWith(" desc"));
+		}
+		for (String name : groupBy.keySet()) {
+			if (!ordered.contains(name)) {
+				ordered.add(name);
+				orderBy.add(name);
+				directions.add(false);
+			}
+		}
+		query.setOrderBy(orderBy);
+		
+		String[] fields = ordered.toArray(new String[ordered.size()]);
+		Element<?>[] elements = new Element<?>[fields.length];
+		boolean[] descending = new boolean[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			elements[i] = artifact.getResult().get(fields[i]);
+			descending[i] = directions.get(i);
+		}
+		InsightCursor cursor = new InsightCursor(fields, elements, descending, query.getLimit());
+		
+		if (token == null) {
+			cursor.skip = query.getOffset() == null ? 0 : query.getOffset();
+		}
+		else {
+			cursor.decode(token);
+			if (cursor.values != null) {
+				List<String> keys = new ArrayList<String>();
+				for (int i = 0; i < cursor.keys; i++) {
+					keys.add(groupBy.get(fields[i]).getKey());
+				}
+				query.getFilters().addAll(cursor.getFilters(keys));
+			}
+			query.setOffset(cursor.skip);
+		}
+		return cursor;
+	}
+	
+	// the filters for the records after the values of the cursor, the keys are the names of the keyset fields in the core type
+	List<Filter> getFilters(List<String> keys) {
+		List<Filter> filters = new ArrayList<Filter>();
+		// the last field only needs to be strictly after if the keyset identifies a single record
+		boolean unique = keys.size() == fields.length;
+		for (int clause = 0; clause < keys.size(); clause++) {
+			for (int i = 0; i <= clause; i++) {
+				boolean inclusive = i == clause && (clause < keys.size() - 1 || !unique);
+				Filter filter = new Filter();
+				filter.setKey(keys.get(i));
+				filter.setOperator((descending[i] ? "<" : ">") + (inclusive ? "=" : ""));
+				filter.setValues(new ArrayList<Object>(Arrays.asList(values[i])));
+				// the first filter of every clause starts a new group
+				filter.setOr(i > 0);
+				filters.add(filter);
+			}
+		}
+		return filters;
+	}
+	
+	String next(List<?> results) {
+		// if we didn't get a full page, there is nothing left
+		if (results == null || results.size() < limit) {
+			return null;
+		}
+		Object[] last = getValues((ComplexContent) results.get(results.size() - 1));
+		if (last == null) {
+			return encode(values, skip + results.size());
+		}
+		// the keyset identifies the record
+		if (keys == fields.length) {
+			return encode(last, 0);
+		}
+		// count how many records at the end of the page share the last values
+		long same = 0;
+		for (int i = results.size() - 1; i >= 0; i--) {
+			if (Arrays.equals(last, getValues((ComplexContent) results.get(i)))) {
+				same++;
+			}
+			else {
+				break;
+			}
+		}
+		// the entire page has the values we started from
+		if (same == results.size() && Arrays.equals(last, values)) {
+			same += skip;
+		}
+		return encode(last, same);
+	}
+	
+	// the values of the keyset in the record, null if we can't use them
+	private Object[] getValues(ComplexContent record) {
+		if (keys == 0) {
+			return null;
+		}
+		Object[] values = new Object[keys];
+		for (int i = 0; i < keys; i++) {
+			values[i] = record.get(fields[i]);
+			if (values[i] == null) {
+				return null;
+			}
+		}
+		return values;
+	}
+	
+	private static boolean isComparable(Element<?> element) {
+		if (element == null || !(element.getType() instanceof Marshallable) || !(element.getType() instanceof Unmarshallable)) {
+			return false;
+		}
+		Integer minOccurs = ValueUtils.getValue(MinOccursProperty.getInstance(), element.getProperties());
+		return minOccurs == null || minOccurs > 0;
+	}
+	
+	// the order, the amount to skip and the values each on their own line, the values are encoded so they can contain anything
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	String encode(Object[] values, long skip) {
+		StringBuilder content = new StringBuilder();
+		content.append(getOrder()).append('\n').append(skip);
+		if (values == null) {
+			content.append("\n-");
+		}
+		else {
+			for (int i = 0; i < values.length; i++) {
+				String marshalled = ((Marshallable) elements[i].getType()).marshal(values[i]);
+				content.append("\nv").append(Base64.getUrlEncoder().withoutPadding().encodeToString(marshalled.getBytes(UTF8)));
+			}
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(content.toString().getBytes(UTF8));
+	}
+	
+	void decode(String token) throws ServiceException {
+		String[] parts;
+		try {
+			parts = new String(Base64.getUrlDecoder().decode(token), UTF8).split("\n");
+		}
+		catch (IllegalArgumentException e) {
+			throw new ServiceException("INSIGHT-CURSOR", "Invalid cursor", e);
+		}
+		if (parts.length < 3 || !parts[0].equals(getOrder())) {
+			throw new ServiceException("INSIGHT-CURSOR", "The cursor does not match the requested order");
+		}
+		try {
+			skip = Long.parseLong(parts[1]);
+		}
+		catch (NumberFormatException e) {
+			throw new ServiceException("INSIGHT-CURSOR", "Invalid cursor", e);
+		}
+		if (parts.length == 3 && parts[2].equals("-")) {
+			values = null;
+		}
+		else if (parts.length - 2 == keys) {
+			values = new Object[keys];
+			for (int i = 0; i < keys; i++) {
+				if (!parts[i + 2].startsWith("v")) {
+					throw new ServiceException("INSIGHT-CURSOR", "Invalid cursor");
+				}
+				try {
+					values[i] = ((Unmarshallable<?>) elements[i].getType()).unmarshal(new String(Base64.getUrlDecoder().decode(parts[i + 2].substring(1)), UTF8));
+				}
+				catch (IllegalArgumentException e) {
+					throw new ServiceException("INSIGHT-CURSOR", "Invalid cursor", e);
+				}
+			}
+		}
+		else {
+			throw new ServiceException("INSIGHT-CURSOR", "The cursor does not match the requested order");
+		}
+	}
+	
+	// identifies the order (including the direction), a cursor is only valid for the order it was created for
+	private String getOrder() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			builder.append(fields[i]).append(descending[i] ? " desc" : "");
+		}
+		return builder.toString();
+	}
+	
+	Object[] getStart() {
+		return values;
+	}
+	int getLimit() {
+		return limit;
+	}
+	long getSkip() {
+		return skip;
+	}
+}
@@ -0,0 +1,306 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import be.nabu.eai.module.services.crud.CRUDService;
+import be.nabu.eai.module.services.crud.Page;
+import be.nabu.eai.repository.api.Repository;
+import be.nabu.eai.repository.artifacts.jaxb.JAXBArtifact;
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.Service;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceInstance;
+import be.nabu.libs.services.api.ServiceInterface;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.Scope;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.TypeBaseUtils;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.properties.ScopeProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * A dashboard runs a number of insights with the same filters in one go.
+ * Insights that can be calculated in the same query are fused (see InsightFusion), the rest run separately, everything runs in parallel.
+ */
+public class InsightDashboardArtifact extends JAXBArtifact<InsightDashboardConfiguration> implements DefinedService {
+
+	private volatile Structure input, output;
+	private volatile List<InsightFusion> fusions;
+	private volatile Map<InsightArtifact, String> names;
+	
+	public InsightDashboardArtifact(String id, ResourceContainer<?> directory, Repository repository) {
+		super(id, directory, repository, "insight-dashboard.xml", InsightDashboardConfiguration.class);
+	}
+	
+	// the fusions are calculated once, if you change the insights, you need to reload the dashboard
+	List<InsightFusion> getFusions() {
+		if (fusions == null) {
+			synchronized(this) {
+				if (fusions == null) {
+					this.fusions = InsightFusion.plan(getId(), getConfig().getInsights());
+				}
+			}
+		}
+		return fusions;
+	}
+	
+	// the name of each insight in the output, if two insights have the same name we suffix them
+	private Map<InsightArtifact, String> getNames() {
+		if (names == null) {
+			synchronized(this) {
+				if (names == null) {
+					Map<InsightArtifact, String> names = new LinkedHashMap<InsightArtifact, String>();
+					for (InsightArtifact insight : getConfig().getInsights()) {
+						if (insight != null && !names.containsKey(insight)) {
+							String name = insight.getName();
+							int counter = 1;
+							while (names.containsValue(name)) {
+								name = insight.getName() + counter++;
+							}
+							names.put(insight, name);
+						}
+					}
+					this.names = names;
+				}
+			}
+		}
+		return names;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Structure getDefinedInput() {
+		if (input == null) {
+			synchronized(this) {
+				if (input == null) {
+					Structure input = new Structure();
+					input.setName("input");
+					input.add(new SimpleElementImpl<String>("connectionId", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0),
+							new ValueImpl<Scope>(ScopeProperty.getInstance(), Scope.PRIVATE)));
+					// the filters of all the insights, filters with the same name are shared
+					Structure filters = new Structure();
+					filters.setName("filter");
+					for (InsightArtifact insight : getNames().keySet()) {
+						Element<?> filter = insight.getServiceInterface().getInputDefinition().get("filter");
+						if (filter != null) {
+							for (Element<?> child : TypeUtils.getAllChildren((ComplexType) filter.getType())) {
+								if (filters.get(child.getName()) == null) {
+									filters.add(TypeBaseUtils.clone(child, filters));
+								}
+							}
+						}
+					}
+					input.add(new ComplexElementImpl("filter", filters, input, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					this.input = input;
+				}
+			}
+		}
+		return input;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Structure getDefinedOutput() {
+		if (output == null) {
+			synchronized(this) {
+				if (output == null) {
+					Structure output = new Structure();
+					output.setName("output");
+					for (Map.Entry<InsightArtifact, String> entry : getNames().entrySet()) {
+						output.add(new ComplexElementImpl(entry.getValue(), entry.getKey().getServiceInterface().getOutputDefinition(), output, new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0)));
+					}
+					this.output = output;
+				}
+			}
+		}
+		return output;
+	}
+	
+	@Override
+	public ServiceInterface getServiceInterface() {
+		return new ServiceInterface() {
+			@Override
+			public ComplexType getInputDefinition() {
+				return getDefinedInput();
+			}
+			@Override
+			public ComplexType getOutputDefinition() {
+				return getDefinedOutput();
+			}
+			@Override
+			public ServiceInterface getParent() {
+				return null;
+			}
+		};
+	}
+
+	@Override
+	public ServiceInstance newInstance() {
+		return new ServiceInstance() {
+			@Override
+			public Service getDefinition() {
+				return InsightDashboardArtifact.this;
+			}
+			@Override
+			public ComplexContent execute(ExecutionContext executionContext, ComplexContent input) throws ServiceException {
+				List<FutureTask<Map<InsightArtifact, ComplexContent>>> futures = new ArrayList<FutureTask<Map<InsightArtifact, ComplexContent>>>();
+				for (InsightFusion fusion : getFusions()) {
+					FutureTask<Map<InsightArtifact, ComplexContent>> future = new FutureTask<Map<InsightArtifact, ComplexContent>>(new Callable<Map<InsightArtifact, ComplexContent>>() {
+						@Override
+						public Map<InsightArtifact, ComplexContent> call() throws Exception {
+							return execute(executionContext, fusion, input);
+						}
+					});
+					try {
+						InsightExecutors.getWorkers().execute(future);
+					}
+					catch (RejectedExecutionException e) {
+						// we run it ourselves below
+					}
+					futures.add(future);
+				}
+				ComplexContent output = getDefinedOutput().newInstance();
+				try {
+					for (FutureTask<Map<InsightArtifact, ComplexContent>> future : futures) {
+						// if no worker has started it yet, we run it ourselves, this does nothing if it is already running or done
+						future.run();
+						for (Map.Entry<InsightArtifact, ComplexContent> entry : future.get().entrySet()) {
+							output.set(getNames().get(entry.getKey()), entry.getValue());
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ServiceException(e);
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof ServiceException) {
+						throw (ServiceException) e.getCause();
+					}
+					throw new ServiceException(e.getCause());
+				}
+				finally {
+					// if one fails, we don't need the others anymore
+					for (FutureTask<Map<InsightArtifact, ComplexContent>> future : futures) {
+						future.cancel(true);
+					}
+				}
+				return output;
+			}
+		};
+	}
+	
+	/**
+	 * Insights in the same fusion that end up with the exact same filters on the same connection run as one query, the others run separately.
+	 */
+	private Map<InsightArtifact, ComplexContent> execute(ExecutionContext executionContext, InsightFusion fusion, ComplexContent input) throws ServiceException {
+		Map<InsightArtifact, ComplexContent> outputs = new LinkedHashMap<InsightArtifact, ComplexContent>();
+		Map<InsightArtifact, ComplexContent> inputs = new LinkedHashMap<InsightArtifact, ComplexContent>();
+		for (InsightArtifact insight : fusion.getInsights()) {
+			inputs.put(insight, toInput(insight, input));
+		}
+		if (fusion.getResult() == null) {
+			for (InsightArtifact insight : fusion.getInsights()) {
+				outputs.put(insight, insight.newInstance().execute(executionContext, inputs.get(insight)));
+			}
+			return outputs;
+		}
+		List<InsightArtifact> remaining = new ArrayList<InsightArtifact>(fusion.getInsights());
+		while (!remaining.isEmpty()) {
+			InsightArtifact first = remaining.remove(0);
+			String connectionId = first.getConnectionId(inputs.get(first));
+			List<Filter> filters = getFilters(first, inputs.get(first));
+			List<InsightArtifact> selected = new ArrayList<InsightArtifact>();
+			selected.add(first);
+			for (InsightArtifact other : new ArrayList<InsightArtifact>(remaining)) {
+				String otherConnectionId = other.getConnectionId(inputs.get(other));
+				if (connectionId != null && connectionId.equals(otherConnectionId) && InsightFusion.isSameFilters(filters, getFilters(other, inputs.get(other)))) {
+					selected.add(other);
+					remaining.remove(other);
+				}
+			}
+			if (selected.size() == 1) {
+				outputs.put(first, first.newInstance().execute(executionContext, inputs.get(first)));
+			}
+			else {
+				// the fused query runs in the name of the first insight: it is routed, admitted and timed like that insight would be
+				List<List<ComplexContent>> results = first.run(connectionId, null, new InsightArtifact.Query<List<List<ComplexContent>>>() {
+					@Override
+					public List<List<ComplexContent>> run(String connectionId) throws ServiceException {
+						return fusion.select(executionContext, connectionId, filters, selected);
+					}
+				});
+				for (int i = 0; i < selected.size(); i++) {
+					ComplexContent output = selected.get(i).getServiceInterface().getOutputDefinition().newInstance();
+					output.set("results", results.get(i));
+					output.set("page", Page.build((long) results.get(i).size(), null, null, true));
+					outputs.put(selected.get(i), output);
+				}
+			}
+		}
+		return outputs;
+	}
+	
+	// the input for a single insight, it picks the filters it knows from the shared ones
+	private ComplexContent toInput(InsightArtifact insight, ComplexContent input) {
+		ComplexContent insightInput = insight.getServiceInterface().getInputDefinition().newInstance();
+		if (input != null) {
+			insightInput.set("connectionId", input.get("connectionId"));
+			Object filter = input.get("filter");
+			Element<?> filterElement = insightInput.getType().get("filter");
+			if (filter instanceof ComplexContent && filterElement != null) {
+				ComplexContent insightFilter = ((ComplexType) filterElement.getType()).newInstance();
+				for (Element<?> child : TypeUtils.getAllChildren(insightFilter.getType())) {
+					insightFilter.set(child.getName(), ((ComplexContent) filter).get(child.getName()));
+				}
+				insightInput.set("filter", insightFilter);
+			}
+		}
+		return insightInput;
+	}
+	
+	private List<Filter> getFilters(InsightArtifact insight, ComplexContent input) {
+		List<Filter> filters = new ArrayList<Filter>();
+		if (insight.getConfig().getFilters() != null) {
+			CRUDService.transformFilters(insight.getConfig().getFilters(), input, filters);
+		}
+		return filters;
+	}
+
+	@Override
+	public Set<String> getReferences() {
+		return null;
+	}
+}
@@ -0,0 +1,42 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+
+import be.nabu.eai.repository.jaxb.ArtifactXMLAdapter;
+
+@XmlRootElement(name = "insightDashboard")
+public class InsightDashboardConfiguration {
+	// the insights that make up the dashboard, they share the filters
+	private List<InsightArtifact> insights;
+
+	@XmlJavaTypeAdapter(value = ArtifactXMLAdapter.class)
+	public List<InsightArtifact> getInsights() {
+		if (insights == null) {
+			insights = new ArrayList<InsightArtifact>();
+		}
+		return insights;
+	}
+	public void setInsights(List<InsightArtifact> insights) {
+		this.insights = insights;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.eai.developer.MainController;
+import be.nabu.eai.developer.managers.base.BaseJAXBGUIManager;
+import be.nabu.eai.repository.resources.RepositoryEntry;
+import be.nabu.libs.property.api.Property;
+import be.nabu.libs.property.api.Value;
+
+public class InsightDashboardGUIManager extends BaseJAXBGUIManager<InsightDashboardConfiguration, InsightDashboardArtifact> {
+
+	public InsightDashboardGUIManager() {
+		super("Insight Dashboard", InsightDashboardArtifact.class, new InsightDashboardArtifactManager(), InsightDashboardConfiguration.class);
+	}
+
+	@Override
+	protected List<Property<?>> getCreateProperties() {
+		return new ArrayList<Property<?>>();
+	}
+
+	@Override
+	protected InsightDashboardArtifact newInstance(MainController controller, RepositoryEntry entry, Value<?>... values) throws IOException {
+		return new InsightDashboardArtifact(entry.getId(), entry.getContainer(), entry.getRepository());
+	}
+
+	@Override
+	public String getCategory() {
+		return "Services";
+	}
+}
@@ -0,0 +1,112 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.nio.charset.Charset;
+import java.util.Date;
+
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Calculates entity tags for insight responses.
+ * The tag is a hash of the content rather than of the marshalled bytes, so it can be calculated without marshalling and is the same for a streamed response.
+ * It is weak because the same content can be sent in different encodings.
+ */
+public class InsightETag {
+	
+	private static Charset UTF8 = Charset.forName("UTF-8");
+	
+	public static String format(long hash, String contentType) {
+		// the same content in a different format is a different entity
+		if (contentType != null) {
+			hash = hash(hash, contentType);
+		}
+		return "W/\"" + String.format("%016x", hash) + "\"";
+	}
+	
+	/**
+	 * Checks the tag against the value of an If-None-Match header, which can contain multiple (possibly weak) tags or a wildcard.
+	 */
+	public static boolean matches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || etag == null) {
+			return false;
+		}
+		String opaque = strip(etag);
+		for (String single : ifNoneMatch.split(",")) {
+			single = single.trim();
+			if (single.equals("*") || strip(single).equals(opaque)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static String strip(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	public static long hash(long hash, Object value) {
+		if (value instanceof ComplexContent) {
+			ComplexContent content = (ComplexContent) value;
+			for (Element<?> child : TypeUtils.getAllChildren(content.getType())) {
+				hash = hash(hash, child.getName());
+				hash = hash(hash, content.get(child.getName()));
+			}
+		}
+		else if (value instanceof Iterable) {
+			for (Object single : (Iterable) value) {
+				hash = hash(hash, single);
+			}
+			// make sure [a, b], [c] differs from [a], [b, c]
+			hash = hash(hash, "]");
+		}
+		else if (value instanceof Date) {
+			hash = hash(hash, ((Date) value).getTime());
+		}
+		else if (value instanceof Long) {
+			long number = (Long) value;
+			for (int i = 0; i < 8; i++) {
+				hash = fnv(hash, (byte) (number >>> (i * 8)));
+			}
+		}
+		else if (value == null) {
+			hash = fnv(hash, (byte) 0);
+		}
+		else {
+			for (byte single : value.toString().getBytes(UTF8)) {
+				hash = fnv(hash, single);
+			}
+			// separate consecutive values
+			hash = fnv(hash, (byte) 0);
+		}
+		return hash;
+	}
+	
+	// FNV-1a, the offset basis is the starting hash
+	public static long hash(Object value) {
+		return hash(0xcbf29ce484222325L, value);
+	}
+	
+	private static long fnv(long hash, byte value) {
+		hash ^= value;
+		return hash * 0x100000001b3L;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared thread pool for insight work that happens outside of the request thread.
+ */
+public class InsightExecutors {
+	
+	// runs queries in parallel, there is a hard limit so a burst of requests can not spawn an unbounded amount of threads and connections
+	private static ThreadPoolExecutor workers = new ThreadPoolExecutor(
+		Integer.parseInt(System.getProperty("insight.workers", "64")), 
+		Integer.parseInt(System.getProperty("insight.workers", "64")), 
+		60, TimeUnit.SECONDS, 
+		new ArrayBlockingQueue<Runnable>(Integer.parseInt(System.getProperty("insight.workersQueue", "256"))), 
+		new ThreadFactory() {
+			private AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "insight-worker-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+	);
+	
+	// periodic work like refreshing live feeds, tasks are expected to be short or hand off to the workers
+	private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+		private AtomicInteger counter = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "insight-scheduler-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	// marshals streamed responses, each of these threads can be held up by a slow client so there is a hard limit
+	private static ThreadPoolExecutor streamers = new ThreadPoolExecutor(
+		Integer.parseInt(System.getProperty("insight.streamers", "32")), 
+		Integer.parseInt(System.getProperty("insight.streamers", "32")), 
+		60, TimeUnit.SECONDS, 
+		new ArrayBlockingQueue<Runnable>(Integer.parseInt(System.getProperty("insight.streamersQueue", "64"))), 
+		new ThreadFactory() {
+			private AtomicInteger counter = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "insight-streamer-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		}
+	);
+	
+	static {
+		workers.allowCoreThreadTimeOut(true);
+		streamers.allowCoreThreadTimeOut(true);
+	}
+	
+	// rejects work when all workers are busy and the queue is full, whoever waits for the result should be able to run it itself
+	public static ExecutorService getWorkers() {
+		return workers;
+	}
+	
+	public static ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+	
+	// rejects work when all streamers are busy and the queue is full
+	public static ExecutorService getStreamers() {
+		return streamers;
+	}
+}
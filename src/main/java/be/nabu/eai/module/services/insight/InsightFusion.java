@@ -0,0 +1,225 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.base.TypeBaseUtils;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.ForeignNameProperty;
+import be.nabu.libs.types.properties.NameProperty;
+import be.nabu.libs.types.structure.DefinedStructure;
+import nabu.services.jdbc.Services;
+import nabu.services.jdbc.Services.JDBCSelectResult;
+
+/**
+ * Insights on the same core type and connection that group by the same fields can be calculated in a single query.
+ * The fused result contains the group by fields once and the aggregates of every insight under a unique name, the rows are split back into the results of the separate insights afterwards.
+ */
+public class InsightFusion {
+	
+	private List<InsightArtifact> insights = new ArrayList<InsightArtifact>();
+	// for each insight: the name of the field in the insight result mapped to the name in the fused result
+	private List<Map<String, String>> names = new ArrayList<Map<String, String>>();
+	private List<String> groupBy = new ArrayList<String>();
+	private DefinedStructure result;
+	
+	/**
+	 * Groups the insights that can be fused, an insight that can't be fused with anything ends up alone.
+	 */
+	public static List<InsightFusion> plan(String id, List<InsightArtifact> insights) {
+		Map<String, List<InsightArtifact>> groups = new LinkedHashMap<String, List<InsightArtifact>>();
+		for (InsightArtifact insight : insights) {
+			if (insight == null) {
+				continue;
+			}
+			// anything that has to be aggregated in the JVM is calculated separately
+			String signature = isFusible(insight) ? getSignature(insight) : insight.getId();
+			if (!groups.containsKey(signature)) {
+				groups.put(signature, new ArrayList<InsightArtifact>());
+			}
+			groups.get(signature).add(insight);
+		}
+		List<InsightFusion> fusions = new ArrayList<InsightFusion>();
+		for (List<InsightArtifact> group : groups.values()) {
+			InsightFusion fusion = new InsightFusion();
+			fusion.insights.addAll(group);
+			if (group.size() > 1) {
+				fusion.build(id + ".fused" + fusions.size());
+			}
+			fusions.add(fusion);
+		}
+		return fusions;
+	}
+	
+	private static boolean isFusible(InsightArtifact insight) {
+		return insight.getConfig().getCoreType() != null && !insight.hasApproximateAggregates();
+	}
+	
+	private static String getSignature(InsightArtifact insight) {
+		List<String> keys = new ArrayList<String>();
+		for (InsightField field : insight.getConfig().getFields()) {
+			if (field.getKey() != null && InsightArtifact.isGroupBy(field)) {
+				keys.add(field.getKey());
+			}
+		}
+		Collections.sort(keys);
+		StringBuilder builder = new StringBuilder();
+		InsightArtifact.appendKey(builder, "coreType", insight.getConfig().getCoreType().getId());
+		InsightArtifact.appendKey(builder, "connection", insight.getConfig().getConnection() == null ? null : insight.getConfig().getConnection().getId());
+		InsightArtifact.appendKey(builder, "groupBy", keys);
+		return builder.toString();
+	}
+	
+	private void build(String id) {
+		InsightArtifact first = insights.get(0);
+		result = InsightArtifact.newExtension(first.getConfig().getCoreType(), id);
+		// the group by fields are shared, we take the names of the first insight
+		Map<String, String> groupNames = new LinkedHashMap<String, String>();
+		for (InsightField field : first.getConfig().getFields()) {
+			if (field.getKey() != null && InsightArtifact.isGroupBy(field) && !groupNames.containsKey(field.getKey())) {
+				Element<?> element = first.getResult().get(InsightArtifact.getFieldName(field));
+				if (element != null) {
+					String name = InsightArtifact.getFieldName(field);
+					result.add(TypeBaseUtils.clone(element, result));
+					groupNames.put(field.getKey(), name);
+					groupBy.add(name);
+				}
+			}
+		}
+		for (int i = 0; i < insights.size(); i++) {
+			InsightArtifact insight = insights.get(i);
+			Map<String, String> names = new LinkedHashMap<String, String>();
+			for (InsightField field : insight.getConfig().getFields()) {
+				if (field.getKey() == null) {
+					continue;
+				}
+				String name = InsightArtifact.getFieldName(field);
+				if (InsightArtifact.isGroupBy(field)) {
+					if (groupNames.containsKey(field.getKey())) {
+						names.put(name, groupNames.get(field.getKey()));
+					}
+					continue;
+				}
+				Element<?> element = insight.getResult().get(name);
+				if (element != null) {
+					String fusedName = "i" + i + name.substring(0, 1).toUpperCase() + name.substring(1);
+					Element<?> clone = TypeBaseUtils.clone(element, result);
+					clone.setProperty(new ValueImpl<String>(NameProperty.getInstance(), fusedName));
+					// the aggregate is calculated on the original field, under its new name we need to point to it explicitly
+					if (clone.getProperty(ForeignNameProperty.getInstance()) == null || clone.getProperty(ForeignNameProperty.getInstance()).getValue() == null) {
+						clone.setProperty(new ValueImpl<String>(ForeignNameProperty.getInstance(), field.getKey() + "@" + insight.getConfig().getCoreType().getId()));
+					}
+					result.add(clone);
+					names.put(name, fusedName);
+				}
+			}
+			this.names.add(names);
+		}
+	}
+	
+	/**
+	 * Whether the filters are the same, regardless of the order they were configured in (unless they use "or").
+	 */
+	public static boolean isSameFilters(List<Filter> filters, List<Filter> other) {
+		if (filters.size() != other.size()) {
+			return false;
+		}
+		return getSignatures(filters).equals(getSignatures(other));
+	}
+	
+	private static List<String> getSignatures(List<Filter> filters) {
+		List<String> signatures = new ArrayList<String>();
+		// an "or" filter is grouped with the one before it, then the order matters
+		boolean ordered = false;
+		for (Filter filter : filters) {
+			ordered |= filter.isOr();
+			StringBuilder builder = new StringBuilder();
+			InsightArtifact.appendKey(builder, "key", filter.getKey());
+			InsightArtifact.appendKey(builder, "operator", filter.getOperator());
+			InsightArtifact.appendKey(builder, "values", filter.getValues());
+			// the flags change the meaning of the filter
+			InsightArtifact.appendKey(builder, "or", filter.isOr());
+			InsightArtifact.appendKey(builder, "caseInsensitive", filter.isCaseInsensitive());
+			signatures.add(builder.toString());
+		}
+		if (!ordered) {
+			Collections.sort(signatures);
+		}
+		return signatures;
+	}
+	
+	/**
+	 * Run the fused query for the given insights (a subset of the fused ones) and split the rows back into a result list per insight.
+	 */
+	public List<List<ComplexContent>> select(ExecutionContext executionContext, String connectionId, List<Filter> filters, List<InsightArtifact> selected) throws ServiceException {
+		JDBCSelectResult selectFiltered = Services.selectFiltered(
+			connectionId, 
+			null, 
+			result.getId(), 
+			null, 
+			null, 
+			null, 
+			false,
+			false,
+			false, 
+			filters, 
+			null,
+			executionContext,
+			groupBy,
+			null,
+			null,
+			null,
+			null
+		);
+		List<List<ComplexContent>> results = new ArrayList<List<ComplexContent>>();
+		for (InsightArtifact insight : selected) {
+			Map<String, String> names = this.names.get(insights.indexOf(insight));
+			List<ComplexContent> list = new ArrayList<ComplexContent>();
+			if (selectFiltered.getResults() != null) {
+				for (Object record : selectFiltered.getResults()) {
+					ComplexContent row = (ComplexContent) record;
+					ComplexContent single = insight.getResult().newInstance();
+					for (Map.Entry<String, String> name : names.entrySet()) {
+						single.set(name.getKey(), row.get(name.getValue()));
+					}
+					list.add(single);
+				}
+			}
+			results.add(list);
+		}
+		return results;
+	}
+	
+	public List<InsightArtifact> getInsights() {
+		return insights;
+	}
+	// only set if there is more than one insight
+	public DefinedStructure getResult() {
+		return result;
+	}
+}
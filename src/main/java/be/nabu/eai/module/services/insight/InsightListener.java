@@ -18,16 +18,25 @@
 package be.nabu.eai.module.services.insight;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import be.nabu.eai.module.rest.RESTUtils;
-import be.nabu.eai.module.services.crud.CRUDFilter;
 import be.nabu.eai.module.web.application.WebApplication;
 import be.nabu.eai.module.web.application.WebApplicationUtils;
 import be.nabu.libs.authentication.api.Authenticator;
@@ -35,37 +44,45 @@ import be.nabu.libs.authentication.api.Device;
 import be.nabu.libs.authentication.api.PermissionHandler;
 import be.nabu.libs.authentication.api.PotentialPermissionHandler;
 import be.nabu.libs.authentication.api.Token;
-import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.authentication.api.TokenValidator;
 import be.nabu.libs.http.HTTPCodes;
 import be.nabu.libs.http.HTTPException;
 import be.nabu.libs.http.api.HTTPRequest;
 import be.nabu.libs.http.api.HTTPResponse;
 import be.nabu.libs.http.core.DefaultHTTPResponse;
-import be.nabu.libs.http.core.HTTPUtils;
-import be.nabu.libs.http.glue.GlueListener;
-import be.nabu.libs.http.glue.GlueListener.PathAnalysis;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.services.ServiceRuntime;
 import be.nabu.libs.services.ServiceUtils;
 import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.types.api.ComplexContent;
-import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.binding.api.MarshallableBinding;
 import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
 import be.nabu.utils.mime.api.Header;
 import be.nabu.utils.mime.impl.MimeHeader;
 import be.nabu.utils.mime.impl.MimeUtils;
 import be.nabu.utils.mime.impl.PlainMimeContentPart;
 import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
 
-public class InsightListener implements EventHandler<HTTPRequest, HTTPResponse> {
+/**
+ * Handles the requests for a single insight, the {@link InsightRouter} decides which listener gets the request.
+ */
+public class InsightListener {
+
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	private static final long DEFAULT_STREAM_TIMEOUT = 30000;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
 
 	private String parentPath;
 	private String childPath;
 	private Charset charset;
 	private InsightArtifact artifact;
 	private WebApplication application;
-	private PathAnalysis pathAnalysis;
 
 	public InsightListener(WebApplication application, InsightArtifact insightArtifact, String parentPath, String childPath, Charset charset) {
 		this.application = application;
@@ -73,39 +90,15 @@ public class InsightListener implements EventHandler<HTTPRequest, HTTPResponse>
 		this.parentPath = parentPath;
 		this.childPath = childPath;
 		this.charset = charset;
-		if (childPath.startsWith("/")) {
-			childPath = childPath.substring(1);
-		}
-		this.pathAnalysis = GlueListener.analyzePath(childPath);
 	}
 
-	@Override
-	public HTTPResponse handle(HTTPRequest request) {
-		// stop fast if wrong method
-		if (!"GET".equalsIgnoreCase(request.getMethod())) {
-			return null;
-		}
+	// the router has already matched the path
+	public HTTPResponse handle(HTTPRequest request, URI uri, Map<String, String> pathParameters) {
 		Token token = null;
 		Device device = null;
 		try {
 			ServiceRuntime.setGlobalContext(new HashMap<String, Object>());
 			
-			URI uri = HTTPUtils.getURI(request, false);
-			String path = URIUtils.normalize(uri.getPath());
-			// not in this web artifact
-			if (!path.startsWith(parentPath)) {
-				return null;
-			}
-			path = path.substring(parentPath.length());
-			if (path.startsWith("/")) {
-				path = path.substring(1);
-			}
-			Map<String, String> pathParameters = pathAnalysis.analyze(path);
-			// not in this rest path
-			if (pathParameters == null) {
-				return null;
-			}
-			
 			// if we have chosen this rest service, check if the server is offline
 			WebApplicationUtils.checkOffline(application, request);
 			
@@ -117,9 +110,7 @@ public class InsightListener implements EventHandler<HTTPRequest, HTTPResponse>
 			ServiceRuntime.getGlobalContext().put("device", device);
 			ServiceRuntime.getGlobalContext().put("service.context", application.getId());
 			
-			if (artifact.getConfig().getRole() != null) {
-				WebApplicationUtils.checkRole(application, token, artifact.getConfig().getRole());
-			}
+			checkRole(token);
 			
 //			HTTPResponse checkRateLimits = WebApplicationUtils.checkRateLimits(application, token, device, artifact.getConfig().getListPermission() == null ? service.getId() : artifact.getConfig().getListPermission(), null, request);
 			HTTPResponse checkRateLimits = WebApplicationUtils.checkRateLimits(application, token, device, artifact.getId(), null, request);
@@ -130,100 +121,104 @@ public class InsightListener implements EventHandler<HTTPRequest, HTTPResponse>
 			Header contentTypeHeader = MimeUtils.getHeader("Content-Type", request.getContent().getHeaders());
 			String contentType = contentTypeHeader == null ? null : contentTypeHeader.getValue().trim().replaceAll(";.*$", "");
 
-			PermissionHandler permissionHandler = application.getPermissionHandler();
-			String action = artifact.getPermissionAction();
-			String context = null;
-			String parentQueryName = null;
-			if (artifact.getConfig().getFilters() != null) {
-				Element<?> securityContext = artifact.getSecurityContext();
-				if (securityContext != null) {
-					for (CRUDFilter filter : artifact.getConfig().getFilters()) {
-						if (filter != null && filter.getKey() != null) {
-							if (securityContext.getName().equals(filter.getKey())) {
-								parentQueryName = filter.getAlias() == null ? filter.getKey() : filter.getAlias();
-								break;
-							}
-						}
-					}
-				}
-			}
-			if (parentQueryName != null) {
-				context = pathParameters.get("contextId");
-			}
-			if (permissionHandler != null) {
-				if (parentQueryName == null && artifact.hasSecurityContextFilter()) {
-					throw new HTTPException(400, "A security context id is required");
-				}
-				
-				if (action != null && !permissionHandler.hasPermission(token, context, action)) {
-					boolean allowed = false;
-					// if you specifically did not select a security field, we can check the potential permissions as well
-					if (artifact.getConfig().getSecurityContextField() == null) {
-						PotentialPermissionHandler potentialPermissionHandler = application.getPotentialPermissionHandler();
-						if (potentialPermissionHandler != null) {
-							allowed = potentialPermissionHandler.hasPotentialPermission(token, action);
-						}
-					}
-					if (!allowed) {
-						throw new HTTPException(token == null ? 401 : 403, "User does not have permission to execute the rest service", "User '" + (token == null ? Authenticator.ANONYMOUS : token.getName()) + "' does not have permission to run the CRUD service: " + artifact.getId(), token);
-					}
-				}
-			}
+			String context = getContext(pathParameters);
+			checkPermission(token, context);
 			
 			List<Header> headers = new ArrayList<Header>();
 			
-			ComplexContent input = artifact.getServiceInterface().getInputDefinition().newInstance();
-			// limit to the user if we have a permission handler
-			// if we don't have one configured, it is not enforced on the other actions either and it could backfire trying to force it here
-			List<String> limit = queryProperties.get("limit");
-			if (limit != null && !limit.isEmpty()) {
-				input.set("limit", limit.get(0));
-			}
-			List<String> offset = queryProperties.get("offset");
-			if (offset != null && !offset.isEmpty()) {
-				input.set("offset", offset.get(0));
+			ComplexContent input = getInput(queryProperties, context);
+			
+			if (artifact.getConfig().isAllowHeaderAsQueryParameter()) {
+				WebApplicationUtils.queryToHeader(request, queryProperties);
 			}
-			List<String> orderBy = queryProperties.get("orderBy");
-			if (orderBy != null && !orderBy.isEmpty()) {
-				input.set("orderBy", orderBy);
+			
+			// subscribe to updates rather than getting the current result
+			InsightLive live = artifact.getLive();
+			if (live != null && MimeUtils.getAcceptedContentTypes(request.getContent().getHeaders()).contains("text/event-stream")) {
+				String signature = application.getId() + ":" + artifact.getCacheKey(artifact.getConnectionId(input), input, true);
+				headers.add(new MimeHeader("Content-Type", "text/event-stream; charset=UTF-8"));
+				headers.add(new MimeHeader("Cache-Control", "no-cache"));
+				headers.add(new MimeHeader("Transfer-Encoding", "chunked"));
+				return new DefaultHTTPResponse(request, 200, HTTPCodes.getMessage(200), new PlainMimeContentPart(null,
+					live.subscribe(this, token, context, input, signature),
+					headers.toArray(new Header[headers.size()])
+				));
 			}
-			if (artifact.getConfig().getFilters() != null) {
-				for (CRUDFilter filter : artifact.getConfig().getFilters()) {
-					if (filter != null && filter.isInput() && filter.getKey() != null) {
-						List<String> list = queryProperties.get(filter.getAlias() == null ? filter.getKey() : filter.getAlias());
-						if (list != null && !list.isEmpty()) {
-							input.set("filter/" + (filter.getAlias() == null ? filter.getKey() : filter.getAlias()), list);
-						}
+			
+			Header ifNoneMatch = MimeUtils.getHeader("If-None-Match", request.getContent().getHeaders());
+			// if the client already has the result we still have cached, we don't need to send it again
+			if (ifNoneMatch != null) {
+				Long hash = artifact.getCachedHash(input);
+				if (hash != null) {
+					String etag = InsightETag.format(hash, getContentType(request));
+					if (InsightETag.matches(ifNoneMatch.getValue(), etag)) {
+						headers.add(new MimeHeader("Content-Length", "0"));
+						addCacheHeaders(headers, etag, token);
+						return new DefaultHTTPResponse(request, 304, HTTPCodes.getMessage(304), new PlainMimeEmptyPart(null, 
+							headers.toArray(new Header[headers.size()])));
 					}
 				}
 			}
-			if (parentQueryName != null) {
-				input.set("filter/" + parentQueryName + "[0]", context);
-			}
 			
-			ExecutionContext executionContext = application.getRepository().newExecutionContext(token);
-			ServiceRuntime runtime = new ServiceRuntime(artifact, executionContext);
-			// we set the service context to the web application, rest services can be mounted in multiple applications
-			ServiceUtils.setServiceContext(runtime, application.getId());
-			runtime.getContext().put("webApplicationId", application.getId());
-			ComplexContent output = runtime.run(input);
+			ComplexContent output = run(input, token);
 			
 			if (output != null) {
-				if (artifact.getConfig().isAllowHeaderAsQueryParameter()) {
-					WebApplicationUtils.queryToHeader(request, queryProperties);
-				}
-				
-				MarshallableBinding binding = RESTUtils.getOutputBinding(request, output.getType(), charset, "application/json", false, false);
+				MarshallableBinding binding = getOutputBinding(request, output.getType());
 				
 				if (binding == null) {
 					throw new HTTPException(500, "Unsupported response content types: " + MimeUtils.getAcceptedContentTypes(request.getContent().getHeaders()));
 				}
-				contentType = RESTUtils.getContentTypeFor(binding);
+				contentType = getContentType(binding);
 				
-				ByteArrayOutputStream content = new ByteArrayOutputStream();
-				binding.marshal(content, (ComplexContent) output);
-				byte[] byteArray = content.toByteArray();
-				headers.add(new MimeHeader("Content-Length", "" + byteArray.length));
+				String etag = InsightETag.format(InsightETag.hash(output), contentType);
+				// the data changed in a way that did not influence this result
+				if (ifNoneMatch != null && InsightETag.matches(ifNoneMatch.getValue(), etag)) {
+					headers.add(new MimeHeader("Content-Length", "0"));
+					addCacheHeaders(headers, etag, token);
+					return new DefaultHTTPResponse(request, 304, HTTPCodes.getMessage(304), new PlainMimeEmptyPart(null, 
+						headers.toArray(new Header[headers.size()])));
+				}
+				addCacheHeaders(headers, etag, token);
+				
+				String encoding = artifact.getConfig().isCompressResponse() ? getEncoding(request) : null;
+				if (artifact.getConfig().isCompressResponse()) {
+					headers.add(new MimeHeader("Vary", "Accept-Encoding"));
+				}
+				
+				// if there is no room to stream it right now, we buffer it instead
+				ReadableContainer<ByteBuffer> content = artifact.getConfig().isStreamResponse() ? stream(binding, output, encoding) : null;
+				if (content != null) {
+					// we don't know the size up front, but a response large enough to stream is large enough to compress
+					headers.add(new MimeHeader("Transfer-Encoding", "chunked"));
+					if (encoding != null) {
+						headers.add(new MimeHeader("Content-Encoding", encoding));
+					}
+				}
+				else {
+					byte[] compressed = encoding == null ? null : artifact.getCompressed(etag + encoding);
+					if (compressed == null) {
+						// marshal straight into a chunked buffer, we don't need a contiguous copy of the data
+						ByteBuffer buffer = IOUtils.newByteBuffer();
+						OutputStream stream = IOUtils.toOutputStream(buffer);
+						binding.marshal(stream, output);
+						stream.flush();
+						int threshold = artifact.getConfig().getCompressionThreshold() == null ? DEFAULT_COMPRESSION_THRESHOLD : artifact.getConfig().getCompressionThreshold();
+						// small responses are not worth the effort
+						if (encoding != null && buffer.remainingData() >= threshold) {
+							compressed = compress(buffer, encoding);
+							artifact.putCompressed(etag + encoding, compressed);
+						}
+						else {
+							content = buffer;
+							headers.add(new MimeHeader("Content-Length", "" + buffer.remainingData()));
+						}
+					}
+					if (compressed != null) {
+						content = IOUtils.wrap(compressed, true);
+						headers.add(new MimeHeader("Content-Encoding", encoding));
+						headers.add(new MimeHeader("Content-Length", "" + compressed.length));
+					}
+				}
 				headers.add(new MimeHeader("Content-Type", contentType + "; charset=" + charset.name()));
 				
 				Map<String, String> values = MimeUtils.getHeaderAsValues("Accept-Content-Disposition", request.getContent().getHeaders());
@@ -240,7 +235,7 @@ public class InsightListener implements EventHandler<HTTPRequest, HTTPResponse>
 				}
 				
 				PlainMimeContentPart part = new PlainMimeContentPart(null,
-					IOUtils.wrap(byteArray, true),
+					content,
 					headers.toArray(new Header[headers.size()])
 				);
 				return new DefaultHTTPResponse(request, 200, HTTPCodes.getMessage(200), part);
@@ -261,14 +256,349 @@ public class InsightListener implements EventHandler<HTTPRequest, HTTPResponse>
 			throw e;
 		}
 		catch (Exception e) {
-			HTTPException httpException = new HTTPException(500, "Could not execute service", "Could not execute service: " + artifact.getId(), e, token);
-			httpException.getContext().addAll(Arrays.asList(artifact.getId()));
-			httpException.setDevice(device);
-			throw httpException;
+			throw toHTTPException(e, token, device);
 		}
 		finally {
 			ServiceRuntime.setGlobalContext(null);
 		}
 	}
+	
+	/**
+	 * Run the insight as part of a batch, the token and device are resolved once for the whole batch.
+	 * All the checks of a standalone request still apply, only the http specifics (caching, compression, streaming,...) are left to the batch.
+	 */
+	public ComplexContent execute(HTTPRequest request, URI uri, Map<String, String> pathParameters, Token token, Device device) throws HTTPException {
+		try {
+			ServiceRuntime.setGlobalContext(new HashMap<String, Object>());
+			ServiceRuntime.getGlobalContext().put("device", device);
+			ServiceRuntime.getGlobalContext().put("service.context", application.getId());
+			
+			checkRole(token);
+			
+			HTTPResponse checkRateLimits = WebApplicationUtils.checkRateLimits(application, token, device, artifact.getId(), null, request);
+			if (checkRateLimits != null) {
+				throw new HTTPException(checkRateLimits.getCode(), HTTPCodes.getMessage(checkRateLimits.getCode()), "Rate limited: " + artifact.getId(), token);
+			}
+			
+			String context = getContext(pathParameters);
+			checkPermission(token, context);
+			
+			return run(getInput(URIUtils.getQueryProperties(uri), context), token);
+		}
+		catch (HTTPException e) {
+			if (e.getToken() == null) {
+				e.setToken(token);
+			}
+			if (e.getDevice() == null) {
+				e.setDevice(device);
+			}
+			e.getContext().addAll(Arrays.asList(artifact.getId()));
+			throw e;
+		}
+		catch (Exception e) {
+			throw toHTTPException(e, token, device);
+		}
+		finally {
+			ServiceRuntime.setGlobalContext(null);
+		}
+	}
+	
+	private void checkRole(Token token) {
+		InsightPlan plan = artifact.getPlan();
+		InsightPermissionCache permissionCache = artifact.getPermissionCache();
+		if (plan.getRoles() != null) {
+			// we only remember that you passed, if not we check again so you get the correct error
+			String roleKey = permissionCache == null ? null : InsightPermissionCache.getKey(application.getId(), token, null, null);
+			if (roleKey == null || permissionCache.get(roleKey) == null) {
+				WebApplicationUtils.checkRole(application, token, plan.getRoles());
+				if (roleKey != null) {
+					permissionCache.put(roleKey, true);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Whether the token is still valid and still allowed to run the insight in the given context.
+	 * Long running subscriptions check this periodically, the token they started with may have expired or lost its permissions since.
+	 */
+	boolean isAuthorized(Token token, String context) {
+		if (token != null) {
+			if (token.getValidUntil() != null && token.getValidUntil().before(new Date())) {
+				return false;
+			}
+			TokenValidator tokenValidator = application.getTokenValidator();
+			if (tokenValidator != null && !tokenValidator.isValid(token)) {
+				return false;
+			}
+		}
+		try {
+			checkRole(token);
+			checkPermission(token, context);
+			return true;
+		}
+		catch (HTTPException e) {
+			return false;
+		}
+	}
+	
+	private String getContext(Map<String, String> pathParameters) {
+		return artifact.getPlan().getSecurityContextName() == null ? null : pathParameters.get("contextId");
+	}
+	
+	private void checkPermission(Token token, String context) {
+		InsightPlan plan = artifact.getPlan();
+		InsightPermissionCache permissionCache = artifact.getPermissionCache();
+		PermissionHandler permissionHandler = application.getPermissionHandler();
+		String action = plan.getPermissionAction();
+		if (permissionHandler != null) {
+			if (plan.getSecurityContextName() == null && plan.isSecurityContextFilter()) {
+				throw new HTTPException(400, "A security context id is required");
+			}
+			
+			if (action != null) {
+				String permissionKey = permissionCache == null ? null : InsightPermissionCache.getKey(application.getId(), token, context, action);
+				Boolean allowed = permissionKey == null ? null : permissionCache.get(permissionKey);
+				if (allowed == null) {
+					allowed = hasPermission(permissionHandler, plan, token, context, action);
+					if (permissionKey != null) {
+						permissionCache.put(permissionKey, allowed);
+					}
+				}
+				if (!allowed) {
+					throw new HTTPException(token == null ? 401 : 403, "User does not have permission to execute the rest service", "User '" + (token == null ? Authenticator.ANONYMOUS : token.getName()) + "' does not have permission to run the CRUD service: " + artifact.getId(), token);
+				}
+			}
+		}
+	}
+	
+	private ComplexContent getInput(Map<String, List<String>> queryProperties, String context) {
+		InsightPlan plan = artifact.getPlan();
+		ComplexContent input = artifact.getServiceInterface().getInputDefinition().newInstance();
+		// limit to the user if we have a permission handler
+		// if we don't have one configured, it is not enforced on the other actions either and it could backfire trying to force it here
+		List<String> limit = queryProperties.get("limit");
+		if (limit != null && !limit.isEmpty()) {
+			input.set("limit", limit.get(0));
+		}
+		List<String> offset = queryProperties.get("offset");
+		if (offset != null && !offset.isEmpty()) {
+			input.set("offset", offset.get(0));
+		}
+		List<String> orderBy = queryProperties.get("orderBy");
+		if (orderBy != null && !orderBy.isEmpty()) {
+			input.set("orderBy", orderBy);
+		}
+		List<String> cursor = queryProperties.get("cursor");
+		if (cursor != null && !cursor.isEmpty()) {
+			input.set("cursor", cursor.get(0));
+		}
+		List<String> totalRowCount = queryProperties.get("totalRowCount");
+		if (totalRowCount != null && !totalRowCount.isEmpty()) {
+			input.set("totalRowCount", totalRowCount.get(0));
+		}
+		for (int i = 0; i < plan.getParameterNames().size(); i++) {
+			List<String> list = queryProperties.get(plan.getParameterNames().get(i));
+			if (list != null && !list.isEmpty()) {
+				input.set(plan.getParameterPaths().get(i), list);
+			}
+		}
+		if (plan.getSecurityContextPath() != null) {
+			input.set(plan.getSecurityContextPath(), context);
+		}
+		return input;
+	}
+	
+	private ComplexContent run(ComplexContent input, Token token) throws ServiceException {
+		ExecutionContext executionContext = application.getRepository().newExecutionContext(token);
+		ServiceRuntime runtime = new ServiceRuntime(artifact, executionContext);
+		// we set the service context to the web application, rest services can be mounted in multiple applications
+		ServiceUtils.setServiceContext(runtime, application.getId());
+		runtime.getContext().put("webApplicationId", application.getId());
+		return runtime.run(input);
+	}
+	
+	private HTTPException toHTTPException(Exception e, Token token, Device device) {
+		String code = getCode(e);
+		HTTPException httpException;
+		if (InsightArtifact.TIMEOUT.equals(code)) {
+			httpException = new HTTPException(504, "The service took too long", "The service took too long: " + artifact.getId(), e, token);
+		}
+		// the insight itself is too busy
+		else if (InsightArtifact.REJECTED.equals(code)) {
+			httpException = new HTTPException(429, "Too many requests", "Too many concurrent requests: " + artifact.getId(), e, token);
+		}
+		// the shared connection is too busy
+		else if (InsightArtifact.OVERLOADED.equals(code)) {
+			httpException = new HTTPException(503, "Service unavailable", "The connection is too busy: " + artifact.getId(), e, token);
+		}
+		// the client can narrow down the filters
+		else if (InsightArtifact.TOO_LARGE.equals(code)) {
+			httpException = new HTTPException(400, "The query is too large", "The query needs too much data to be calculated: " + artifact.getId(), e, token);
+		}
+		else {
+			httpException = new HTTPException(500, "Could not execute service", "Could not execute service: " + artifact.getId(), e, token);
+		}
+		httpException.getContext().addAll(Arrays.asList(artifact.getId()));
+		httpException.setDevice(device);
+		return httpException;
+	}
+	
+	private static byte[] compress(ByteBuffer buffer, String encoding) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream output = encode(bytes, encoding);
+		InputStream input = IOUtils.toInputStream(buffer);
+		byte[] chunk = new byte[8192];
+		int read;
+		while ((read = input.read(chunk)) > 0) {
+			output.write(chunk, 0, read);
+		}
+		output.close();
+		return bytes.toByteArray();
+	}
+	
+	private static OutputStream encode(OutputStream output, String encoding) throws IOException {
+		if ("gzip".equals(encoding)) {
+			return new GZIPOutputStream(output, STREAM_BUFFER_SIZE);
+		}
+		else if ("deflate".equals(encoding)) {
+			return new DeflaterOutputStream(output);
+		}
+		return output;
+	}
+	
+	// the supported encoding the client prefers, gzip wins a tie
+	private static String getEncoding(HTTPRequest request) {
+		Header header = MimeUtils.getHeader("Accept-Encoding", request.getContent().getHeaders());
+		if (header == null || header.getValue() == null) {
+			return null;
+		}
+		String encoding = null;
+		double best = 0;
+		for (String part : header.getValue().split(",")) {
+			String [] values = part.trim().split(";");
+			String name = values[0].trim().toLowerCase();
+			double quality = 1;
+			for (int i = 1; i < values.length; i++) {
+				String parameter = values[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2).trim());
+					}
+					catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			if (name.equals("*")) {
+				name = "gzip";
+			}
+			if ((name.equals("gzip") || name.equals("deflate")) && (quality > best || (quality == best && name.equals("gzip")))) {
+				encoding = name;
+				best = quality;
+			}
+		}
+		return best > 0 ? encoding : null;
+	}
+	
+	private boolean hasPermission(PermissionHandler permissionHandler, InsightPlan plan, Token token, String context, String action) {
+		if (permissionHandler.hasPermission(token, context, action)) {
+			return true;
+		}
+		// if you specifically did not select a security field, we can check the potential permissions as well
+		if (plan.isPotentialPermissions()) {
+			PotentialPermissionHandler potentialPermissionHandler = application.getPotentialPermissionHandler();
+			if (potentialPermissionHandler != null) {
+				return potentialPermissionHandler.hasPotentialPermission(token, action);
+			}
+		}
+		return false;
+	}
+	
+	// the code of the first insight specific service exception in the chain
+	private static String getCode(Throwable throwable) {
+		while (throwable != null) {
+			if (throwable instanceof ServiceException && ((ServiceException) throwable).getCode() != null && ((ServiceException) throwable).getCode().startsWith("INSIGHT-")) {
+				return ((ServiceException) throwable).getCode();
+			}
+			throwable = throwable.getCause();
+		}
+		return null;
+	}
+	
+	public String getParentPath() {
+		return parentPath;
+	}
+	public String getChildPath() {
+		return childPath;
+	}
+	public WebApplication getApplication() {
+		return application;
+	}
+	
+	private void addCacheHeaders(List<Header> headers, String etag, Token token) {
+		headers.add(new MimeHeader("ETag", etag));
+		if (artifact.getConfig().getMaxAge() != null) {
+			// a response for a specific user should not end up in a shared cache
+			headers.add(new MimeHeader("Cache-Control", (token == null ? "public" : "private") + ", max-age=" + artifact.getConfig().getMaxAge()));
+		}
+	}
+	
+	// the content type we would respond with, without having the actual output yet
+	private String getContentType(HTTPRequest request) {
+		MarshallableBinding binding = getOutputBinding(request, artifact.getServiceInterface().getOutputDefinition());
+		return binding == null ? null : getContentType(binding);
+	}
+	
+	private static String getContentType(MarshallableBinding binding) {
+		return binding instanceof InsightBinding ? ((InsightBinding) binding).getContentType() : RESTUtils.getContentTypeFor(binding);
+	}
+	
+	// the tabular formats are specific to insights, anything else is up to the standard rest bindings
+	private MarshallableBinding getOutputBinding(HTTPRequest request, ComplexType type) {
+		for (String accepted : MimeUtils.getAcceptedContentTypes(request.getContent().getHeaders())) {
+			if (accepted.equalsIgnoreCase(InsightColumnarBinding.CONTENT_TYPE)) {
+				return new InsightColumnarBinding(artifact.getResult(), charset);
+			}
+			else if (accepted.equalsIgnoreCase(InsightCSVBinding.CONTENT_TYPE)) {
+				return new InsightCSVBinding(artifact.getResult(), charset);
+			}
+			// the client prefers a format that the rest bindings support
+			else if (artifact.getProduces().contains(accepted.toLowerCase())) {
+				break;
+			}
+		}
+		return RESTUtils.getOutputBinding(request, type, charset, "application/json", false, false);
+	}
+	
+	/**
+	 * The marshalling happens in a separate thread that writes into a bounded pipe, the http server reads from the other end as it sends the response.
+	 * This means we never hold the serialized result in memory.
+	 * The writer stops when the response is closed or when the client does not keep up, the streaming threads are limited so we return null if there is no room.
+	 */
+	private ReadableContainer<ByteBuffer> stream(MarshallableBinding binding, ComplexContent output, String encoding) throws IOException {
+		InsightPipe pipe = new InsightPipe(STREAM_BUFFER_SIZE, artifact.getConfig().getStreamTimeout() == null ? DEFAULT_STREAM_TIMEOUT : artifact.getConfig().getStreamTimeout());
+		OutputStream stream = encode(pipe.getOutput(), encoding);
+		try {
+			InsightExecutors.getStreamers().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						binding.marshal(stream, output);
+						stream.close();
+					}
+					catch (Exception e) {
+						// the response is already underway, the best we can do is cut it short
+						logger.warn("Could not stream result of insight: " + artifact.getId(), e);
+						pipe.fail(e instanceof IOException ? (IOException) e : new IOException(e));
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			return null;
+		}
+		return pipe;
+	}
 
 }
@@ -0,0 +1,316 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.services.ServiceRuntime;
+import be.nabu.libs.services.ServiceUtils;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.binding.json.JSONBinding;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * Pushes insight results to subscribed clients as server-sent events whenever they change.
+ * Subscribers with the same input (which includes the security context) share a single feed, so the query runs once per interval no matter how many clients are listening.
+ * On every refresh the token and permissions of each subscriber are checked again, subscribers that are no longer allowed are disconnected.
+ * The feed runs with the token of one of the remaining subscribers and stops once there are none left.
+ */
+public class InsightLive {
+	
+	// how often (in ms) we send a comment on an otherwise quiet stream, so proxies don't close it
+	private static final long HEARTBEAT_INTERVAL = 15000;
+	// clients that fall behind only need the latest state, not every intermediate one
+	private static final int MAX_PENDING = 8;
+	// marks the end of a stream
+	private static final byte[] END = new byte[0];
+	private static Charset charset = Charset.forName("UTF-8");
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private InsightArtifact artifact;
+	private Map<String, Feed> feeds = new HashMap<String, Feed>();
+	
+	public InsightLive(InsightArtifact artifact) {
+		this.artifact = artifact;
+	}
+	
+	// the listener has already checked that the token is allowed to run the insight in the given context
+	public ReadableContainer<ByteBuffer> subscribe(InsightListener listener, Token token, String context, ComplexContent input, String signature) {
+		EventStream stream = new EventStream(signature, token, context);
+		synchronized(feeds) {
+			Feed feed = feeds.get(signature);
+			if (feed == null) {
+				feed = new Feed(listener, input);
+				feeds.put(signature, feed);
+				long interval = artifact.getConfig().getLiveInterval() == null ? 5000 : artifact.getConfig().getLiveInterval();
+				feed.future = InsightExecutors.getScheduler().scheduleWithFixedDelay(feed, 0, interval, TimeUnit.MILLISECONDS);
+			}
+			// a new subscriber immediately gets the current state
+			else if (feed.last != null) {
+				stream.push(feed.last, true);
+			}
+			feed.streams.add(stream);
+		}
+		return stream;
+	}
+	
+	private void unsubscribe(EventStream stream) {
+		synchronized(feeds) {
+			Feed feed = feeds.get(stream.signature);
+			if (feed != null) {
+				feed.streams.remove(stream);
+				if (feed.streams.isEmpty()) {
+					feed.future.cancel(false);
+					feeds.remove(stream.signature);
+				}
+			}
+		}
+	}
+	
+	public void stop() {
+		synchronized(feeds) {
+			for (Feed feed : feeds.values()) {
+				feed.future.cancel(false);
+				for (EventStream stream : feed.streams) {
+					stream.finish();
+				}
+			}
+			feeds.clear();
+		}
+	}
+	
+	public int getSubscribers() {
+		int subscribers = 0;
+		synchronized(feeds) {
+			for (Feed feed : feeds.values()) {
+				subscribers += feed.streams.size();
+			}
+		}
+		return subscribers;
+	}
+	
+	private class Feed implements Runnable {
+		private InsightListener listener;
+		private ComplexContent input;
+		private List<EventStream> streams = new CopyOnWriteArrayList<EventStream>();
+		private Future<?> future;
+		// only one refresh at a time, if the query takes longer than the interval we skip a beat
+		private AtomicBoolean refreshing = new AtomicBoolean();
+		private Long hash;
+		private volatile byte[] last;
+		private long lastSent;
+		
+		private Feed(InsightListener listener, ComplexContent input) {
+			this.listener = listener;
+			this.input = input;
+		}
+		
+		// runs on the scheduler which is reserved for short tasks, the actual refresh happens on a worker
+		@Override
+		public void run() {
+			if (refreshing.compareAndSet(false, true)) {
+				try {
+					InsightExecutors.getWorkers().execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								refresh();
+							}
+							finally {
+								refreshing.set(false);
+							}
+						}
+					});
+				}
+				catch (RejectedExecutionException e) {
+					refreshing.set(false);
+					logger.warn("Could not schedule refresh of live feed for insight: " + artifact.getId());
+				}
+			}
+		}
+		
+		// the token of a subscriber that is still allowed to see the result, the others are disconnected
+		private Token authorize() {
+			Token token = null;
+			boolean authorized = false;
+			for (EventStream stream : streams) {
+				if (listener.isAuthorized(stream.token, stream.context)) {
+					if (!authorized) {
+						token = stream.token;
+						authorized = true;
+					}
+				}
+				else {
+					stream.revoke();
+				}
+			}
+			return authorized ? token : null;
+		}
+		
+		private void refresh() {
+			Token token = authorize();
+			// no one left to run it for
+			if (token == null && streams.isEmpty()) {
+				return;
+			}
+			try {
+				ExecutionContext executionContext = listener.getApplication().getRepository().newExecutionContext(token);
+				ServiceRuntime runtime = new ServiceRuntime(artifact, executionContext);
+				ServiceUtils.setServiceContext(runtime, listener.getApplication().getId());
+				runtime.getContext().put("webApplicationId", listener.getApplication().getId());
+				ComplexContent output = runtime.run(input);
+				long hash = InsightETag.hash(output);
+				if (this.hash == null || this.hash != hash) {
+					this.hash = hash;
+					last = toEvent(output, InsightETag.format(hash, null));
+					broadcast(last, true);
+				}
+				else if (lastSent < System.currentTimeMillis() - HEARTBEAT_INTERVAL) {
+					broadcast(": heartbeat\n\n".getBytes(charset), false);
+				}
+			}
+			catch (Exception e) {
+				logger.error("Could not refresh live feed for insight: " + artifact.getId(), e);
+				broadcast("event: error\ndata: Could not refresh the insight\n\n".getBytes(charset), false);
+			}
+		}
+		
+		private void broadcast(byte[] event, boolean update) {
+			lastSent = System.currentTimeMillis();
+			for (EventStream stream : streams) {
+				stream.push(event, update);
+			}
+		}
+	}
+	
+	private byte[] toEvent(ComplexContent output, String etag) throws IOException {
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		new JSONBinding(output.getType(), charset).marshal(json, output);
+		StringBuilder builder = new StringBuilder();
+		builder.append("event: update\n");
+		builder.append("id: ").append(etag).append('\n');
+		// every line of the payload needs its own data prefix
+		for (String line : new String(json.toByteArray(), charset).split("\r?\n")) {
+			builder.append("data: ").append(line).append('\n');
+		}
+		builder.append('\n');
+		return builder.toString().getBytes(charset);
+	}
+	
+	/**
+	 * The response content for a single client, the http server reads from it as events arrive.
+	 * Closing it (for example because the client went away) ends the subscription.
+	 */
+	private class EventStream implements ReadableContainer<ByteBuffer> {
+		private String signature;
+		private Token token;
+		private String context;
+		private LinkedBlockingQueue<byte[]> pending = new LinkedBlockingQueue<byte[]>();
+		private byte[] current;
+		private int offset;
+		private volatile boolean closed;
+		// once the end is queued nothing else is
+		private boolean ended;
+		// the most recent update we queued, the client may not have read it yet
+		private byte[] update;
+		
+		private EventStream(String signature, Token token, String context) {
+			this.signature = signature;
+			this.token = token;
+			this.context = context;
+		}
+		
+		// if the client falls too far behind we drop what it has not read yet, but never the latest state
+		private synchronized void push(byte[] event, boolean update) {
+			if (!closed && !ended) {
+				if (pending.size() >= MAX_PENDING) {
+					boolean unread = this.update != null && pending.contains(this.update);
+					pending.clear();
+					if (unread && !update) {
+						pending.offer(this.update);
+					}
+				}
+				if (update) {
+					this.update = event;
+				}
+				pending.offer(event);
+			}
+		}
+		
+		private synchronized void finish() {
+			if (!ended) {
+				ended = true;
+				pending.offer(END);
+			}
+		}
+		
+		// the client is told why before the stream ends, it stops receiving updates immediately
+		private void revoke() {
+			push("event: error\ndata: The subscription is no longer authorized\n\n".getBytes(charset), false);
+			finish();
+			unsubscribe(this);
+		}
+		
+		@Override
+		public long read(ByteBuffer buffer) throws IOException {
+			if (closed) {
+				return -1;
+			}
+			if (current == null || offset >= current.length) {
+				// we never block the thread of the http server, if there is nothing yet it will come back for more later
+				current = pending.poll();
+				offset = 0;
+				if (current == null) {
+					return 0;
+				}
+				if (current == END) {
+					close();
+					return -1;
+				}
+			}
+			int written = buffer.write(current, offset, current.length - offset);
+			offset += written;
+			return written;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				unsubscribe(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,321 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.api.NamingConvention;
+import be.nabu.eai.module.services.insight.aggregate.Aggregators;
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.properties.CollectionNameProperty;
+
+/**
+ * Keeps the summary table of a materialized insight up to date.
+ * 
+ * The first refresh rebuilds the entire table, after that the watermark field tells us whether anything changed since the last refresh.
+ * If the group by fields are configured as immutable, we only recalculate the groups that were touched by the modified records.
+ * That can not work if a record moves to another group: we only know its current group, the old one would keep its contribution. If the group by fields can change, every change triggers a full rebuild.
+ * Note that a watermark can not detect deletes in the core table, if that is relevant you need to invalidate the insight which triggers a full rebuild.
+ * Rows that are committed with a watermark lower than one we have already seen (e.g. long running transactions) are also only picked up by a full rebuild.
+ * 
+ * Every server in the cluster runs the refresh, the watermark is stored in a state table next to the summary table.
+ * A refresh starts by locking the state row of the insight so only one server refreshes at a time, the others wait and find nothing left to do.
+ * Because the watermark is updated in the same transaction as the summary table, it survives restarts and can never get out of sync with the data.
+ * The state also remembers the statement the table was built with, if the insight is changed the next refresh rebuilds the table.
+ */
+public class InsightMaterializer {
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private InsightArtifact artifact;
+	private ScheduledFuture<?> future;
+	// whether a refresh is queued or running on the workers
+	private AtomicBoolean refreshing = new AtomicBoolean();
+	// the next refresh should ignore the stored watermark and rebuild the entire table
+	private volatile boolean rebuild;
+	// the watermark of the data our cached results are based on
+	private Object seen;
+	// when we last refreshed successfully
+	private volatile Long lastRefresh;
+	
+	public InsightMaterializer(InsightArtifact artifact) {
+		this.artifact = artifact;
+	}
+	
+	public synchronized void start() {
+		if (future == null) {
+			long interval = artifact.getConfig().getRefreshInterval() == null ? 60000 : artifact.getConfig().getRefreshInterval();
+			// the scheduler is reserved for short tasks, the refresh itself happens on a worker so a slow rebuild does not hold up the other insights
+			future = InsightExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					if (refreshing.compareAndSet(false, true)) {
+						try {
+							InsightExecutors.getWorkers().execute(new Runnable() {
+								@Override
+								public void run() {
+									try {
+										refresh();
+									}
+									catch (Exception e) {
+										logger.error("Could not refresh materialized insight: " + artifact.getId(), e);
+									}
+									finally {
+										refreshing.set(false);
+									}
+								}
+							});
+						}
+						catch (RejectedExecutionException e) {
+							refreshing.set(false);
+							logger.warn("Could not schedule refresh of materialized insight: " + artifact.getId());
+						}
+					}
+				}
+			}, 0, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	public synchronized void stop() {
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+	}
+	
+	public boolean isStarted() {
+		return future != null;
+	}
+	
+	// the next refresh will rebuild the entire table
+	public void reset() {
+		rebuild = true;
+	}
+	
+	public Long getLastRefresh() {
+		return lastRefresh;
+	}
+	
+	public synchronized void refresh() throws SQLException {
+		InsightConfiguration config = artifact.getConfig();
+		if (config.getConnection() == null) {
+			throw new IllegalStateException("A materialized insight needs a configured connection: " + artifact.getId());
+		}
+		String table = getTableName(artifact);
+		String coreTable = getCoreTableName(config);
+		String watermarkColumn = config.getWatermarkField() == null ? null : NamingConvention.UNDERSCORE.apply(config.getWatermarkField());
+		
+		// for each group by field we have the column in the core table and the column in the rollup table
+		List<String[]> groupColumns = new ArrayList<String[]>();
+		List<String> insertColumns = new ArrayList<String>();
+		List<String> selects = new ArrayList<String>();
+		for (InsightField field : config.getFields()) {
+			if (field.getKey() == null) {
+				continue;
+			}
+			if (Aggregators.isApproximate(field.getAggregate())) {
+				throw new IllegalStateException("Materialized insights do not support approximate aggregates: " + artifact.getId());
+			}
+			if (((ComplexType) config.getCoreType()).get(field.getKey()) == null) {
+				throw new IllegalStateException("Materialized insights only support fields of the core type, '" + field.getKey() + "' is not available in: " + artifact.getId());
+			}
+			String column = "c." + NamingConvention.UNDERSCORE.apply(field.getKey());
+			String rollupColumn = NamingConvention.UNDERSCORE.apply(InsightArtifact.getFieldName(field));
+			insertColumns.add(rollupColumn);
+			if (InsightArtifact.isGroupBy(field)) {
+				groupColumns.add(new String[] { NamingConvention.UNDERSCORE.apply(field.getKey()), rollupColumn });
+				selects.add(column);
+			}
+			else {
+				selects.add(field.getAggregate() + "(" + column + ")");
+			}
+		}
+		
+		String insert = "insert into " + table + " (" + join(insertColumns, ", ") + ") select " + join(selects, ", ") + " from " + coreTable + " c";
+		String groupBy = "";
+		for (String[] groupColumn : groupColumns) {
+			groupBy += (groupBy.isEmpty() ? " group by " : ", ") + "c." + groupColumn[0];
+		}
+		
+		String stateTable = getStateTableName(artifact);
+		DataSource dataSource = config.getConnection().getDataSource();
+		boolean rebuild = this.rebuild;
+		this.rebuild = false;
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.setAutoCommit(false);
+			// the lock is held until we commit or rollback, if another server is refreshing we wait for it to finish
+			Object[] state = lock(connection, stateTable);
+			if (state == null) {
+				insertState(connection, stateTable);
+				state = lock(connection, stateTable);
+				if (state == null) {
+					throw new IllegalStateException("Could not create the state of materialized insight: " + artifact.getId());
+				}
+			}
+			String definition = insert + groupBy;
+			// if the definition changed, the watermark does not apply to the data in the table
+			Object watermark = rebuild || !definition.equals(state[1]) ? null : state[0];
+			Object newWatermark = null;
+			if (watermarkColumn != null) {
+				Statement statement = connection.createStatement();
+				try {
+					ResultSet result = statement.executeQuery("select max(" + watermarkColumn + ") from " + coreTable);
+					newWatermark = result.next() ? result.getObject(1) : null;
+				}
+				finally {
+					statement.close();
+				}
+			}
+			// if nothing has changed since the last time, don't bother
+			if (watermark != null && watermark.equals(newWatermark)) {
+				connection.rollback();
+				lastRefresh = System.currentTimeMillis();
+				// another server may have done the refresh, our cached results predate it
+				if (!newWatermark.equals(seen)) {
+					seen = newWatermark;
+					artifact.invalidateResults();
+				}
+				return;
+			}
+			// without a watermark (or without data) or with groups that records can move between, we can only do a full rebuild
+			else if (watermark == null || newWatermark == null || groupColumns.isEmpty() || !config.isImmutableGroups()) {
+				execute(connection, "delete from " + table);
+				execute(connection, insert + groupBy);
+			}
+			else {
+				execute(connection, "delete from " + table + " r where exists (" + getTouchedGroups(coreTable, watermarkColumn, groupColumns, "r", 1) + ")", watermark, newWatermark);
+				execute(connection, insert + " where exists (" + getTouchedGroups(coreTable, watermarkColumn, groupColumns, "c", 0) + ")" + groupBy, watermark, newWatermark);
+			}
+			execute(connection, "update " + stateTable + " set watermark = ?, definition = ? where insight = ?", newWatermark, definition, artifact.getId());
+			connection.commit();
+			seen = newWatermark;
+			lastRefresh = System.currentTimeMillis();
+		}
+		catch (SQLException | RuntimeException e) {
+			connection.rollback();
+			// try again next time
+			if (rebuild) {
+				this.rebuild = true;
+			}
+			throw e;
+		}
+		finally {
+			connection.close();
+		}
+		// anything we cached is based on stale data
+		artifact.invalidateResults();
+	}
+	
+	// locks the state row of this insight and returns the stored watermark and definition, null if there is no state row yet
+	private Object[] lock(Connection connection, String stateTable) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement("select watermark, definition from " + stateTable + " where insight = ? for update");
+		try {
+			statement.setString(1, artifact.getId());
+			ResultSet result = statement.executeQuery();
+			return result.next() ? new Object[] { result.getObject(1), result.getString(2) } : null;
+		}
+		finally {
+			statement.close();
+		}
+	}
+	
+	// the first refresh ever creates the state row in its own transaction so it can be locked
+	private void insertState(Connection connection, String stateTable) throws SQLException {
+		try {
+			execute(connection, "insert into " + stateTable + " (insight) values (?)", artifact.getId());
+			connection.commit();
+		}
+		catch (SQLException e) {
+			// another server might have beaten us to it, if so we can lock its row
+			connection.rollback();
+			logger.debug("Could not create the state of materialized insight: " + artifact.getId(), e);
+		}
+	}
+	
+	// the groups that have at least one record that was modified since the last refresh, correlated to the given alias
+	private String getTouchedGroups(String coreTable, String watermarkColumn, List<String[]> groupColumns, String alias, int aliasColumn) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("select 1 from ").append(coreTable).append(" t where t.").append(watermarkColumn).append(" > ? and t.").append(watermarkColumn).append(" <= ?");
+		for (String[] groupColumn : groupColumns) {
+			String local = "t." + groupColumn[0];
+			String remote = alias + "." + groupColumn[aliasColumn];
+			// null is a valid group as well
+			builder.append(" and (").append(local).append(" = ").append(remote).append(" or (").append(local).append(" is null and ").append(remote).append(" is null))");
+		}
+		return builder.toString();
+	}
+	
+	private void execute(Connection connection, String sql, Object...parameters) throws SQLException {
+		logger.debug("Refreshing materialized insight {}: {}", artifact.getId(), sql);
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try {
+			for (int i = 0; i < parameters.length; i++) {
+				statement.setObject(i + 1, parameters[i]);
+			}
+			statement.executeUpdate();
+		}
+		finally {
+			statement.close();
+		}
+	}
+	
+	static String getTableName(InsightArtifact artifact) {
+		if (artifact.getConfig().getMaterializedTable() != null) {
+			return artifact.getConfig().getMaterializedTable();
+		}
+		// multiple insights can exist for the same core type so we name it after the insight
+		return NamingConvention.UNDERSCORE.apply(artifact.getId().replaceAll("^.*\\.([^.]+)$", "$1"));
+	}
+	
+	// the state table lives next to the summary table
+	static String getStateTableName(InsightArtifact artifact) {
+		return getTableName(artifact) + "_state";
+	}
+	
+	static String getCoreTableName(InsightConfiguration config) {
+		String collectionName = ValueUtils.getValue(CollectionNameProperty.getInstance(), config.getCoreType().getProperties());
+		return collectionName == null ? NamingConvention.UNDERSCORE.apply(config.getCoreType().getName()) : collectionName;
+	}
+	
+	private static String join(List<String> values, String separator) {
+		StringBuilder builder = new StringBuilder();
+		for (String value : values) {
+			if (builder.length() > 0) {
+				builder.append(separator);
+			}
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,254 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import be.nabu.eai.module.services.insight.aggregate.InsightAggregation;
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * Splits a query over a large range of the partition field into a number of smaller ranges that are run in parallel on separate connections.
+ * Each partition returns partial aggregates which are merged in the JVM.
+ * 
+ * We only partition if the query has both a lower and an upper bound on the partition field, which is typical for reports over a time range.
+ */
+public class InsightPartitioner {
+	
+	static List<InsightQuery> split(InsightArtifact artifact, InsightQuery query) {
+		String field = artifact.getConfig().getPartitionField();
+		Integer amount = artifact.getConfig().getPartitions();
+		if (field == null || amount == null || amount < 2) {
+			return null;
+		}
+		Filter lower = null, upper = null;
+		for (int i = 0; i < query.getFilters().size(); i++) {
+			Filter filter = query.getFilters().get(i);
+			if (field.equals(filter.getKey()) && isStandalone(query.getFilters(), i) && filter.getValues() != null && filter.getValues().size() == 1 && filter.getValues().get(0) != null) {
+				if (">".equals(filter.getOperator()) || ">=".equals(filter.getOperator())) {
+					lower = filter;
+				}
+				else if ("<".equals(filter.getOperator()) || "<=".equals(filter.getOperator())) {
+					upper = filter;
+				}
+			}
+		}
+		if (lower == null || upper == null) {
+			return null;
+		}
+		Long from = toLong(lower.getValues().get(0));
+		Long to = toLong(upper.getValues().get(0));
+		if (from == null || to == null || to - from < amount) {
+			return null;
+		}
+		List<Filter> others = new ArrayList<Filter>(query.getFilters());
+		others.remove(lower);
+		others.remove(upper);
+		
+		long step = (to - from) / amount;
+		List<InsightQuery> partitions = new ArrayList<InsightQuery>();
+		for (int i = 0; i < amount; i++) {
+			InsightQuery partition = new InsightQuery();
+			partition.setConnectionId(query.getConnectionId());
+			// every partition gets its own filters, they can be modified further down the line (e.g. renamed for the materialized table)
+			partition.getFilters().addAll(InsightQuery.copy(others));
+			// the outer boundaries keep the original operators, the partitions themselves are [start, end[
+			partition.getFilters().add(i == 0 ? InsightQuery.copy(lower) : newFilter(lower, ">=", fromLong(from + (step * i), lower.getValues().get(0))));
+			partition.getFilters().add(i == amount - 1 ? InsightQuery.copy(upper) : newFilter(upper, "<", fromLong(from + (step * (i + 1)), lower.getValues().get(0))));
+			partitions.add(partition);
+		}
+		return partitions;
+	}
+	
+	/**
+	 * Aggregate all the partitions concurrently and merge the results.
+	 */
+	static InsightAggregation aggregate(InsightArtifact artifact, ExecutionContext executionContext, List<InsightQuery> partitions) throws ServiceException {
+		InsightAggregation aggregation = artifact.newAggregation();
+		for (InsightAggregation partial : aggregateAll(artifact, executionContext, partitions)) {
+			aggregation.merge(partial);
+			artifact.checkSketchGroups(aggregation);
+		}
+		return aggregation;
+	}
+	
+	/**
+	 * Aggregate all the queries concurrently, the result list matches the order of the queries.
+	 * The first query runs on the calling thread which was already admitted by the bulkheads. Every other query needs its own room in the bulkheads to run on a worker, if there is none it runs on the calling thread after the others.
+	 * The same goes for queries that no worker has picked up by the time we need them.
+	 */
+	static List<InsightAggregation> aggregateAll(InsightArtifact artifact, ExecutionContext executionContext, List<InsightQuery> queries) throws ServiceException {
+		// no need to go to another thread for a single query
+		if (queries.size() == 1) {
+			return Arrays.asList(artifact.aggregate(executionContext, queries.get(0)));
+		}
+		// a null future means we run it ourselves
+		List<Future<InsightAggregation>> futures = new ArrayList<Future<InsightAggregation>>();
+		// matches the futures
+		List<Concurrent> concurrents = new ArrayList<Concurrent>();
+		for (int i = 1; i < queries.size(); i++) {
+			Runnable release = artifact.admitConcurrent(queries.get(i).getConnectionId());
+			Future<InsightAggregation> future = null;
+			if (release != null) {
+				Concurrent concurrent = new Concurrent(artifact, executionContext, queries.get(i), release);
+				try {
+					future = InsightExecutors.getWorkers().submit(concurrent);
+				}
+				catch (RejectedExecutionException e) {
+					release.run();
+				}
+			}
+			futures.add(future);
+			concurrents.add(future == null ? null : concurrent);
+		}
+		List<InsightAggregation> aggregations = new ArrayList<InsightAggregation>();
+		try {
+			aggregations.add(artifact.aggregate(executionContext, queries.get(0)));
+			for (int i = 0; i < futures.size(); i++) {
+				// if no worker has picked it up yet, we don't wait for one (the workers might all be waiting for their own partitions)
+				if (futures.get(i) == null || concurrents.get(i).abort()) {
+					aggregations.add(artifact.aggregate(executionContext, queries.get(i + 1)));
+				}
+				else {
+					aggregations.add(futures.get(i).get());
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof ServiceException) {
+				throw (ServiceException) e.getCause();
+			}
+			throw new ServiceException(e.getCause());
+		}
+		finally {
+			// if one failed, there is no use in finishing the others
+			for (Future<InsightAggregation> future : futures) {
+				if (future != null) {
+					future.cancel(true);
+				}
+			}
+			// the ones that never started still hold their permits
+			for (Concurrent concurrent : concurrents) {
+				if (concurrent != null) {
+					concurrent.abort();
+				}
+			}
+		}
+		return aggregations;
+	}
+	
+	// a query on a worker that releases its room in the bulkheads when done, or when it is aborted before it started
+	private static class Concurrent implements Callable<InsightAggregation> {
+		private InsightArtifact artifact;
+		private ExecutionContext executionContext;
+		private InsightQuery query;
+		private Runnable release;
+		private AtomicBoolean started = new AtomicBoolean();
+		
+		private Concurrent(InsightArtifact artifact, ExecutionContext executionContext, InsightQuery query, Runnable release) {
+			this.artifact = artifact;
+			this.executionContext = executionContext;
+			this.query = query;
+			this.release = release;
+		}
+		
+		@Override
+		public InsightAggregation call() throws Exception {
+			if (!started.compareAndSet(false, true)) {
+				return null;
+			}
+			try {
+				return artifact.aggregate(executionContext, query);
+			}
+			finally {
+				release.run();
+			}
+		}
+		
+		// returns true if it had not started yet, it will not run anymore
+		private boolean abort() {
+			if (started.compareAndSet(false, true)) {
+				release.run();
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	// a new boundary that keeps all the flags of the original one
+	static Filter newFilter(Filter original, String operator, Object value) {
+		Filter filter = InsightQuery.copy(original);
+		filter.setOperator(operator);
+		filter.setValues(new ArrayList<Object>(Arrays.asList(value)));
+		return filter;
+	}
+	
+	// a filter that is not part of an "or" group can be replaced without changing the meaning of the others
+	static boolean isStandalone(List<Filter> filters, int index) {
+		return !filters.get(index).isOr() && (index == filters.size() - 1 || !filters.get(index + 1).isOr());
+	}
+	
+	private static Long toLong(Object value) {
+		if (value instanceof Date) {
+			return ((Date) value).getTime();
+		}
+		else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof BigInteger) {
+			return ((Number) value).longValue();
+		}
+		else if (value instanceof BigDecimal && ((BigDecimal) value).scale() <= 0) {
+			return ((BigDecimal) value).longValue();
+		}
+		return null;
+	}
+	
+	// make sure we use the same type as the original value
+	private static Object fromLong(long value, Object example) {
+		if (example instanceof Date) {
+			return new Date(value);
+		}
+		else if (example instanceof Integer) {
+			return (int) value;
+		}
+		else if (example instanceof Short) {
+			return (short) value;
+		}
+		else if (example instanceof BigInteger) {
+			return BigInteger.valueOf(value);
+		}
+		else if (example instanceof BigDecimal) {
+			return BigDecimal.valueOf(value);
+		}
+		return value;
+	}
+}
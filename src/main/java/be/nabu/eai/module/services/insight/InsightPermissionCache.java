@@ -0,0 +1,109 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.security.Principal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.authentication.api.Token;
+
+/**
+ * Remembers the outcome of role and permission checks for a short while, external permission handlers can be more expensive than the (cached) query.
+ * Because the decisions are only kept for a short time, a change in roles or permissions eventually comes through, if it has to be immediate the cache can be invalidated.
+ */
+public class InsightPermissionCache {
+
+	private long timeout;
+	private Map<String, Decision> decisions;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	
+	@SuppressWarnings("serial")
+	public InsightPermissionCache(long timeout, int maxEntries) {
+		this.timeout = timeout;
+		this.decisions = new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+	
+	// the application is part of the key because each application can have its own permission handler
+	// the same principal can log in in different ways (a password, a device, an api key...) and a permission handler may decide differently for each, so how the token was obtained is part of the key as well
+	public static String getKey(String applicationId, Token token, String context, String action) {
+		StringBuilder builder = new StringBuilder();
+		InsightArtifact.appendKey(builder, "application", applicationId);
+		InsightArtifact.appendKey(builder, "realm", token == null ? null : token.getRealm());
+		InsightArtifact.appendKey(builder, "name", token == null ? null : token.getName());
+		InsightArtifact.appendKey(builder, "authenticator", token == null ? null : token.getClass().getName());
+		if (token != null && token.getCredentials() != null) {
+			for (Principal credential : token.getCredentials()) {
+				InsightArtifact.appendKey(builder, "credential", credential == null ? null : credential.getClass().getName() + ":" + credential.getName());
+			}
+		}
+		InsightArtifact.appendKey(builder, "context", context);
+		InsightArtifact.appendKey(builder, "action", action);
+		return builder.toString();
+	}
+	
+	public Boolean get(String key) {
+		synchronized(decisions) {
+			Decision decision = decisions.get(key);
+			if (decision != null && decision.created < System.currentTimeMillis() - timeout) {
+				decisions.remove(key);
+				decision = null;
+			}
+			if (decision == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return decision.allowed;
+		}
+	}
+	
+	public void put(String key, boolean allowed) {
+		synchronized(decisions) {
+			decisions.put(key, new Decision(allowed));
+		}
+	}
+	
+	public void invalidate() {
+		synchronized(decisions) {
+			decisions.clear();
+		}
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	private static class Decision {
+		private boolean allowed;
+		private long created = System.currentTimeMillis();
+		
+		private Decision(boolean allowed) {
+			this.allowed = allowed;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * A bounded pipe between the thread that marshals a response and the http server that sends it.
+ * Unlike the piped streams of the jdk, the writer does not rely on the reading thread dying to notice that no one is reading anymore.
+ * It stops as soon as the reading side is closed (e.g. because the connection was closed) or when no room was made within the timeout (e.g. because the client stopped reading).
+ */
+class InsightPipe implements ReadableContainer<ByteBuffer> {
+
+	private byte[] buffer;
+	// the position of the first unread byte and the amount of unread bytes
+	private int position, size;
+	private long timeout;
+	private boolean readerClosed, writerClosed;
+	private IOException failure;
+	private OutputStream output = new OutputStream() {
+		@Override
+		public void write(int value) throws IOException {
+			write(new byte[] { (byte) value }, 0, 1);
+		}
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				int written = InsightPipe.this.write(bytes, offset, length);
+				offset += written;
+				length -= written;
+			}
+		}
+		@Override
+		public void close() {
+			synchronized(InsightPipe.this) {
+				writerClosed = true;
+				InsightPipe.this.notifyAll();
+			}
+		}
+	};
+
+	InsightPipe(int capacity, long timeout) {
+		this.buffer = new byte[capacity];
+		this.timeout = timeout;
+	}
+
+	OutputStream getOutput() {
+		return output;
+	}
+
+	// the writer could not finish, the reader should not mistake what it got so far for the full response
+	synchronized void fail(IOException failure) {
+		this.failure = failure;
+		writerClosed = true;
+		notifyAll();
+	}
+
+	private synchronized int write(byte[] bytes, int offset, int length) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (size == buffer.length && !readerClosed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				readerClosed = true;
+				throw new IOException("The client did not read the response within " + timeout + "ms");
+			}
+			try {
+				wait(remaining);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		if (readerClosed) {
+			throw new IOException("The response is no longer being read");
+		}
+		int end = (position + size) % buffer.length;
+		// we only fill up to the end of the array, the rest is written in the next round
+		int amount = Math.min(length, Math.min(buffer.length - size, buffer.length - end));
+		System.arraycopy(bytes, offset, buffer, end, amount);
+		size += amount;
+		notifyAll();
+		return amount;
+	}
+
+	@Override
+	public synchronized long read(ByteBuffer target) throws IOException {
+		while (size == 0 && !writerClosed && !readerClosed) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		if (size == 0) {
+			if (failure != null) {
+				throw failure;
+			}
+			return -1;
+		}
+		int written = target.write(buffer, position, Math.min(size, buffer.length - position));
+		position = (position + written) % buffer.length;
+		size -= written;
+		notifyAll();
+		return written;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		readerClosed = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import be.nabu.eai.module.services.crud.CRUDFilter;
+import be.nabu.eai.module.services.insight.aggregate.Aggregators;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Everything we need to handle a request that can be derived from the configuration, calculated once when the insight is loaded.
+ * This keeps the request path free of configuration lookups.
+ */
+public class InsightPlan {
+	
+	private final String permissionAction;
+	// the filter that is fed from the security context in the path (if any) and its path in the input
+	private final String securityContextName, securityContextPath;
+	private final boolean securityContextFilter, potentialPermissions;
+	private final List<String> roles;
+	// the query parameters that map to input filters
+	private final List<String> parameterNames, parameterPaths;
+	private final List<String> groupBy;
+	// the sketches for approximate aggregates are fed per distinct value, so we group by those values as well
+	private final List<String> sketchGroupBy;
+	
+	private InsightPlan(String permissionAction, String securityContextName, boolean securityContextFilter, boolean potentialPermissions, List<String> roles, List<String> parameterNames, List<String> groupBy, List<String> sketchGroupBy) {
+		this.permissionAction = permissionAction;
+		this.securityContextName = securityContextName;
+		this.securityContextPath = securityContextName == null ? null : "filter/" + securityContextName + "[0]";
+		this.securityContextFilter = securityContextFilter;
+		this.potentialPermissions = potentialPermissions;
+		this.roles = roles == null ? null : Collections.unmodifiableList(new ArrayList<String>(roles));
+		this.parameterNames = Collections.unmodifiableList(parameterNames);
+		List<String> parameterPaths = new ArrayList<String>();
+		for (String name : parameterNames) {
+			parameterPaths.add("filter/" + name);
+		}
+		this.parameterPaths = Collections.unmodifiableList(parameterPaths);
+		this.groupBy = Collections.unmodifiableList(groupBy);
+		this.sketchGroupBy = Collections.unmodifiableList(sketchGroupBy);
+	}
+	
+	public static InsightPlan compile(InsightArtifact artifact) {
+		InsightConfiguration config = artifact.getConfig();
+		String securityContextName = null;
+		List<String> parameterNames = new ArrayList<String>();
+		if (config.getFilters() != null) {
+			Element<?> securityContext = artifact.getSecurityContext();
+			for (CRUDFilter filter : config.getFilters()) {
+				if (filter != null && filter.getKey() != null) {
+					String name = filter.getAlias() == null ? filter.getKey() : filter.getAlias();
+					if (securityContextName == null && securityContext != null && securityContext.getName().equals(filter.getKey())) {
+						securityContextName = name;
+					}
+					// the same filter can be reused for multiple matches
+					if (filter.isInput() && !parameterNames.contains(name)) {
+						parameterNames.add(name);
+					}
+				}
+			}
+		}
+		List<String> groupBy = new ArrayList<String>();
+		List<String> sketchGroupBy = new ArrayList<String>();
+		for (InsightField field : config.getFields()) {
+			if (InsightArtifact.isGroupBy(field)) {
+				groupBy.add(field.getAlias() == null ? field.getKey() : field.getAlias());
+			}
+			else if (Aggregators.isApproximate(field.getAggregate())) {
+				sketchGroupBy.add(field.getAlias() == null ? field.getKey() : field.getAlias());
+			}
+		}
+		sketchGroupBy.addAll(0, groupBy);
+		return new InsightPlan(
+			"insight." + artifact.getName(), 
+			securityContextName, 
+			artifact.hasSecurityContextFilter(),
+			// if you specifically did not select a security field, we can check the potential permissions as well
+			config.getSecurityContextField() == null,
+			config.getRole(),
+			parameterNames,
+			groupBy,
+			sketchGroupBy
+		);
+	}
+
+	public String getPermissionAction() {
+		return permissionAction;
+	}
+	public String getSecurityContextName() {
+		return securityContextName;
+	}
+	public String getSecurityContextPath() {
+		return securityContextPath;
+	}
+	public boolean isSecurityContextFilter() {
+		return securityContextFilter;
+	}
+	public boolean isPotentialPermissions() {
+		return potentialPermissions;
+	}
+	public List<String> getRoles() {
+		return roles;
+	}
+	public List<String> getParameterNames() {
+		return parameterNames;
+	}
+	public List<String> getParameterPaths() {
+		return parameterPaths;
+	}
+	public List<String> getGroupBy() {
+		return groupBy;
+	}
+	public List<String> getSketchGroupBy() {
+		return sketchGroupBy;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.eai.repository.util.Filter;
+
+/**
+ * The parameters of a single query against the database, derived from the service input.
+ */
+public class InsightQuery {
+	private String connectionId, transactionId;
+	private Long offset;
+	private Integer limit;
+	private List<String> orderBy;
+	private Boolean totalRowCount;
+	private List<Filter> filters = new ArrayList<Filter>();
+	
+	public String getConnectionId() {
+		return connectionId;
+	}
+	public void setConnectionId(String connectionId) {
+		this.connectionId = connectionId;
+	}
+	public String getTransactionId() {
+		return transactionId;
+	}
+	public void setTransactionId(String transactionId) {
+		this.transactionId = transactionId;
+	}
+	public Long getOffset() {
+		return offset;
+	}
+	public void setOffset(Long offset) {
+		this.offset = offset;
+	}
+	public Integer getLimit() {
+		return limit;
+	}
+	public void setLimit(Integer limit) {
+		this.limit = limit;
+	}
+	public List<String> getOrderBy() {
+		return orderBy;
+	}
+	public void setOrderBy(List<String> orderBy) {
+		this.orderBy = orderBy;
+	}
+	public Boolean getTotalRowCount() {
+		return totalRowCount;
+	}
+	public void setTotalRowCount(Boolean totalRowCount) {
+		this.totalRowCount = totalRowCount;
+	}
+	public List<Filter> getFilters() {
+		return filters;
+	}
+	public void setFilters(List<Filter> filters) {
+		this.filters = filters;
+	}
+	
+	// queries can run concurrently, each one needs its own filters if they might be changed along the way
+	static List<Filter> copy(List<Filter> filters) {
+		List<Filter> copies = new ArrayList<Filter>();
+		for (Filter filter : filters) {
+			copies.add(copy(filter));
+		}
+		return copies;
+	}
+	
+	static Filter copy(Filter filter) {
+		Filter copy = new Filter();
+		copy.setKey(filter.getKey());
+		copy.setOperator(filter.getOperator());
+		copy.setValues(filter.getValues() == null ? null : new ArrayList<Object>(filter.getValues()));
+		copy.setOr(filter.isOr());
+		copy.setCaseInsensitive(filter.isCaseInsensitive());
+		return copy;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.artifacts.api.DataSourceProviderArtifact;
+
+/**
+ * Spreads the queries of an insight over its read replicas.
+ * The replicas are checked periodically, a replica that can't be reached or that lags too far behind is skipped until it recovers.
+ * If no replica is available, the queries go to the primary connection.
+ */
+public class InsightReplicas {
+	
+	// how often (in ms) we check the replicas
+	private static final long CHECK_INTERVAL = 10000;
+	// how long (in seconds) a check can take
+	private static final int CHECK_TIMEOUT = 5;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private InsightArtifact artifact;
+	// the replicas that are currently available
+	private volatile List<String> available = new ArrayList<String>();
+	private Map<String, Long> lags = new ConcurrentHashMap<String, Long>();
+	private AtomicInteger counter = new AtomicInteger();
+	private Future<?> future;
+	
+	public InsightReplicas(InsightArtifact artifact) {
+		this.artifact = artifact;
+	}
+	
+	public synchronized void start() {
+		if (future == null) {
+			future = InsightExecutors.getScheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					check();
+				}
+			}, 0, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	public synchronized void stop() {
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+		available = new ArrayList<String>();
+	}
+	
+	/**
+	 * The connection to use instead of the primary one, round robin over the available replicas.
+	 */
+	public String route(String connectionId) {
+		List<String> available = this.available;
+		if (available.isEmpty()) {
+			return connectionId;
+		}
+		return available.get((counter.getAndIncrement() & Integer.MAX_VALUE) % available.size());
+	}
+	
+	public boolean isReplica(String connectionId) {
+		for (DataSourceProviderArtifact replica : artifact.getConfig().getReplicas()) {
+			if (replica != null && replica.getId().equals(connectionId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void check() {
+		List<String> available = new ArrayList<String>();
+		for (DataSourceProviderArtifact replica : artifact.getConfig().getReplicas()) {
+			if (replica == null) {
+				continue;
+			}
+			try {
+				Long lag = getLag(replica);
+				if (lag != null) {
+					lags.put(replica.getId(), lag);
+				}
+				Long maxLag = artifact.getConfig().getMaxReplicationLag();
+				if (maxLag == null || lag == null || lag <= maxLag) {
+					available.add(replica.getId());
+				}
+				else {
+					logger.debug("Replica {} for insight {} is lagging behind: {}ms", replica.getId(), artifact.getId(), lag);
+				}
+			}
+			catch (Exception e) {
+				logger.warn("Replica " + replica.getId() + " for insight " + artifact.getId() + " is not available", e);
+			}
+		}
+		this.available = available;
+	}
+	
+	// returns the lag in ms (if we have a query to check it)
+	private Long getLag(DataSourceProviderArtifact replica) throws Exception {
+		String query = artifact.getConfig().getReplicationLagQuery();
+		Connection connection = replica.getDataSource().getConnection();
+		try {
+			if (query == null) {
+				if (!connection.isValid(CHECK_TIMEOUT)) {
+					throw new IllegalStateException("The connection is not valid");
+				}
+				return null;
+			}
+			Statement statement = connection.createStatement();
+			try {
+				statement.setQueryTimeout(CHECK_TIMEOUT);
+				ResultSet result = statement.executeQuery(query);
+				Number lag = result.next() ? (Number) result.getObject(1) : null;
+				// no lag (e.g. because nothing has happened yet)
+				return lag == null ? 0 : lag.longValue();
+			}
+			finally {
+				statement.close();
+			}
+		}
+		finally {
+			connection.close();
+		}
+	}
+	
+	public Long getLag(String replicaId) {
+		return lags.get(replicaId);
+	}
+	
+	public List<String> getAvailable() {
+		return available;
+	}
+}
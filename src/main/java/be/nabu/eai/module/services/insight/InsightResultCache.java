@@ -0,0 +1,37 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import be.nabu.eai.module.services.insight.InsightCache.InsightResult;
+
+/**
+ * A cache for insight results, either local to this server or shared with the rest of the cluster.
+ */
+public interface InsightResultCache {
+	public InsightResult get(String key);
+	public void put(String key, InsightResult result);
+	// the unexpired result without counting it as a hit or miss
+	public InsightResult peek(String key);
+	// the hash of the output of the unexpired result if it was calculated, this does not count as a hit or miss
+	public Long getHash(String key);
+	// the created timestamp identifies the result the hash was calculated for
+	public void putHash(String key, long created, long hash);
+	public void invalidate();
+	public long getHits();
+	public long getMisses();
+}
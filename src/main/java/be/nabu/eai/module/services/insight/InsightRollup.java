@@ -0,0 +1,263 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.eai.module.services.crud.CRUDService;
+import be.nabu.eai.module.services.insight.InsightCache.InsightResult;
+import be.nabu.eai.module.services.insight.aggregate.InsightAggregation;
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * Answers the queries of an insight by re-aggregating the results of a more detailed insight on the same core type.
+ * For example an insight grouped by region can be calculated from one grouped by region and product, as long as the aggregates can be combined (sum, count, min, max and avg if there is a sum and a count).
+ * We can use a complete result that the detailed insight has cached for the same filters, or its materialized table if we only filter on fields it groups by.
+ */
+public class InsightRollup {
+
+	// how often (in ms) we look for new insights that might serve as a source
+	private static final long RESOLVE_INTERVAL = 60000;
+	
+	private InsightArtifact artifact;
+	private volatile List<Source> sources;
+	private volatile long resolved;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	
+	public InsightRollup(InsightArtifact artifact) {
+		this.artifact = artifact;
+	}
+	
+	/**
+	 * The result for the query calculated from another insight or null if that is not possible.
+	 */
+	InsightResult select(ExecutionContext executionContext, String connectionId, ComplexContent input, InsightQuery query) throws ServiceException {
+		for (Source source : getSources()) {
+			List<?> records = source.getCached(input, query.getFilters());
+			if (records == null) {
+				records = source.getMaterialized(executionContext, connectionId, input);
+			}
+			if (records != null) {
+				hits.incrementAndGet();
+				return artifact.toResult(source.aggregate(records), query);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+	
+	private List<Source> getSources() {
+		if (sources == null || resolved < System.currentTimeMillis() - RESOLVE_INTERVAL) {
+			synchronized(this) {
+				if (sources == null || resolved < System.currentTimeMillis() - RESOLVE_INTERVAL) {
+					sources = resolve();
+					resolved = System.currentTimeMillis();
+				}
+			}
+		}
+		return sources;
+	}
+	
+	private List<Source> resolve() {
+		List<Source> sources = new ArrayList<Source>();
+		if (!isSupported(artifact)) {
+			return sources;
+		}
+		for (InsightArtifact candidate : artifact.getRepository().getArtifacts(InsightArtifact.class)) {
+			if (candidate == artifact || candidate.getId().equals(artifact.getId()) || !isSupported(candidate)) {
+				continue;
+			}
+			if (!artifact.getConfig().getCoreType().getId().equals(candidate.getConfig().getCoreType().getId())) {
+				continue;
+			}
+			String connectionId = artifact.getConfig().getConnection() == null ? null : artifact.getConfig().getConnection().getId();
+			String candidateConnectionId = candidate.getConfig().getConnection() == null ? null : candidate.getConfig().getConnection().getId();
+			if (connectionId == null || !connectionId.equals(candidateConnectionId)) {
+				continue;
+			}
+			Source source = Source.build(artifact, candidate);
+			if (source != null) {
+				sources.add(source);
+			}
+		}
+		// the fewer groups the source has, the less records we have to aggregate
+		Collections.sort(sources, new Comparator<Source>() {
+			@Override
+			public int compare(Source first, Source second) {
+				return first.groups - second.groups;
+			}
+		});
+		return sources;
+	}
+	
+	// we only combine fields of the core type itself, foreign fields with the same name might be resolved differently
+	private static boolean isSupported(InsightArtifact insight) {
+		if (insight.getConfig().getCoreType() == null || insight.hasApproximateAggregates()) {
+			return false;
+		}
+		for (InsightField field : insight.getConfig().getFields()) {
+			if (field.getKey() != null && ((ComplexType) insight.getConfig().getCoreType()).get(field.getKey()) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	private static class Source {
+		private InsightArtifact target, source;
+		// the names in the partial result of the target mapped to the names in the result of the source
+		private Map<String, String> names = new HashMap<String, String>();
+		private int groups;
+		
+		private static Source build(InsightArtifact target, InsightArtifact source) {
+			Map<String, String> groupNames = new HashMap<String, String>();
+			// per key and aggregate, the name of the field in the source
+			Map<String, String> aggregateNames = new HashMap<String, String>();
+			int groups = 0;
+			for (InsightField field : source.getConfig().getFields()) {
+				if (field.getKey() == null) {
+					continue;
+				}
+				if (InsightArtifact.isGroupBy(field)) {
+					groupNames.put(field.getKey(), InsightArtifact.getFieldName(field));
+					groups++;
+				}
+				else {
+					aggregateNames.put(field.getAggregate() + ":" + field.getKey(), InsightArtifact.getFieldName(field));
+				}
+			}
+			Source result = new Source();
+			result.target = target;
+			result.source = source;
+			result.groups = groups;
+			for (InsightField field : target.getConfig().getFields()) {
+				if (field.getKey() == null) {
+					continue;
+				}
+				String name = InsightArtifact.getFieldName(field);
+				if (InsightArtifact.isGroupBy(field)) {
+					if (!groupNames.containsKey(field.getKey())) {
+						return null;
+					}
+					result.names.put(name, groupNames.get(field.getKey()));
+				}
+				// an average is the sum of the sums divided by the sum of the counts
+				else if ("avg".equals(field.getAggregate())) {
+					String sum = aggregateNames.get("sum:" + field.getKey());
+					String count = aggregateNames.get("count:" + field.getKey());
+					if (sum == null || count == null) {
+						return null;
+					}
+					result.names.put(name, sum);
+					result.names.put(name + InsightArtifact.PARTIAL_COUNT, count);
+				}
+				// sums, counts, minimums and maximums combine with themselves
+				else {
+					String aggregate = aggregateNames.get(field.getAggregate() + ":" + field.getKey());
+					if (aggregate == null) {
+						return null;
+					}
+					result.names.put(name, aggregate);
+				}
+			}
+			return result;
+		}
+		
+		// a complete result the source has cached for the exact same filters
+		private List<?> getCached(ComplexContent input, List<Filter> filters) {
+			InsightResultCache cache = source.getCache();
+			if (cache == null) {
+				return null;
+			}
+			ComplexContent sourceInput = toInput(input);
+			List<Filter> sourceFilters = new ArrayList<Filter>();
+			if (source.getConfig().getFilters() != null) {
+				CRUDService.transformFilters(source.getConfig().getFilters(), sourceInput, sourceFilters);
+			}
+			if (!InsightFusion.isSameFilters(filters, sourceFilters)) {
+				return null;
+			}
+			String key = source.getCacheKey(source.getConnectionId(sourceInput), sourceInput, true);
+			// we only look, a lookup on behalf of another insight should not count in the statistics of the source
+			InsightResult result = key == null ? null : cache.peek(key);
+			return result == null ? null : result.getResults();
+		}
+		
+		// the rows of the materialized table of the source, this only works if we filter on fields that it groups by
+		private List<?> getMaterialized(ExecutionContext executionContext, String connectionId, ComplexContent input) throws ServiceException {
+			// the filters are renamed to the columns of the materialized table, so we need our own copy
+			List<Filter> filters = new ArrayList<Filter>();
+			if (target.getConfig().getFilters() != null) {
+				CRUDService.transformFilters(target.getConfig().getFilters(), input, filters);
+			}
+			return source.selectMaterialized(executionContext, connectionId, filters);
+		}
+		
+		// the input for the source with only the filters, no paging
+		private ComplexContent toInput(ComplexContent input) {
+			ComplexContent sourceInput = source.getServiceInterface().getInputDefinition().newInstance();
+			if (input != null) {
+				sourceInput.set("connectionId", input.get("connectionId"));
+				Object filter = input.get("filter");
+				Element<?> filterElement = sourceInput.getType().get("filter");
+				if (filter instanceof ComplexContent && filterElement != null) {
+					ComplexContent sourceFilter = ((ComplexType) filterElement.getType()).newInstance();
+					for (Element<?> child : TypeUtils.getAllChildren(sourceFilter.getType())) {
+						if (((ComplexContent) filter).getType().get(child.getName()) != null) {
+							sourceFilter.set(child.getName(), ((ComplexContent) filter).get(child.getName()));
+						}
+					}
+					sourceInput.set("filter", sourceFilter);
+				}
+			}
+			return sourceInput;
+		}
+		
+		private InsightAggregation aggregate(List<?> records) {
+			InsightAggregation aggregation = target.newAggregation();
+			List<String> countFields = target.getPartialCountFields();
+			ComplexType partialType = target.getPartialResult();
+			for (Object record : records) {
+				ComplexContent partial = partialType.newInstance();
+				for (Map.Entry<String, String> name : names.entrySet()) {
+					partial.set(name.getKey(), ((ComplexContent) record).get(name.getValue()));
+				}
+				aggregation.addPartial(partial, countFields);
+			}
+			return aggregation;
+		}
+	}
+}
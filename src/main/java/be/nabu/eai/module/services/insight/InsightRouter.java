@@ -0,0 +1,210 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import be.nabu.eai.module.web.application.WebApplication;
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.events.api.EventSubscription;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.core.HTTPUtils;
+import be.nabu.libs.resources.URIUtils;
+
+/**
+ * Routes the requests for all the insights mounted in a web application, instead of subscribing a listener per insight that each analyze the path.
+ * The paths are compiled into a trie of path segments that is rebuilt whenever an insight is added or removed, so a lookup is linear in the length of the path.
+ */
+public class InsightRouter implements EventHandler<HTTPRequest, HTTPResponse> {
+
+	// one router per web application instance
+	private static Map<WebApplication, InsightRouter> routers = new IdentityHashMap<WebApplication, InsightRouter>();
+	
+	private EventSubscription<HTTPRequest, HTTPResponse> subscription;
+	private List<InsightListener> listeners = new ArrayList<InsightListener>();
+	private volatile Node root = new Node();
+	// the batch endpoint lives next to the insights, wherever they are mounted
+	private volatile Set<String> batchPaths = new HashSet<String>();
+	private InsightBatch batch;
+	
+	public static void register(WebApplication application, InsightListener listener) {
+		synchronized(routers) {
+			InsightRouter router = routers.get(application);
+			if (router == null) {
+				router = new InsightRouter();
+				router.batch = new InsightBatch(application, router, Charset.forName("UTF-8"));
+				router.subscription = application.getDispatcher().subscribe(HTTPRequest.class, router);
+				routers.put(application, router);
+			}
+			router.add(listener);
+		}
+	}
+	
+	public static void unregister(WebApplication application, InsightListener listener) {
+		synchronized(routers) {
+			InsightRouter router = routers.get(application);
+			if (router != null) {
+				router.listeners.remove(listener);
+				if (router.listeners.isEmpty()) {
+					router.subscription.unsubscribe();
+					routers.remove(application);
+				}
+				else {
+					router.compile();
+				}
+			}
+		}
+	}
+	
+	@Override
+	public HTTPResponse handle(HTTPRequest request) {
+		// insights only answer to GET, apart from the batches
+		boolean post = "POST".equalsIgnoreCase(request.getMethod());
+		if (!post && !"GET".equalsIgnoreCase(request.getMethod())) {
+			return null;
+		}
+		try {
+			URI uri = HTTPUtils.getURI(request, false);
+			String [] segments = split(URIUtils.normalize(uri.getPath()));
+			if (post) {
+				return batchPaths.contains(join(segments)) ? batch.handle(request) : null;
+			}
+			Map<String, String> pathParameters = new HashMap<String, String>();
+			Node node = root.match(segments, 0, pathParameters);
+			if (node != null) {
+				for (InsightListener listener : node.listeners) {
+					HTTPResponse response = listener.handle(request, uri, pathParameters);
+					if (response != null) {
+						return response;
+					}
+				}
+			}
+			return null;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			// an invalid uri, it is not for us
+			return null;
+		}
+	}
+	
+	/**
+	 * Find the listener for a path, the path parameters are filled in along the way.
+	 */
+	InsightListener route(String path, Map<String, String> pathParameters) {
+		Node node = root.match(split(path), 0, pathParameters);
+		return node == null ? null : node.listeners.get(0);
+	}
+	
+	void add(InsightListener listener) {
+		listeners.add(listener);
+		compile();
+	}
+	
+	// the trie is immutable once built, we replace it as a whole
+	private void compile() {
+		Node root = new Node();
+		Set<String> batchPaths = new HashSet<String>();
+		for (InsightListener listener : listeners) {
+			Node node = root;
+			for (String segment : split(listener.getParentPath() + "/" + listener.getChildPath())) {
+				node = node.getChild(segment);
+			}
+			node.listeners.add(listener);
+			batchPaths.add(join(split(listener.getParentPath() + "/" + InsightBatch.PATH)));
+		}
+		this.root = root;
+		this.batchPaths = batchPaths;
+	}
+	
+	private static String join(String [] segments) {
+		StringBuilder builder = new StringBuilder();
+		for (String segment : segments) {
+			builder.append('/').append(segment);
+		}
+		return builder.toString();
+	}
+	
+	private static String [] split(String path) {
+		List<String> segments = new ArrayList<String>();
+		for (String segment : path.split("/")) {
+			if (!segment.isEmpty()) {
+				segments.add(segment);
+			}
+		}
+		return segments.toArray(new String[segments.size()]);
+	}
+	
+	private static class Node {
+		private Map<String, Node> children = new HashMap<String, Node>();
+		// a path parameter like {contextId}, matches any single segment
+		private Node variable;
+		private String variableName;
+		private List<InsightListener> listeners = new ArrayList<InsightListener>();
+		
+		private Node getChild(String segment) {
+			if (segment.startsWith("{") && segment.endsWith("}")) {
+				String name = segment.substring(1, segment.length() - 1).replaceAll("[\\s]*:.*$", "").trim();
+				if (variable == null) {
+					variable = new Node();
+					variableName = name;
+				}
+				return variable;
+			}
+			Node child = children.get(segment);
+			if (child == null) {
+				child = new Node();
+				children.put(segment, child);
+			}
+			return child;
+		}
+		
+		// literal segments take precedence over parameters, we only backtrack if the literal path leads nowhere
+		private Node match(String [] segments, int index, Map<String, String> pathParameters) {
+			if (index == segments.length) {
+				return listeners.isEmpty() ? null : this;
+			}
+			Node child = children.get(segments[index]);
+			if (child != null) {
+				Node match = child.match(segments, index + 1, pathParameters);
+				if (match != null) {
+					return match;
+				}
+			}
+			if (variable != null) {
+				Node match = variable.match(segments, index + 1, pathParameters);
+				if (match != null) {
+					pathParameters.put(variableName, segments[index]);
+					return match;
+				}
+			}
+			return null;
+		}
+	}
+}
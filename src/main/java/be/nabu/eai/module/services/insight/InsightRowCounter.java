@@ -0,0 +1,172 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import be.nabu.eai.module.services.insight.InsightCache.InsightResult;
+import be.nabu.libs.services.api.ExecutionContext;
+import be.nabu.libs.services.api.ServiceException;
+
+/**
+ * Calculates the total row count separately from the data query.
+ * Depending on the configuration the count runs in parallel on a second connection, is cached with its own timeout and/or an expired count is returned as an estimate while it is recalculated in the background.
+ */
+public class InsightRowCounter {
+	
+	private InsightArtifact artifact;
+	private InsightCache cache;
+	private ConcurrentMap<String, CompletableFuture<InsightResult>> inFlight = new ConcurrentHashMap<String, CompletableFuture<InsightResult>>();
+	
+	public InsightRowCounter(InsightArtifact artifact) {
+		this.artifact = artifact;
+		Long timeout = artifact.getConfig().getRowCountTimeout();
+		if (timeout != null && timeout > 0) {
+			cache = new InsightCache(timeout, artifact.getConfig().getCacheSize() == null ? 100 : artifact.getConfig().getCacheSize());
+		}
+	}
+	
+	/**
+	 * The query should only contain the filters, the key should identify those filters.
+	 */
+	public CompletableFuture<InsightResult> count(ExecutionContext executionContext, InsightQuery query, String key) {
+		InsightResult cached = cache == null ? null : cache.get(key);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+		if (cache != null && artifact.getConfig().isEstimateRowCount()) {
+			InsightResult expired = cache.getExpired(key);
+			if (expired != null) {
+				// recalculate in the background so the next request gets a fresh value, if there is no room for that right now the next request tries again
+				calculate(executionContext, query, key, true, true);
+				InsightResult estimate = new InsightResult(null, expired.getTotalRowCount());
+				estimate.setEstimated(true);
+				return CompletableFuture.completedFuture(estimate);
+			}
+		}
+		return calculate(executionContext, query, key, artifact.getConfig().isParallelRowCount(), false);
+	}
+	
+	// an optional calculation is skipped (returning null) if it can't run in parallel right now
+	private CompletableFuture<InsightResult> calculate(ExecutionContext executionContext, InsightQuery query, String key, boolean async, boolean optional) {
+		// a parallel count takes an additional connection so it needs its own room in the bulkheads, otherwise we count in sequence
+		Runnable release = async ? artifact.admitConcurrent(query.getConnectionId()) : null;
+		if (release == null && optional) {
+			return null;
+		}
+		Counting future = new Counting();
+		// released exactly once: by the task or when an optional count is skipped
+		AtomicReference<Runnable> permits = new AtomicReference<Runnable>(release);
+		CompletableFuture<InsightResult> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			if (release != null) {
+				release.run();
+			}
+			return running;
+		}
+		future.task = new Runnable() {
+			@Override
+			public void run() {
+				// whoever gets here first runs it: a worker or someone waiting for the count
+				if (!future.started.compareAndSet(false, true)) {
+					return;
+				}
+				try {
+					InsightResult result = artifact.select(executionContext, query);
+					InsightResult count = new InsightResult(null, result.getTotalRowCount());
+					if (cache != null) {
+						cache.put(key, count);
+					}
+					future.complete(count);
+				}
+				catch (Exception e) {
+					future.completeExceptionally(e);
+				}
+				finally {
+					inFlight.remove(key, future);
+					Runnable permit = permits.getAndSet(null);
+					if (permit != null) {
+						permit.run();
+					}
+				}
+			}
+		};
+		if (release != null) {
+			try {
+				InsightExecutors.getWorkers().execute(future.task);
+				return future;
+			}
+			catch (RejectedExecutionException e) {
+				// an optional count was only meant for the background, we don't make the caller wait for it
+				if (optional) {
+					inFlight.remove(key, future);
+					Runnable permit = permits.getAndSet(null);
+					if (permit != null) {
+						permit.run();
+					}
+					// anyone who joined in the meantime runs it when they need it
+					return null;
+				}
+				// we still hold the permits, the runnable releases them
+			}
+		}
+		future.task.run();
+		return future;
+	}
+	
+	// a count that can be run by whoever needs it if no worker has picked it up yet
+	private static class Counting extends CompletableFuture<InsightResult> {
+		private AtomicBoolean started = new AtomicBoolean();
+		private Runnable task;
+	}
+	
+	public void invalidate() {
+		if (cache != null) {
+			cache.invalidate();
+		}
+	}
+	
+	// copy the count into the given result once it is available
+	static void join(CompletableFuture<InsightResult> future, InsightResult target) throws ServiceException {
+		// the workers might all be busy waiting for their own counts
+		if (future instanceof Counting) {
+			((Counting) future).task.run();
+		}
+		try {
+			InsightResult count = future.get();
+			target.setTotalRowCount(count.getTotalRowCount());
+			target.setEstimated(count.isEstimated());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof ServiceException) {
+				throw (ServiceException) e.getCause();
+			}
+			throw new ServiceException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,360 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.eai.module.services.insight.InsightCache.InsightResult;
+import be.nabu.eai.repository.api.CacheProviderArtifact;
+import be.nabu.libs.cache.api.Cache;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * A cache shared by all the servers in the cluster, backed by a cache provider (e.g. the cluster).
+ * Because the entries leave the JVM, the results are stored in serialized form.
+ * A short lived lease allows one server to calculate a result while the others wait for it to appear in the cache, this is best effort: the cache api has no atomic put-if-absent so two servers that try at the exact same time can both end up running the query.
+ * The others wait at most as long as they would for their own query, after that they run it themselves.
+ * Clocks can differ between servers so a lease does not contain a timestamp, a server considers it expired if it has seen the exact same lease for longer than the lease timeout.
+ * If the cache provider is unavailable, the insight simply falls back to running the query.
+ */
+public class InsightSharedCache implements InsightResultCache {
+
+	private static final String LEASE = "lease:";
+	// the hash of a result is stored separately so we can check it without fetching and unmarshalling the result
+	private static final String HASH = "hash:";
+	// how long a lease remains valid if the server that holds it does not release it
+	private static final long LEASE_TIMEOUT = 30000;
+	// how often we check whether the server holding the lease has finished
+	private static final long POLL_INTERVAL = 50;
+	
+	private static Charset charset = Charset.forName("UTF-8");
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	
+	private InsightArtifact artifact;
+	private CacheProviderArtifact provider;
+	private long timeout;
+	// identifies the leases taken by this instance
+	private String owner = UUID.randomUUID().toString().replace("-", "");
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	// every lease we take is unique so others can tell when it was taken again
+	private AtomicLong leases = new AtomicLong();
+	// the leases of other servers we are waiting on and since when (in local time) we have seen them
+	private Map<String, Observed> observed = new ConcurrentHashMap<String, Observed>();
+	private ComplexType wrapper;
+
+	public InsightSharedCache(InsightArtifact artifact, CacheProviderArtifact provider, long timeout) {
+		this.artifact = artifact;
+		this.provider = provider;
+		this.timeout = timeout;
+	}
+	
+	@Override
+	public InsightResult get(String key) {
+		InsightResult result = null;
+		try {
+			Cache cache = getCache();
+			if (cache != null) {
+				result = unmarshal((byte[]) cache.get(key));
+			}
+		}
+		catch (Exception e) {
+			logger.warn("Could not get shared result for insight: " + artifact.getId(), e);
+		}
+		if (result != null && result.getCreated() < System.currentTimeMillis() - timeout) {
+			result = null;
+		}
+		if (result == null) {
+			misses.incrementAndGet();
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return result;
+	}
+
+	@Override
+	public void put(String key, InsightResult result) {
+		try {
+			Cache cache = getCache();
+			if (cache != null) {
+				cache.put(key, marshal(result));
+				// any hash we had belongs to the previous result
+				cache.put(HASH + key, marshalHash(result.getCreated(), null));
+			}
+		}
+		catch (Exception e) {
+			logger.warn("Could not share result for insight: " + artifact.getId(), e);
+		}
+	}
+	
+	@Override
+	public InsightResult peek(String key) {
+		try {
+			Cache cache = getCache();
+			InsightResult result = cache == null ? null : unmarshal((byte[]) cache.get(key));
+			return result == null || result.getCreated() < System.currentTimeMillis() - timeout ? null : result;
+		}
+		catch (Exception e) {
+			logger.warn("Could not get shared result for insight: " + artifact.getId(), e);
+			return null;
+		}
+	}
+	
+	@Override
+	public Long getHash(String key) {
+		try {
+			Cache cache = getCache();
+			byte[] bytes = cache == null ? null : (byte[]) cache.get(HASH + key);
+			if (bytes == null) {
+				return null;
+			}
+			DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+			long created = input.readLong();
+			Long hash = input.readBoolean() ? input.readLong() : null;
+			return created < System.currentTimeMillis() - timeout ? null : hash;
+		}
+		catch (Exception e) {
+			logger.warn("Could not get shared hash for insight: " + artifact.getId(), e);
+			return null;
+		}
+	}
+	
+	// best effort like the lease: the result might be replaced between the check and the put
+	@Override
+	public void putHash(String key, long created, long hash) {
+		try {
+			Cache cache = getCache();
+			byte[] bytes = cache == null ? null : (byte[]) cache.get(HASH + key);
+			if (bytes != null && new DataInputStream(new ByteArrayInputStream(bytes)).readLong() == created) {
+				cache.put(HASH + key, marshalHash(created, hash));
+			}
+		}
+		catch (Exception e) {
+			logger.warn("Could not share hash for insight: " + artifact.getId(), e);
+		}
+	}
+	
+	private static byte[] marshalHash(long created, Long hash) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeLong(created);
+		output.writeBoolean(hash != null);
+		if (hash != null) {
+			output.writeLong(hash);
+		}
+		output.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Try to get the lease to calculate the result for the given key.
+	 * If another server holds it, we wait until its result appears in the cache, the lease runs out or we have waited for the given amount of milliseconds.
+	 * Returns the result calculated elsewhere or null if it is up to you (in which case you should call release() afterwards).
+	 */
+	public InsightResult acquire(String key, long maxWait) {
+		String leaseKey = LEASE + key;
+		try {
+			Cache cache = getCache();
+			if (cache == null) {
+				return null;
+			}
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+			while (true) {
+				String lease = (String) cache.get(leaseKey);
+				if (lease == null || lease.startsWith(owner + ":") || isExpired(leaseKey, lease)) {
+					cache.put(leaseKey, owner + ":" + leases.incrementAndGet());
+					// last writer wins, if someone else overwrote it in the meantime, we wait for them instead
+					lease = (String) cache.get(leaseKey);
+					if (lease == null || lease.startsWith(owner + ":")) {
+						observed.remove(leaseKey);
+						return null;
+					}
+				}
+				// we don't wait longer than we would for our own query
+				// we keep observing the lease so a lease that is never released still expires over multiple requests
+				if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL) > deadline) {
+					return null;
+				}
+				Thread.sleep(POLL_INTERVAL);
+				InsightResult result = unmarshal((byte[]) cache.get(key));
+				if (result != null && result.getCreated() >= System.currentTimeMillis() - timeout) {
+					observed.remove(leaseKey);
+					return result;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (Exception e) {
+			logger.warn("Could not get shared lease for insight: " + artifact.getId(), e);
+			return null;
+		}
+	}
+	
+	// if we stopped waiting for someone else, the lease is not ours to release
+	public void release(String key) {
+		try {
+			Cache cache = getCache();
+			if (cache != null) {
+				String lease = (String) cache.get(LEASE + key);
+				if (lease != null && lease.startsWith(owner + ":")) {
+					cache.clear(LEASE + key);
+				}
+			}
+		}
+		catch (Exception e) {
+			logger.warn("Could not release shared lease for insight: " + artifact.getId(), e);
+		}
+	}
+	
+	// a lease expires when we have seen it unchanged for the duration of the lease timeout, measured on our own clock
+	private boolean isExpired(String leaseKey, String lease) {
+		long now = System.nanoTime();
+		Observed current = observed.get(leaseKey);
+		if (current == null || !current.lease.equals(lease)) {
+			// forget about leases we stopped waiting for a long time ago
+			if (current == null) {
+				Iterator<Observed> iterator = observed.values().iterator();
+				while (iterator.hasNext()) {
+					if (now - iterator.next().since > TimeUnit.MILLISECONDS.toNanos(LEASE_TIMEOUT)) {
+						iterator.remove();
+					}
+				}
+			}
+			observed.put(leaseKey, new Observed(lease, now));
+			return false;
+		}
+		return now - current.since > TimeUnit.MILLISECONDS.toNanos(LEASE_TIMEOUT);
+	}
+	
+	private static class Observed {
+		private String lease;
+		private long since;
+		private Observed(String lease, long since) {
+			this.lease = lease;
+			this.since = since;
+		}
+	}
+
+	// clearing the shared cache invalidates the results for all the servers
+	@Override
+	public void invalidate() {
+		try {
+			Cache cache = getCache();
+			if (cache != null) {
+				cache.clear();
+			}
+		}
+		catch (Exception e) {
+			logger.warn("Could not invalidate shared results for insight: " + artifact.getId(), e);
+		}
+	}
+	
+	private Cache getCache() throws IOException {
+		return provider.get(artifact.getId());
+	}
+	
+	// the header contains the metadata, followed by the results in xml
+	private byte[] marshal(InsightResult result) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeLong(result.getCreated());
+		output.writeBoolean(result.getTotalRowCount() != null);
+		if (result.getTotalRowCount() != null) {
+			output.writeLong(result.getTotalRowCount());
+		}
+		output.writeBoolean(result.getCursor() != null);
+		if (result.getCursor() != null) {
+			output.writeUTF(result.getCursor());
+		}
+		output.writeBoolean(result.isEstimated());
+		ComplexContent content = getWrapper().newInstance();
+		content.set("results", result.getResults());
+		new XMLBinding(getWrapper(), charset).marshal(output, content);
+		output.flush();
+		return bytes.toByteArray();
+	}
+	
+	private InsightResult unmarshal(byte[] bytes) throws IOException {
+		if (bytes == null) {
+			return null;
+		}
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+		long created = input.readLong();
+		Long totalRowCount = input.readBoolean() ? input.readLong() : null;
+		String cursor = input.readBoolean() ? input.readUTF() : null;
+		boolean estimated = input.readBoolean();
+		try {
+			ComplexContent content = new XMLBinding(getWrapper(), charset).unmarshal(input, new Window[0]);
+			InsightResult result = new InsightResult((List<?>) content.get("results"), totalRowCount);
+			result.setCursor(cursor);
+			result.setEstimated(estimated);
+			result.setCreated(created);
+			return result;
+		}
+		catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private ComplexType getWrapper() {
+		if (wrapper == null) {
+			Structure structure = new Structure();
+			structure.setName("insightResult");
+			structure.add(new ComplexElementImpl("results", artifact.getResult(), structure, 
+				new ValueImpl<Integer>(MinOccursProperty.getInstance(), 0), 
+				new ValueImpl<Integer>(MaxOccursProperty.getInstance(), 0)));
+			wrapper = structure;
+		}
+		return wrapper;
+	}
+	
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+}
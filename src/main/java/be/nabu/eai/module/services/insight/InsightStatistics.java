@@ -0,0 +1,166 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight;
+
+public class InsightStatistics {
+	// the amount of queries that were actually run
+	private long executions;
+	// the amount of requests that waited on an identical query that was already running
+	private long coalesced;
+	private long cacheHits, cacheMisses, cacheEvictions;
+	private int cacheSize;
+	// how many time buckets were served from cache and how many were queried
+	private long bucketHits, bucketMisses;
+	// how many queries were answered by re-aggregating the results of a more detailed insight
+	private long rollupHits, rollupMisses;
+	// how many queries were answered from the in-memory copy and how many rows it holds
+	private long columnarHits, columnarMisses;
+	private Integer columnarRows;
+	// how many role and permission checks were answered from cache
+	private long permissionHits, permissionMisses;
+	// the queries that are waiting for their turn, running (in cost) and rejected, both for this insight and for its connection
+	private int queueDepth, inUse, connectionQueueDepth, connectionInUse;
+	private long rejected, connectionRejected;
+	
+	public long getExecutions() {
+		return executions;
+	}
+	public void setExecutions(long executions) {
+		this.executions = executions;
+	}
+	public long getCoalesced() {
+		return coalesced;
+	}
+	public void setCoalesced(long coalesced) {
+		this.coalesced = coalesced;
+	}
+	public long getCacheHits() {
+		return cacheHits;
+	}
+	public void setCacheHits(long cacheHits) {
+		this.cacheHits = cacheHits;
+	}
+	public long getCacheMisses() {
+		return cacheMisses;
+	}
+	public void setCacheMisses(long cacheMisses) {
+		this.cacheMisses = cacheMisses;
+	}
+	public long getCacheEvictions() {
+		return cacheEvictions;
+	}
+	public void setCacheEvictions(long cacheEvictions) {
+		this.cacheEvictions = cacheEvictions;
+	}
+	public int getCacheSize() {
+		return cacheSize;
+	}
+	public void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+	public long getBucketHits() {
+		return bucketHits;
+	}
+	public void setBucketHits(long bucketHits) {
+		this.bucketHits = bucketHits;
+	}
+	public long getBucketMisses() {
+		return bucketMisses;
+	}
+	public void setBucketMisses(long bucketMisses) {
+		this.bucketMisses = bucketMisses;
+	}
+	public long getPermissionHits() {
+		return permissionHits;
+	}
+	public void setPermissionHits(long permissionHits) {
+		this.permissionHits = permissionHits;
+	}
+	public long getPermissionMisses() {
+		return permissionMisses;
+	}
+	public void setPermissionMisses(long permissionMisses) {
+		this.permissionMisses = permissionMisses;
+	}
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+	public void setQueueDepth(int queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+	public int getInUse() {
+		return inUse;
+	}
+	public void setInUse(int inUse) {
+		this.inUse = inUse;
+	}
+	public int getConnectionQueueDepth() {
+		return connectionQueueDepth;
+	}
+	public void setConnectionQueueDepth(int connectionQueueDepth) {
+		this.connectionQueueDepth = connectionQueueDepth;
+	}
+	public int getConnectionInUse() {
+		return connectionInUse;
+	}
+	public void setConnectionInUse(int connectionInUse) {
+		this.connectionInUse = connectionInUse;
+	}
+	public long getRejected() {
+		return rejected;
+	}
+	public void setRejected(long rejected) {
+		this.rejected = rejected;
+	}
+	public long getConnectionRejected() {
+		return connectionRejected;
+	}
+	public void setConnectionRejected(long connectionRejected) {
+		this.connectionRejected = connectionRejected;
+	}
+	public long getRollupHits() {
+		return rollupHits;
+	}
+	public void setRollupHits(long rollupHits) {
+		this.rollupHits = rollupHits;
+	}
+	public long getRollupMisses() {
+		return rollupMisses;
+	}
+	public void setRollupMisses(long rollupMisses) {
+		this.rollupMisses = rollupMisses;
+	}
+	public long getColumnarHits() {
+		return columnarHits;
+	}
+	public void setColumnarHits(long columnarHits) {
+		this.columnarHits = columnarHits;
+	}
+	public long getColumnarMisses() {
+		return columnarMisses;
+	}
+	public void setColumnarMisses(long columnarMisses) {
+		this.columnarMisses = columnarMisses;
+	}
+	public Integer getColumnarRows() {
+		return columnarRows;
+	}
+	public void setColumnarRows(Integer columnarRows) {
+		this.columnarRows = columnarRows;
+	}
+}
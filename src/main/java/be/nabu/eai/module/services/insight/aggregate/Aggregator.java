@@ -0,0 +1,28 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight.aggregate;
+
+/**
+ * Calculates an aggregate in the JVM. Aggregators are mergeable so partial results (e.g. per partition or per cached bucket) can be combined without going back to the raw data.
+ */
+public interface Aggregator {
+	public void add(Object value);
+	// the other aggregator must be of the same type
+	public void merge(Aggregator other);
+	public Object getResult();
+}
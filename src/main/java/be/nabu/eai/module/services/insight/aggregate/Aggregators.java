@@ -0,0 +1,190 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight.aggregate;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+public class Aggregators {
+	
+	// these can only be calculated in the JVM
+	private static List<String> approximate = Arrays.asList("approx_count_distinct", "median", "p90", "p95", "p99");
+	
+	public static boolean isApproximate(String aggregate) {
+		return aggregate != null && approximate.contains(aggregate);
+	}
+	
+	public static List<String> getApproximate() {
+		return approximate;
+	}
+	
+	public static Aggregator newAggregator(String aggregate) {
+		if (aggregate == null) {
+			throw new IllegalArgumentException("No aggregate");
+		}
+		switch(aggregate) {
+			case "sum": return new Sum();
+			case "count": return new Count();
+			case "min": return new Extreme(false);
+			case "max": return new Extreme(true);
+			case "avg": return new Average();
+			case "approx_count_distinct": return new HyperLogLog();
+			case "median": return new QuantileSketch(0.5);
+			case "p90": return new QuantileSketch(0.9);
+			case "p95": return new QuantileSketch(0.95);
+			case "p99": return new QuantileSketch(0.99);
+			default: throw new IllegalArgumentException("Unsupported aggregate in the JVM: " + aggregate);
+		}
+	}
+	
+	public static class Sum implements Aggregator {
+		private long integral;
+		private double decimal;
+		private BigDecimal big;
+		private boolean hasDecimal, hasValue;
+		
+		@Override
+		public void add(Object value) {
+			if (value instanceof BigDecimal || value instanceof BigInteger) {
+				BigDecimal converted = value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal((BigInteger) value);
+				big = big == null ? converted : big.add(converted);
+				hasValue = true;
+			}
+			else if (value instanceof Double || value instanceof Float) {
+				decimal += ((Number) value).doubleValue();
+				hasDecimal = true;
+				hasValue = true;
+			}
+			else if (value instanceof Number) {
+				integral += ((Number) value).longValue();
+				hasValue = true;
+			}
+		}
+		@Override
+		public void merge(Aggregator other) {
+			Sum sum = (Sum) other;
+			integral += sum.integral;
+			decimal += sum.decimal;
+			if (sum.big != null) {
+				big = big == null ? sum.big : big.add(sum.big);
+			}
+			hasDecimal |= sum.hasDecimal;
+			hasValue |= sum.hasValue;
+		}
+		@Override
+		public Object getResult() {
+			if (!hasValue) {
+				return null;
+			}
+			else if (big != null) {
+				return big.add(BigDecimal.valueOf(integral)).add(BigDecimal.valueOf(decimal));
+			}
+			else if (hasDecimal) {
+				return decimal + integral;
+			}
+			return integral;
+		}
+	}
+	
+	// like in sql we only count the non-null values
+	public static class Count implements Aggregator {
+		private long count;
+		@Override
+		public void add(Object value) {
+			if (value != null) {
+				count++;
+			}
+		}
+		public void addCount(long count) {
+			this.count += count;
+		}
+		@Override
+		public void merge(Aggregator other) {
+			count += ((Count) other).count;
+		}
+		@Override
+		public Object getResult() {
+			return count;
+		}
+	}
+	
+	public static class Extreme implements Aggregator {
+		private boolean max;
+		private Comparable<Object> value;
+		public Extreme(boolean max) {
+			this.max = max;
+		}
+		@SuppressWarnings("unchecked")
+		@Override
+		public void add(Object value) {
+			if (value instanceof Comparable) {
+				if (this.value == null) {
+					this.value = (Comparable<Object>) value;
+				}
+				else {
+					int comparison = this.value.compareTo(value);
+					if ((max && comparison < 0) || (!max && comparison > 0)) {
+						this.value = (Comparable<Object>) value;
+					}
+				}
+			}
+		}
+		@Override
+		public void merge(Aggregator other) {
+			add(((Extreme) other).value);
+		}
+		@Override
+		public Object getResult() {
+			return value;
+		}
+	}
+	
+	public static class Average implements Aggregator {
+		private Sum sum = new Sum();
+		private Count count = new Count();
+		@Override
+		public void add(Object value) {
+			if (value instanceof Number) {
+				sum.add(value);
+				count.add(value);
+			}
+		}
+		// combine with the sum and count of a partial result
+		public void addPartial(Object sum, long count) {
+			if (sum instanceof Number) {
+				this.sum.add(sum);
+				this.count.addCount(count);
+			}
+		}
+		@Override
+		public void merge(Aggregator other) {
+			sum.merge(((Average) other).sum);
+			count.merge(((Average) other).count);
+		}
+		@Override
+		public Object getResult() {
+			Object total = sum.getResult();
+			if (total == null || count.count == 0) {
+				return null;
+			}
+			return ((Number) total).doubleValue() / count.count;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+package be.nabu.eai.module.services.insight.aggregate;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash table that assigns a sequential id to every distinct composite key, in the order they were first added.
+ * A key is a fixed amount of longs, for example numbers, dictionary codes or null flags. The keys are stored in a single flat array so adding a key that already exists does not allocate anything.
+ * The accumulators are up to the caller, they can be kept in arrays indexed by the group id.
+ * Memory is predictable: per group we need the key itself, its hash and two slots in the index.
+ */
+public class GroupTable {
+
+	private static final int EMPTY = -1;
+	
+	private int width;
+	// the keys of all the groups, the key of group n starts at n * width
+	private long[] keys;
+	private int[] hashes;
+	// the index into the groups, linear probing with a load factor of at most 50%
+	private int[] slots;
+	private int mask;
+	private int size;
+	
+	public GroupTable(int width) {
+		this(width, 16);
+	}
+	
+	public GroupTable(int width, int expected) {
+		this.width = width;
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2) - 1) << 1;
+		slots = new int[capacity];
+		Arrays.fill(slots, EMPTY);
+		mask = capacity - 1;
+		hashes = new int[Math.max(16, expected)];
+		keys = new long[Math.max(1, width) * hashes.length];
+	}
+	
+	/**
+	 * The id of the group for the given key, if it does not exist yet it is added with the next id.
+	 * The key is copied so the caller can reuse the array.
+	 */
+	public int add(long[] key) {
+		int hash = hash(key);
+		int slot = hash & mask;
+		while (true) {
+			int group = slots[slot];
+			if (group == EMPTY) {
+				return insert(key, hash, slot);
+			}
+			if (hashes[group] == hash && matches(group, key)) {
+				return group;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	// the id of the group or -1 if it doesn't exist
+	public int find(long[] key) {
+		int hash = hash(key);
+		int slot = hash & mask;
+		while (true) {
+			int group = slots[slot];
+			if (group == EMPTY || (hashes[group] == hash && matches(group, key))) {
+				return group;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	public long get(int group, int index) {
+		return keys[(group * width) + index];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	private int insert(long[] key, int hash, int slot) {
+		int group = size++;
+		if (group >= hashes.length) {
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+			keys = Arrays.copyOf(keys, Math.max(1, width) * hashes.length);
+		}
+		hashes[group] = hash;
+		System.arraycopy(key, 0, keys, group * width, width);
+		slots[slot] = group;
+		if (size * 2 > slots.length) {
+			rehash();
+		}
+		return group;
+	}
+	
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		Arrays.fill(slots, EMPTY);
+		mask = slots.length - 1;
+		for (int group = 0; group < size; group++) {
+			int slot = hashes[group] & mask;
+			while (slots[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = group;
+		}
+	}
+	
+	private boolean matches(int group, long[] key) {
+		int offset = group * width;
+		for (int i = 0; i < width; i++) {
+			if (keys[offset + i] != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// sequential values (like dictionary codes) should not end up in neighbouring slots
+	private int hash(long[] key) {
+		long hash = 0x9E3779B97F4A7C15L;
+		for (int i = 0; i < width; i++) {
+			hash = (hash ^ key[i]) * 0xBF58476D1CE4E5B9L;
+			hash ^= hash >>> 31;
+		}
+		return (int) (hash ^ (hash >>> 32));
+	}
+}
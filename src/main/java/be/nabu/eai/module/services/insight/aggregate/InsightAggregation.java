@@ -0,0 +1,223 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight.aggregate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+
+/**
+ * Groups records in the JVM and calculates the aggregates per group.
+ * Aggregations can be merged as long as they were created for the same fields.
+ * The values of the group fields are dictionary encoded so the groups can be looked up in a {@link GroupTable} without creating a key per record.
+ */
+public class InsightAggregation {
+	
+	private List<String> groupFields;
+	private List<String> valueFields;
+	private List<String> aggregates;
+	private GroupTable groups;
+	// per group field the code of every distinct value (including null) and the values by code
+	private List<Map<Object, Integer>> codes = new ArrayList<Map<Object, Integer>>();
+	private List<List<Object>> values = new ArrayList<List<Object>>();
+	// the aggregators by group id
+	private Aggregator[][] aggregators = new Aggregator[16][];
+	// reused for every lookup
+	private long[] probe;
+	
+	/**
+	 * The value fields and aggregates are matched by index, the field names are the same in the records and the result.
+	 */
+	public InsightAggregation(List<String> groupFields, List<String> valueFields, List<String> aggregates) {
+		this.groupFields = groupFields;
+		this.valueFields = valueFields;
+		this.aggregates = aggregates;
+		this.groups = new GroupTable(groupFields.size());
+		this.probe = new long[groupFields.size()];
+		for (int i = 0; i < groupFields.size(); i++) {
+			codes.add(new HashMap<Object, Integer>());
+			values.add(new ArrayList<Object>());
+		}
+	}
+	
+	public void add(ComplexContent record) {
+		for (int i = 0; i < probe.length; i++) {
+			probe[i] = encode(i, record.get(groupFields.get(i)));
+		}
+		Aggregator[] aggregators = getAggregators();
+		for (int i = 0; i < aggregators.length; i++) {
+			aggregators[i].add(record.get(valueFields.get(i)));
+		}
+	}
+	
+	public void addAll(List<?> records) {
+		if (records != null) {
+			for (Object record : records) {
+				add((ComplexContent) record);
+			}
+		}
+	}
+	
+	/**
+	 * Add a record that contains partial aggregates calculated by the database (e.g. for one partition).
+	 * Sums, minimums and maximums can be combined as is, counts are added up and averages need both the partial sum and the partial count.
+	 * For approximate aggregates the record holds a single distinct value and the count field says how often it occurs.
+	 * The count fields are matched by index with the value fields, they are only relevant for averages and approximate aggregates.
+	 */
+	public void addPartial(ComplexContent record, List<String> countFields) {
+		for (int i = 0; i < probe.length; i++) {
+			probe[i] = encode(i, record.get(groupFields.get(i)));
+		}
+		Aggregator[] aggregators = getAggregators();
+		for (int i = 0; i < aggregators.length; i++) {
+			Object value = record.get(valueFields.get(i));
+			if (aggregators[i] instanceof Aggregators.Count) {
+				((Aggregators.Count) aggregators[i]).addCount(value == null ? 0 : ((Number) value).longValue());
+			}
+			else if (aggregators[i] instanceof Aggregators.Average) {
+				Object count = record.get(countFields.get(i));
+				((Aggregators.Average) aggregators[i]).addPartial(value, count == null ? 0 : ((Number) count).longValue());
+			}
+			else if (aggregators[i] instanceof QuantileSketch) {
+				Object count = record.get(countFields.get(i));
+				((QuantileSketch) aggregators[i]).add(value, count == null ? 0 : ((Number) count).longValue());
+			}
+			else {
+				aggregators[i].add(value);
+			}
+		}
+	}
+	
+	public void addPartials(List<?> records, List<String> countFields) {
+		if (records != null) {
+			for (Object record : records) {
+				addPartial((ComplexContent) record, countFields);
+			}
+		}
+	}
+	
+	public void merge(InsightAggregation other) {
+		// the codes are specific to each aggregation, we only translate them once per group
+		for (int group = 0; group < other.groups.size(); group++) {
+			for (int i = 0; i < probe.length; i++) {
+				probe[i] = encode(i, other.values.get(i).get((int) other.groups.get(group, i)));
+			}
+			Aggregator[] aggregators = getAggregators();
+			for (int i = 0; i < aggregators.length; i++) {
+				aggregators[i].merge(other.aggregators[group][i]);
+			}
+		}
+	}
+	
+	private long encode(int field, Object value) {
+		Integer code = codes.get(field).get(value);
+		if (code == null) {
+			code = values.get(field).size();
+			values.get(field).add(value);
+			codes.get(field).put(value, code);
+		}
+		return code;
+	}
+	
+	// the aggregators for the key in the probe
+	private Aggregator[] getAggregators() {
+		int group = groups.add(probe);
+		if (group >= aggregators.length) {
+			aggregators = Arrays.copyOf(aggregators, aggregators.length * 2);
+		}
+		if (aggregators[group] == null) {
+			Aggregator[] created = new Aggregator[aggregates.size()];
+			for (int i = 0; i < created.length; i++) {
+				created[i] = Aggregators.newAggregator(aggregates.get(i));
+			}
+			aggregators[group] = created;
+		}
+		return aggregators[group];
+	}
+	
+	public int size() {
+		return groups.size();
+	}
+	
+	public List<ComplexContent> getResults(ComplexType type) {
+		List<ComplexContent> results = new ArrayList<ComplexContent>();
+		for (int group = 0; group < groups.size(); group++) {
+			ComplexContent result = type.newInstance();
+			for (int i = 0; i < groupFields.size(); i++) {
+				result.set(groupFields.get(i), values.get(i).get((int) groups.get(group, i)));
+			}
+			for (int i = 0; i < valueFields.size(); i++) {
+				result.set(valueFields.get(i), aggregators[group][i].getResult());
+			}
+			results.add(result);
+		}
+		return results;
+	}
+	
+	/**
+	 * Sort according to the standard order by syntax: "field" or "field desc". Nulls are sorted last.
+	 */
+	public static void sort(List<ComplexContent> results, List<String> orderBy) {
+		if (orderBy == null || orderBy.isEmpty()) {
+			return;
+		}
+		List<String> fields = new ArrayList<String>();
+		List<Boolean> descending = new ArrayList<Boolean>();
+		for (String order : orderBy) {
+			fields.add(order.trim().replaceAll("(?i)\\s+(asc|desc)$", ""));
+			descending.add(order.trim().toLowerCase().endsWith(" desc"));
+		}
+		Collections.sort(results, new Comparator<ComplexContent>() {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			public int compare(ComplexContent first, ComplexContent second) {
+				for (int i = 0; i < fields.size(); i++) {
+					Object value1 = first.get(fields.get(i));
+					Object value2 = second.get(fields.get(i));
+					int comparison;
+					if (value1 == null || value2 == null) {
+						comparison = value1 == null ? (value2 == null ? 0 : 1) : -1;
+					}
+					else {
+						comparison = ((Comparable) value1).compareTo(value2);
+						if (descending.get(i)) {
+							comparison = -comparison;
+						}
+					}
+					if (comparison != 0) {
+						return comparison;
+					}
+				}
+				return 0;
+			}
+		});
+	}
+	
+	public static <T> List<T> page(List<T> results, Long offset, Integer limit) {
+		int from = offset == null ? 0 : (int) Math.min(offset, results.size());
+		int to = limit == null ? results.size() : Math.min(results.size(), from + limit);
+		return new ArrayList<T>(results.subList(from, to));
+	}
+}
@@ -0,0 +1,172 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.services.insight.aggregate;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * A compacting quantile sketch (along the lines of KLL) for approximate percentiles.
+ * 
+ * Every level holds at most k items, each item on level n represents 2^n original values.
+ * When a level is full it is sorted and every other item is promoted to the next level, the offset alternates per level so the errors of subsequent compactions cancel out.
+ * There is no randomness involved: the same values in the same order always give the same result.
+ * Memory is logarithmic in the amount of values and sketches can be merged by merging their levels.
+ */
+public class QuantileSketch implements Aggregator {
+	
+	private static final int DEFAULT_CAPACITY = 200;
+	
+	private int capacity;
+	private double quantile;
+	private double[][] levels = new double[0][];
+	private int[] sizes = new int[0];
+	// how many times each level was compacted, it decides which half is promoted
+	private int[] compactions = new int[0];
+	
+	public QuantileSketch(double quantile) {
+		this(quantile, DEFAULT_CAPACITY);
+	}
+	
+	public QuantileSketch(double quantile, int capacity) {
+		this.quantile = quantile;
+		this.capacity = capacity;
+	}
+
+	@Override
+	public void add(Object value) {
+		add(value, 1);
+	}
+	
+	public void add(double value) {
+		append(0, value);
+	}
+	
+	// the value occurs weight times, an item on level n stands for 2^n values so we add one item per bit of the weight
+	public void add(Object value, long weight) {
+		Double converted = toDouble(value);
+		if (converted != null) {
+			for (int level = 0; weight > 0; level++, weight >>>= 1) {
+				if ((weight & 1) != 0) {
+					append(level, converted);
+				}
+			}
+		}
+	}
+	
+	private static Double toDouble(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		else if (value instanceof Date) {
+			return (double) ((Date) value).getTime();
+		}
+		return null;
+	}
+	
+	private void append(int level, double value) {
+		if (level >= levels.length) {
+			int from = levels.length;
+			levels = Arrays.copyOf(levels, level + 1);
+			sizes = Arrays.copyOf(sizes, level + 1);
+			compactions = Arrays.copyOf(compactions, level + 1);
+			for (int i = from; i <= level; i++) {
+				levels[i] = new double[capacity];
+			}
+		}
+		levels[level][sizes[level]++] = value;
+		if (sizes[level] >= capacity) {
+			compact(level);
+		}
+	}
+	
+	private void compact(int level) {
+		double[] items = levels[level];
+		int size = sizes[level];
+		Arrays.sort(items, 0, size);
+		// with an odd amount, the largest item stays behind
+		int promoted = size - (size % 2);
+		for (int i = compactions[level]++ & 1; i < promoted; i += 2) {
+			append(level + 1, items[i]);
+		}
+		if (promoted < size) {
+			items[0] = items[size - 1];
+			sizes[level] = 1;
+		}
+		else {
+			sizes[level] = 0;
+		}
+	}
+
+	@Override
+	public void merge(Aggregator other) {
+		QuantileSketch sketch = (QuantileSketch) other;
+		for (int level = 0; level < sketch.levels.length; level++) {
+			for (int i = 0; i < sketch.sizes[level]; i++) {
+				append(level, sketch.levels[level][i]);
+			}
+		}
+	}
+
+	@Override
+	public Object getResult() {
+		return getQuantile(quantile);
+	}
+	
+	public Double getQuantile(double quantile) {
+		int total = 0;
+		for (int size : sizes) {
+			total += size;
+		}
+		if (total == 0) {
+			return null;
+		}
+		double[] values = new double[total];
+		long[] weights = new long[total];
+		int index = 0;
+		long totalWeight = 0;
+		for (int level = 0; level < levels.length; level++) {
+			for (int i = 0; i < sizes[level]; i++) {
+				values[index] = levels[level][i];
+				weights[index++] = 1L << level;
+			}
+			totalWeight += (long) sizes[level] << level;
+		}
+		// sort the values along with their weights
+		Integer[] order = new Integer[total];
+		for (int i = 0; i < total; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(values[a], values[b]);
+			}
+		});
+		double target = quantile * totalWeight;
+		long cumulative = 0;
+		for (Integer position : order) {
+			cumulative += weights[position];
+			if (cumulative >= target) {
+				return values[position];
+			}
+		}
+		return values[order[total - 1]];
+	}
+}
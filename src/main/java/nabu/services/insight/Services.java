@@ -0,0 +1,54 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.services.insight;
+
+import javax.jws.WebParam;
+import javax.jws.WebResult;
+import javax.jws.WebService;
+import javax.validation.constraints.NotNull;
+
+import be.nabu.eai.module.services.insight.InsightArtifact;
+import be.nabu.eai.module.services.insight.InsightStatistics;
+import be.nabu.eai.repository.EAIResourceRepository;
+import be.nabu.libs.artifacts.api.Artifact;
+
+@WebService
+public class Services {
+	
+	public void invalidate(@NotNull @WebParam(name = "insightId") String insightId) {
+		getInsight(insightId).invalidate();
+	}
+	
+	public void invalidatePermissions(@NotNull @WebParam(name = "insightId") String insightId) {
+		getInsight(insightId).invalidatePermissions();
+	}
+	
+	@WebResult(name = "statistics")
+	public InsightStatistics statistics(@NotNull @WebParam(name = "insightId") String insightId) {
+		return getInsight(insightId).getStatistics();
+	}
+	
+	private InsightArtifact getInsight(String insightId) {
+		Artifact artifact = EAIResourceRepository.getInstance().resolve(insightId);
+		if (!(artifact instanceof InsightArtifact)) {
+			throw new IllegalArgumentException("Not a valid insight: " + insightId);
+		}
+		return (InsightArtifact) artifact;
+	}
+	
+}
@@ -0,0 +1,216 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.services.insight;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import be.nabu.eai.repository.util.Filter;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.structure.Structure;
+import junit.framework.TestCase;
+
+/**
+ * Pages through an in-memory table with lots of duplicate values in the leading order field, the filters of the cursor are evaluated the way the database would.
+ */
+public class InsightCursorTest extends TestCase {
+	
+	public void testUniqueKeyset() throws ServiceException {
+		for (int limit = 1; limit <= 7; limit++) {
+			assertRoundTrip(limit, false, 1);
+		}
+	}
+	
+	public void testUniqueKeysetDescending() throws ServiceException {
+		for (int limit = 1; limit <= 7; limit++) {
+			assertRoundTrip(limit, true, 1);
+		}
+	}
+	
+	// if the tie breaker is nullable, the keyset only covers the leading field and the duplicates at the end of a page are skipped
+	public void testPrefixKeyset() throws ServiceException {
+		for (int limit = 1; limit <= 7; limit++) {
+			assertRoundTrip(limit, false, 0);
+			assertRoundTrip(limit, true, 0);
+		}
+	}
+	
+	// a page that ends exactly at the end of the data still returns a cursor, the page after it is empty
+	public void testExactPageBoundary() throws ServiceException {
+		Structure structure = newStructure(1);
+		List<ComplexContent> records = newRecords(structure, 20, 3);
+		sort(records, false);
+		InsightCursor cursor = newCursor(structure, false, 10);
+		String token = cursor.next(records.subList(0, 10));
+		assertNotNull(token);
+		cursor = newCursor(structure, false, 10);
+		cursor.decode(token);
+		List<ComplexContent> page = select(records, cursor);
+		assertEquals(10, page.size());
+		token = cursor.next(page);
+		assertNotNull(token);
+		cursor = newCursor(structure, false, 10);
+		cursor.decode(token);
+		page = select(records, cursor);
+		assertEquals(0, page.size());
+		assertNull(cursor.next(page));
+	}
+	
+	public void testDifferentOrder() throws ServiceException {
+		Structure structure = newStructure(1);
+		List<ComplexContent> records = newRecords(structure, 20, 3);
+		sort(records, false);
+		String token = newCursor(structure, false, 5).next(records.subList(0, 5));
+		try {
+			newCursor(structure, true, 5).decode(token);
+			fail("A cursor should only be valid for the order it was created for");
+		}
+		catch (ServiceException e) {
+			// expected
+		}
+	}
+	
+	private void assertRoundTrip(int limit, boolean descending, int minOccurs) throws ServiceException {
+		Structure structure = newStructure(minOccurs);
+		List<ComplexContent> records = newRecords(structure, 40, limit);
+		sort(records, descending);
+		List<ComplexContent> returned = new ArrayList<ComplexContent>();
+		String token = null;
+		int pages = 0;
+		do {
+			InsightCursor cursor = newCursor(structure, descending, limit);
+			if (token != null) {
+				cursor.decode(token);
+				// if the keyset identifies a single record, we never need to skip
+				if (minOccurs > 0) {
+					assertEquals(0, cursor.getSkip());
+				}
+			}
+			List<ComplexContent> page = select(records, cursor);
+			returned.addAll(page);
+			token = cursor.next(page);
+			assertTrue("Too many pages", ++pages <= records.size() + 1);
+		}
+		while (token != null);
+		assertEquals(records, returned);
+	}
+	
+	// ordered on a with b as the tie breaker
+	private static InsightCursor newCursor(Structure structure, boolean descending, int limit) {
+		return new InsightCursor(new String[] { "a", "b" }, new Element<?>[] { structure.get("a"), structure.get("b") }, new boolean[] { descending, false }, limit);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Structure newStructure(int minOccurs) {
+		Structure structure = new Structure();
+		structure.setName("record");
+		structure.add(new SimpleElementImpl<Integer>("a", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), structure));
+		structure.add(new SimpleElementImpl<Integer>("b", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(Integer.class), structure, new ValueImpl<Integer>(MinOccursProperty.getInstance(), minOccurs)));
+		return structure;
+	}
+	
+	// few distinct values for a so every page boundary falls in a run of duplicates, the combination of a and b is unique
+	private static List<ComplexContent> newRecords(Structure structure, int amount, long seed) {
+		List<ComplexContent> records = new ArrayList<ComplexContent>();
+		for (int i = 0; i < amount; i++) {
+			ComplexContent record = structure.newInstance();
+			record.set("a", i % 4);
+			record.set("b", i);
+			records.add(record);
+		}
+		Collections.shuffle(records, new Random(seed));
+		return records;
+	}
+	
+	private static void sort(List<ComplexContent> records, boolean descending) {
+		Collections.sort(records, new Comparator<ComplexContent>() {
+			@Override
+			public int compare(ComplexContent first, ComplexContent second) {
+				int result = ((Integer) first.get("a")).compareTo((Integer) second.get("a"));
+				if (descending) {
+					result = -result;
+				}
+				return result == 0 ? ((Integer) first.get("b")).compareTo((Integer) second.get("b")) : result;
+			}
+		});
+	}
+	
+	// the sorted records that match the filters of the cursor, after the offset and up to the limit
+	private static List<ComplexContent> select(List<ComplexContent> records, InsightCursor cursor) {
+		List<String> keys = new ArrayList<String>();
+		keys.add("a");
+		keys.add("b");
+		List<Filter> filters = cursor.getStart() == null ? new ArrayList<Filter>() : cursor.getFilters(keys.subList(0, cursor.getStart().length));
+		List<ComplexContent> matches = new ArrayList<ComplexContent>();
+		for (ComplexContent record : records) {
+			if (matches(record, filters)) {
+				matches.add(record);
+			}
+		}
+		int limit = 0;
+		List<ComplexContent> page = new ArrayList<ComplexContent>();
+		for (int i = (int) cursor.getSkip(); i < matches.size() && limit++ < cursor.getLimit(); i++) {
+			page.add(matches.get(i));
+		}
+		return page;
+	}
+	
+	// a filter flagged with "or" is grouped with the one before it, the groups are and-ed
+	private static boolean matches(ComplexContent record, List<Filter> filters) {
+		boolean result = true, group = true;
+		for (int i = 0; i < filters.size(); i++) {
+			boolean match = compare(record, filters.get(i));
+			if (i == 0 || !filters.get(i).isOr()) {
+				result &= group;
+				group = match;
+			}
+			else {
+				group |= match;
+			}
+		}
+		return result && group;
+	}
+	
+	private static boolean compare(ComplexContent record, Filter filter) {
+		int value = (Integer) record.get(filter.getKey());
+		int bound = (Integer) filter.getValues().get(0);
+		if (">".equals(filter.getOperator())) {
+			return value > bound;
+		}
+		else if (">=".equals(filter.getOperator())) {
+			return value >= bound;
+		}
+		else if ("<".equals(filter.getOperator())) {
+			return value < bound;
+		}
+		else if ("<=".equals(filter.getOperator())) {
+			return value <= bound;
+		}
+		throw new IllegalArgumentException("Unexpected operator: " + filter.getOperator());
+	}
+}
@@ -0,0 +1,102 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.services.insight;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class InsightRouterTest extends TestCase {
+	
+	private InsightRouter router = new InsightRouter();
+	private InsightListener orders = listener("/api", "orders"),
+		summary = listener("/api", "orders/summary"),
+		order = listener("/api", "orders/{orderId}"),
+		lines = listener("/api", "orders/{orderId}/lines"),
+		deep = listener("/api", "orders/summary/{year}/totals"),
+		fallback = listener("/api", "{type}/summary/{year}/monthly");
+	
+	@Override
+	protected void setUp() {
+		router.add(orders);
+		router.add(summary);
+		router.add(order);
+		router.add(lines);
+		router.add(deep);
+		router.add(fallback);
+	}
+	
+	public void testLiteral() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		assertSame(orders, router.route("/api/orders", parameters));
+		assertTrue(parameters.isEmpty());
+	}
+	
+	// a literal segment wins over a variable one
+	public void testLiteralBeforeVariable() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		assertSame(summary, router.route("/api/orders/summary", parameters));
+		assertTrue(parameters.isEmpty());
+	}
+	
+	public void testVariable() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		assertSame(order, router.route("/api/orders/123", parameters));
+		assertEquals("123", parameters.get("orderId"));
+	}
+	
+	// the literal "summary" leads nowhere for this path so we go back and try it as an order id
+	public void testBacktrackToVariable() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		assertSame(lines, router.route("/api/orders/summary/lines", parameters));
+		assertEquals("summary", parameters.get("orderId"));
+	}
+	
+	// the parameters of a branch that did not match should not leak into the result
+	public void testBacktrackDiscardsParameters() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		assertSame(fallback, router.route("/api/orders/summary/2020/monthly", parameters));
+		assertEquals(2, parameters.size());
+		assertEquals("orders", parameters.get("type"));
+		assertEquals("2020", parameters.get("year"));
+		
+		parameters.clear();
+		assertSame(deep, router.route("/api/orders/summary/2020/totals", parameters));
+		assertEquals(1, parameters.size());
+		assertEquals("2020", parameters.get("year"));
+	}
+	
+	public void testNoMatch() {
+		Map<String, String> parameters = new HashMap<String, String>();
+		assertNull(router.route("/api/customers", parameters));
+		assertNull(router.route("/api/orders/123/unknown", parameters));
+		// a prefix of a route is not a route
+		assertNull(router.route("/api", parameters));
+	}
+	
+	public void testNormalizedSegments() {
+		assertSame(order, router.route("//api/orders/123/", new HashMap<String, String>()));
+	}
+	
+	private static InsightListener listener(String parentPath, String childPath) {
+		return new InsightListener(null, null, parentPath, childPath, Charset.forName("UTF-8"));
+	}
+}
@@ -0,0 +1,89 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.services.insight.aggregate;
+
+import junit.framework.TestCase;
+
+public class GroupTableTest extends TestCase {
+	
+	public void testSequentialIds() {
+		GroupTable table = new GroupTable(2);
+		assertEquals(0, table.add(new long[] { 1, 2 }));
+		assertEquals(1, table.add(new long[] { 2, 1 }));
+		assertEquals(0, table.add(new long[] { 1, 2 }));
+		assertEquals(2, table.size());
+		assertEquals(1, table.find(new long[] { 2, 1 }));
+		assertEquals(-1, table.find(new long[] { 3, 3 }));
+	}
+	
+	public void testKeyIsCopied() {
+		GroupTable table = new GroupTable(1);
+		long[] probe = new long[1];
+		for (int i = 0; i < 10; i++) {
+			probe[0] = i;
+			table.add(probe);
+		}
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i, table.get(i, 0));
+		}
+	}
+	
+	// starting small forces many resizes, every key should keep its id
+	public void testResize() {
+		GroupTable table = new GroupTable(3, 1);
+		int amount = 100000;
+		for (int i = 0; i < amount; i++) {
+			assertEquals(i, table.add(new long[] { i, i % 7, -i }));
+		}
+		assertEquals(amount, table.size());
+		for (int i = 0; i < amount; i++) {
+			assertEquals(i, table.find(new long[] { i, i % 7, -i }));
+			assertEquals(i, table.get(i, 0));
+			assertEquals(i % 7, table.get(i, 1));
+			assertEquals(-i, table.get(i, 2));
+		}
+	}
+	
+	// keys that only differ in one column or in the order of their columns end up probing the same slots
+	public void testCollisions() {
+		GroupTable table = new GroupTable(2, 16);
+		int id = 0;
+		for (long a = 0; a < 200; a++) {
+			for (long b = 0; b < 200; b++) {
+				assertEquals(id++, table.add(new long[] { a, b }));
+			}
+		}
+		id = 0;
+		for (long a = 0; a < 200; a++) {
+			for (long b = 0; b < 200; b++) {
+				assertEquals(id++, table.find(new long[] { a, b }));
+			}
+		}
+		assertEquals(-1, table.find(new long[] { 200, 0 }));
+		assertEquals(40000, table.size());
+	}
+	
+	// a width of zero means a single group (no group by)
+	public void testNoColumns() {
+		GroupTable table = new GroupTable(0);
+		assertEquals(0, table.add(new long[0]));
+		assertEquals(0, table.add(new long[0]));
+		assertEquals(1, table.size());
+	}
+}
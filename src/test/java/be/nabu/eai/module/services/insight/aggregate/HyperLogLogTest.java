@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.services.insight.aggregate;
+
+import junit.framework.TestCase;
+
+public class HyperLogLogTest extends TestCase {
+	
+	// the standard error with the default precision is about 0.8%, we allow three times that
+	private static final double MAX_ERROR = 0.025;
+	
+	public void testSmallCardinality() {
+		HyperLogLog sketch = new HyperLogLog();
+		for (int i = 0; i < 100; i++) {
+			// duplicates should not count
+			sketch.add(i);
+			sketch.add(i);
+		}
+		assertEquals(100, ((Number) sketch.getResult()).longValue(), 2);
+	}
+	
+	public void testErrorBounds() {
+		for (int cardinality : new int[] { 1000, 50000, 1000000 }) {
+			HyperLogLog sketch = new HyperLogLog();
+			for (int i = 0; i < cardinality; i++) {
+				sketch.add("value-" + i);
+			}
+			assertEstimate(cardinality, sketch);
+		}
+	}
+	
+	public void testSequentialNumbers() {
+		HyperLogLog sketch = new HyperLogLog();
+		for (long i = 0; i < 200000; i++) {
+			sketch.add(i);
+		}
+		assertEstimate(200000, sketch);
+	}
+	
+	public void testMerge() {
+		HyperLogLog first = new HyperLogLog(), second = new HyperLogLog();
+		// half of the values overlap
+		for (int i = 0; i < 100000; i++) {
+			first.add(i);
+			second.add(i + 50000);
+		}
+		first.merge(second);
+		assertEstimate(150000, first);
+	}
+	
+	// small groups should not pay for the dense registers
+	public void testSparse() {
+		HyperLogLog sketch = new HyperLogLog();
+		for (int i = 0; i < 500; i++) {
+			sketch.add(i);
+		}
+		assertTrue(sketch.isSparse());
+		assertEstimate(500, sketch);
+		for (int i = 500; i < 5000; i++) {
+			sketch.add(i);
+		}
+		assertFalse(sketch.isSparse());
+		assertEstimate(5000, sketch);
+	}
+	
+	public void testMergeSparseAndDense() {
+		HyperLogLog sparse = new HyperLogLog(), dense = new HyperLogLog();
+		for (int i = 0; i < 100; i++) {
+			sparse.add(i);
+		}
+		for (int i = 0; i < 10000; i++) {
+			dense.add(i + 50);
+		}
+		HyperLogLog copy = new HyperLogLog();
+		copy.merge(sparse);
+		// a sparse sketch merged into a dense one and the other way around
+		dense.merge(sparse);
+		copy.merge(dense);
+		assertEstimate(10050, dense);
+		assertEquals(dense.getResult(), copy.getResult());
+	}
+	
+	public void testMergeDifferentPrecision() {
+		try {
+			new HyperLogLog(14).merge(new HyperLogLog(12));
+			fail("Sketches with a different precision should not merge");
+		}
+		catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	public void testNullIsIgnored() {
+		HyperLogLog sketch = new HyperLogLog();
+		sketch.add(null);
+		assertEquals(0, ((Number) sketch.getResult()).longValue());
+	}
+	
+	private static void assertEstimate(long expected, HyperLogLog sketch) {
+		long estimate = ((Number) sketch.getResult()).longValue();
+		double error = Math.abs(estimate - expected) / (double) expected;
+		assertTrue("Estimate " + estimate + " for " + expected + " is off by " + error, error <= MAX_ERROR);
+	}
+}
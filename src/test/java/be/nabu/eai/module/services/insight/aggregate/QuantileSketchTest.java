@@ -0,0 +1,132 @@
+/*
+* Copyright (C) 2020 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.eai.module.services.insight.aggregate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class QuantileSketchTest extends TestCase {
+	
+	// the rank of the returned value may be off by this fraction of the amount of values
+	private static final double MAX_RANK_ERROR = 0.02;
+	private static final int AMOUNT = 100000;
+	
+	public void testExactWhenSmall() {
+		QuantileSketch sketch = new QuantileSketch(0.5);
+		for (int i = 1; i <= 99; i++) {
+			sketch.add(i);
+		}
+		assertEquals(50d, sketch.getQuantile(0.5));
+		assertEquals(1d, sketch.getQuantile(0));
+		assertEquals(99d, sketch.getQuantile(1));
+	}
+	
+	public void testEmpty() {
+		assertNull(new QuantileSketch(0.5).getResult());
+	}
+	
+	public void testRankError() {
+		QuantileSketch sketch = new QuantileSketch(0.5);
+		// the values are the ranks
+		for (int value : shuffled(AMOUNT, 1)) {
+			sketch.add(value);
+		}
+		for (double quantile : new double[] { 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99 }) {
+			assertRank(quantile, sketch.getQuantile(quantile), AMOUNT);
+		}
+	}
+	
+	public void testSortedInput() {
+		QuantileSketch sketch = new QuantileSketch(0.5);
+		for (int i = 0; i < AMOUNT; i++) {
+			sketch.add(i);
+		}
+		for (double quantile : new double[] { 0.1, 0.5, 0.9 }) {
+			assertRank(quantile, sketch.getQuantile(quantile), AMOUNT);
+		}
+	}
+	
+	public void testMerge() {
+		QuantileSketch first = new QuantileSketch(0.5), second = new QuantileSketch(0.5);
+		List<Integer> values = shuffled(AMOUNT, 2);
+		for (int i = 0; i < values.size(); i++) {
+			(i % 2 == 0 ? first : second).add(values.get(i));
+		}
+		first.merge(second);
+		for (double quantile : new double[] { 0.1, 0.5, 0.9 }) {
+			assertRank(quantile, first.getQuantile(quantile), AMOUNT);
+		}
+	}
+	
+	// a weighted value should count as if it was added that many times
+	public void testWeights() {
+		QuantileSketch weighted = new QuantileSketch(0.5);
+		// value i occurs i + 1 times
+		long total = 0;
+		for (int value : shuffled(1000, 3)) {
+			weighted.add(value, value + 1);
+			total += value + 1;
+		}
+		for (double quantile : new double[] { 0.1, 0.5, 0.9 }) {
+			double result = weighted.getQuantile(quantile);
+			// the amount of values up to and including v is (v + 1)(v + 2) / 2
+			double rank = (result + 1) * (result + 2) / 2;
+			double error = Math.abs(rank - quantile * total) / total;
+			assertTrue("Quantile " + quantile + " returned " + result + " which is off by " + error, error <= MAX_RANK_ERROR);
+		}
+	}
+	
+	// the same values should always give the same answer, otherwise a cached and a fresh result could differ
+	public void testDeterministic() {
+		QuantileSketch first = new QuantileSketch(0.5), second = new QuantileSketch(0.5);
+		for (int value : shuffled(AMOUNT, 4)) {
+			first.add(value);
+			second.add(value);
+		}
+		for (double quantile : new double[] { 0.1, 0.5, 0.9 }) {
+			assertEquals(first.getQuantile(quantile), second.getQuantile(quantile));
+		}
+	}
+	
+	public void testDates() {
+		QuantileSketch sketch = new QuantileSketch(0.5);
+		sketch.add(new java.util.Date(1000));
+		sketch.add(new java.util.Date(2000));
+		sketch.add(new java.util.Date(3000));
+		assertEquals(2000d, sketch.getResult());
+	}
+	
+	private static List<Integer> shuffled(int amount, long seed) {
+		List<Integer> values = new ArrayList<Integer>();
+		for (int i = 0; i < amount; i++) {
+			values.add(i);
+		}
+		Collections.shuffle(values, new Random(seed));
+		return values;
+	}
+	
+	private static void assertRank(double quantile, double value, int amount) {
+		double error = Math.abs(value - quantile * amount) / amount;
+		assertTrue("Quantile " + quantile + " returned " + value + " which is off by " + error, error <= MAX_RANK_ERROR);
+	}
+}